@@ -10,13 +10,22 @@ purpose whatsoever, and to have or authorize others to do so.
 */
 package edu.vu.isis.logger.ui;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
+import android.app.AlertDialog;
+import android.app.Dialog;
+import android.content.DialogInterface;
 import android.content.Intent;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.view.Display;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -24,13 +33,22 @@ import android.view.MenuItem;
 import android.view.View;
 import android.widget.AbsListView;
 import android.widget.AbsListView.OnScrollListener;
+import android.widget.Button;
+import android.widget.EditText;
 import android.widget.TextView;
 import android.widget.Toast;
 import ch.qos.logback.classic.Level;
 import edu.vu.isis.logger.R;
+import edu.vu.isis.logger.util.ByteSearcher;
 import edu.vu.isis.logger.util.FileLogReader;
+import edu.vu.isis.logger.util.LineGrep;
+import edu.vu.isis.logger.util.LineSelection;
 import edu.vu.isis.logger.util.LogElement;
 import edu.vu.isis.logger.util.LogElementAdapter;
+import edu.vu.isis.logger.util.LogLevel;
+import edu.vu.isis.logger.util.PatternLayoutParser;
+import edu.vu.isis.logger.util.RolledFiles;
+import edu.vu.isis.logger.util.TimestampParser;
 
 /**
  * A log viewer designed to display logs from files. This class is not
@@ -52,19 +70,80 @@ import edu.vu.isis.logger.util.LogElementAdapter;
 public class FileLogViewer extends LogViewerBase {
 
 	private FileLogReader mLogReader;
+	private OpenFileTask mOpenTask;
+	private IndexTask mIndexTask;
+	private FindTask mFindTask;
+	private GrepTask mGrepTask;
+	private LevelTask mLevelTask;
+	private PrefetchTask mPrefetchTask;
+	private BottomTask mBottomTask;
+	private FileOnScrollListener mScrollListener;
+	private String mFileName;
+
+	/* The text being searched for and where it was last found */
+	private ByteSearcher mSearcher;
+	private long lastMatchPos = -1;
+
+	/** the number of bytes to index between progress updates */
+	private static final long INDEX_STEP = 4 * 1024 * 1024;
+
+	/**
+	 * how many seconds of scrolling at the current speed to look ahead when
+	 * deciding whether to prefetch the lines past the edge of the list
+	 */
+	private static final float PREFETCH_LOOKAHEAD = 1.0f;
+
+	/** the most lines that may be shown around each line found by a filter */
+	private static final int MAX_CONTEXT_LINES = 100;
 
 	private int numEntriesToSave;
 	private long lastToastTime = 0;
 
 	private static final int JUMP_TOP_MENU = Menu.NONE + 1;
 	private static final int JUMP_BOTTOM_MENU = Menu.NONE + 2;
+	private static final int JUMP_LINE_MENU = Menu.NONE + 4;
+	private static final int FIND_MENU = Menu.NONE + 5;
+	private static final int FIND_NEXT_MENU = Menu.NONE + 6;
+	private static final int FIND_PREVIOUS_MENU = Menu.NONE + 7;
+	private static final int FILTER_MENU = Menu.NONE + 8;
+	private static final int SHOW_ALL_MENU = Menu.NONE + 9;
+	private static final int LEVEL_MENU = Menu.NONE + 10;
+	private static final int JUMP_TIME_MENU = Menu.NONE + 11;
+	private static final int COLLAPSE_MENU = Menu.NONE + 12;
+
+	/** the levels that the file can be filtered down to, least severe first */
+	private static final LogLevel[] FILTER_LEVELS = { LogLevel.Verbose,
+			LogLevel.Trace, LogLevel.Debug, LogLevel.Info, LogLevel.Warn,
+			LogLevel.Error, LogLevel.Fail };
+
+	/**
+	 * The name of the optional String extra holding the file name pattern of a
+	 * rolling file appender. If it is given, the archived files are shown
+	 * before the file named by EXTRA_NAME.
+	 */
+	public static final String EXTRA_FILE_NAME_PATTERN = "file_name_pattern";
+
+	/**
+	 * The name of the optional String extra holding the pattern of the
+	 * appender's encoder. If it is given, the levels and timestamps of the
+	 * lines are found from their fields rather than guessed.
+	 */
+	public static final String EXTRA_ENCODER_PATTERN = "encoder_pattern";
 
 	public final Handler mHandler = new Handler() {
 
 		@Override
 		public void handleMessage(Message msg) {
-			mAdapter.remove(mAdapter.getItem(0));
-			mAdapter.notifyDataSetChanged();
+			// Lines may arrive before the first screen has been shown
+			if (mLogReader == null)
+				return;
+			switch (msg.what) {
+			case FileLogReader.CONCAT_DATA_MSG:
+				appendLines((FileLogReader.AppendedLines) msg.obj);
+				break;
+			default:
+				logger.error("Handler received malformed message");
+			}
 		}
 
 	};
@@ -97,50 +176,155 @@ public class FileLogViewer extends LogViewerBase {
 			return;
 		}
 
-		try {
-			super.mLogReader = this.mLogReader = new FileLogReader(this,
-					mHandler, filepath, numLines);
-		} catch (FileNotFoundException e) {
-			String errorMsg = "Could not find file: " + filepath;
-			Toast.makeText(this, errorMsg, Toast.LENGTH_LONG).show();
-			logger.error(errorMsg);
-			e.printStackTrace();
-			return;
-		} catch (IOException e) {
-			String errorMsg = "Error reading from file: " + filepath;
-			Toast.makeText(this, errorMsg, Toast.LENGTH_LONG).show();
-			logger.error(errorMsg);
-			e.printStackTrace();
-			return;
-		}
-
-		mLogReader.start();
-		setupColoringFromPrefs("colored_file_logs");
+		mFileName = new File(filepath).getName();
+		setTitle(mFileName);
 		mAdapter = new LogElementAdapter(this, R.layout.log_display_row);
 		mListView.setAdapter(mAdapter);
-		mAdapter.addAll(mLogReader.fillDown());
 
 		// TODO: Take out this level setting
 		((ch.qos.logback.classic.Logger) logger).setLevel(Level.DEBUG);
-		logger.debug("Adapter count: {}  Spread limit: {}",
-				mAdapter.getCount(), mLogReader.getSpreadLimit());
-		assert (mAdapter.getCount() == mLogReader.getSpreadLimit());
 
-		mListView.setOnScrollListener(new FileOnScrollListener());
+		// Opening the file and reading the first screen may take a while, so
+		// it is done in the background
+		mOpenTask = new OpenFileTask(filepath, numLines);
+		mOpenTask.execute();
 
 	}
 
+	@Override
+	public void onDestroy() {
+		// Stop any work in the background before the log reader is terminated
+		if (mOpenTask != null)
+			mOpenTask.cancel(false);
+		if (mIndexTask != null)
+			mIndexTask.cancel(false);
+		if (mFindTask != null)
+			mFindTask.cancel(false);
+		if (mGrepTask != null)
+			mGrepTask.stop();
+		if (mLevelTask != null)
+			mLevelTask.cancel(false);
+		if (mPrefetchTask != null)
+			mPrefetchTask.cancel(false);
+		if (mBottomTask != null)
+			mBottomTask.cancel(false);
+		super.onDestroy();
+	}
+
+	@Override
+	public boolean onPrepareOptionsMenu(Menu menu) {
+		final boolean returnValue = super.onPrepareOptionsMenu(menu);
+		menu.add(Menu.NONE, JUMP_LINE_MENU, Menu.NONE, "Go to line");
+		menu.add(Menu.NONE, JUMP_TIME_MENU, Menu.NONE, "Go to time");
+		menu.add(Menu.NONE, FIND_MENU, Menu.NONE, "Find");
+		if (mSearcher != null) {
+			menu.add(Menu.NONE, FIND_NEXT_MENU, Menu.NONE, "Find next");
+			menu.add(Menu.NONE, FIND_PREVIOUS_MENU, Menu.NONE, "Find previous");
+		}
+		menu.add(Menu.NONE, FILTER_MENU, Menu.NONE, "Filter");
+		menu.add(Menu.NONE, LEVEL_MENU, Menu.NONE, "Filter by level");
+		if (mLogReader != null && mLogReader.getSelection() != null) {
+			menu.add(Menu.NONE, SHOW_ALL_MENU, Menu.NONE, "Show all lines");
+		} else if (mLogReader != null) {
+			menu.add(Menu.NONE, COLLAPSE_MENU, Menu.NONE, mLogReader
+					.isCollapsed() ? "Expand stack traces"
+					: "Collapse stack traces");
+		}
+		return returnValue;
+	}
+
 	@Override
 	public boolean onOptionsItemSelected(MenuItem item) {
+		if (mLogReader == null) {
+			Toast.makeText(this, "The file is still being opened",
+					Toast.LENGTH_SHORT).show();
+			return true;
+		}
 		boolean returnValue = true;
 		switch (item.getItemId()) {
-		case JUMP_BOTTOM_MENU:
-			mLogReader.jumpToEndOfFile();
+		case JUMP_LINE_MENU:
+			if (!checkIndexed())
+				break;
+			makePrompt("Go to line", "Enter a line number from 1 to "
+					+ mLogReader.getNumLines()
+					+ ", or a percentage such as 50%", "Go",
+					new PromptCallback() {
+						@Override
+						public void onConfirm(String input) {
+							jumpToLine(input);
+						}
+					});
+			break;
+		case JUMP_TIME_MENU:
+			if (!checkIndexed())
+				break;
+			makePrompt("Go to time", "Enter a time such as 14:32, or a date "
+					+ "and time such as 2012-05-01 14:32:05", "Go",
+					new PromptCallback() {
+						@Override
+						public void onConfirm(String input) {
+							jumpToTime(input);
+						}
+					});
+			break;
+		case FIND_MENU:
+			makePrompt("Find", "Enter the text to find", "Find",
+					new PromptCallback() {
+						@Override
+						public void onConfirm(String input) {
+							mSearcher = new ByteSearcher(input);
+							lastMatchPos = -1;
+							find(true);
+						}
+					});
+			break;
+		case FIND_NEXT_MENU:
+			find(true);
+			break;
+		case FIND_PREVIOUS_MENU:
+			find(false);
+			break;
+		case FILTER_MENU:
+			makePrompt("Filter", "Enter the text that a line must hold to be "
+					+ "shown, or a regular expression between slashes",
+					"Filter", new PromptCallback() {
+						@Override
+						public void onConfirm(String input) {
+							filter(input);
+						}
+					});
+			break;
+		case LEVEL_MENU:
+			if (!checkIndexed())
+				break;
+			showLevelChooser();
+			break;
+		case SHOW_ALL_MENU:
+			lastMatchPos = -1;
+			mLogReader.setSelection(null);
 			mAdapter.clear();
-			mAdapter.addAll(mLogReader.fillUp());
-			setScrollToBottom();
+			mAdapter.addAll(mLogReader.fillDown());
+			setScrollToTop();
+			updateTitle();
+			break;
+		case COLLAPSE_MENU:
+			if (!checkIndexed())
+				break;
+			lastMatchPos = -1;
+			mLogReader.setCollapsed(!mLogReader.isCollapsed());
+			mAdapter.clear();
+			mAdapter.addAll(mLogReader.fillDown());
+			setScrollToTop();
+			break;
+		case JUMP_BOTTOM_MENU:
+			if (mBottomTask != null)
+				break;
+			lastMatchPos = -1;
+			mBottomTask = new BottomTask();
+			mBottomTask.execute();
 			break;
 		case JUMP_TOP_MENU:
+			lastMatchPos = -1;
 			mLogReader.jumpToBeginningOfFile();
 			mAdapter.clear();
 			mAdapter.addAll(mLogReader.fillDown());
@@ -159,15 +343,662 @@ public class FileLogViewer extends LogViewerBase {
 	
 	@Override
 	public void onActivityResult(int requestCode, int resultCode, Intent data) {
+		if (mLogReader == null)
+			return;
 		boolean wasColored = mLogReader.isColored();
 		setupColoringFromPrefs("colored_file_logs");
 		if(wasColored != mLogReader.isColored()) {
 			recolorLogsInAdapter();
 			mListView.invalidateViews();
 		}
+		setupTimestampPatternFromPrefs(mLogReader);
+		if (!mLogReader.isIndexed() && mIndexTask != null
+				&& mIndexTask.getStatus() == AsyncTask.Status.FINISHED) {
+			// The times of the lines have to be indexed with the new pattern
+			mIndexTask = new IndexTask();
+			mIndexTask.execute();
+		}
 		mLogReader.resume();
 	}
 
+	/**
+	 * Tells the log reader the pattern of the appender's encoder, if we were
+	 * given it, so that the levels of the lines are found from their fields
+	 * 
+	 * @param reader
+	 *            -- the log reader of the file
+	 */
+	private void setupLayoutPattern(FileLogReader reader) {
+		final String pattern = getIntent().getStringExtra(
+				EXTRA_ENCODER_PATTERN);
+		if (pattern == null)
+			return;
+		try {
+			reader.setLayoutPattern(pattern);
+		} catch (IllegalArgumentException e) {
+			logger.error("Could not parse the encoder pattern: {}", pattern);
+		}
+	}
+
+	/**
+	 * Tells the log reader the pattern of the timestamps in the file, so that
+	 * the times of the lines are indexed for "Go to time". The date pattern
+	 * of the appender's encoder is used if it has one, and otherwise the one
+	 * in the preferences. An empty or invalid pattern turns the time index
+	 * off.
+	 * 
+	 * @param reader
+	 *            -- the log reader of the file
+	 */
+	private void setupTimestampPatternFromPrefs(FileLogReader reader) {
+		final PatternLayoutParser layout = reader.getLayout();
+		if (layout != null && layout.getDatePattern() != null) {
+			try {
+				reader.setTimestampPattern(layout.getDatePattern());
+				return;
+			} catch (IllegalArgumentException e) {
+				logger.error("Invalid date pattern: {}",
+						layout.getDatePattern());
+			}
+		}
+		final String datePattern = mPrefs.getString("file_date_pattern",
+				TimestampParser.DEFAULT_PATTERN).trim();
+		try {
+			reader.setTimestampPattern((datePattern.length() == 0) ? null
+					: datePattern);
+		} catch (IllegalArgumentException e) {
+			logger.error("Invalid date pattern: {}", datePattern);
+			reader.setTimestampPattern(null);
+		}
+	}
+
+	/**
+	 * Tells the user to wait if the lines of the file are still being counted
+	 * 
+	 * @return true if every line has been indexed
+	 */
+	private boolean checkIndexed() {
+		if (mLogReader.isIndexed())
+			return true;
+		Toast.makeText(this,
+				"Still counting lines, " + mLogReader.getNumIndexedLines()
+						+ " so far", Toast.LENGTH_SHORT).show();
+		return false;
+	}
+
+	/**
+	 * Adds lines that were appended to the file to the bottom of the list, and
+	 * clears as many lines from the top as the log reader tells us to. The list
+	 * only follows the new lines if the user was already looking at the last
+	 * line.
+	 * 
+	 * @param lines
+	 *            -- the lines sent by the log reader
+	 */
+	private void appendLines(FileLogReader.AppendedLines lines) {
+
+		final boolean jumpDown = mListView.getLastVisiblePosition() == mAdapter
+				.getCount() - 1;
+
+		final int numToClear = mLogReader.acceptAppendedLines(lines);
+		if (numToClear < 0)
+			return;
+
+		mAdapter.addAll(lines.elements);
+		mAdapter.removeFirst(numToClear);
+
+		if (jumpDown)
+			mListView.setSelection(mAdapter.getCount() - 1);
+
+	}
+
+	/**
+	 * Moves the log reader to the line described by the user's input and
+	 * reloads the adapter from there.
+	 * 
+	 * @param input
+	 *            -- either a line number or a percentage ending with '%'
+	 */
+	private void jumpToLine(String input) {
+		try {
+			if (input.endsWith("%")) {
+				final float percent = Float.parseFloat(input.substring(0,
+						input.length() - 1));
+				mLogReader.jumpToFraction(percent / 100);
+			} else {
+				mLogReader.jumpToLine(Integer.parseInt(input));
+			}
+		} catch (IllegalArgumentException e) {
+			// NumberFormatException is also an IllegalArgumentException
+			Toast.makeText(this, "Invalid line: " + input, Toast.LENGTH_SHORT)
+					.show();
+			return;
+		}
+		lastMatchPos = -1;
+		mAdapter.clear();
+		mAdapter.addAll(mLogReader.fillDown());
+		setScrollToTop();
+	}
+
+	/**
+	 * Moves the log reader to the first line at or after the time given by
+	 * the user's input and reloads the adapter from a few lines before it.
+	 * 
+	 * @param input
+	 *            -- a time of day, or a date and time
+	 */
+	private void jumpToTime(String input) {
+		final int numBefore;
+		try {
+			numBefore = mLogReader.jumpToTime(input, numEntriesToSave);
+		} catch (IllegalArgumentException e) {
+			Toast.makeText(this, "Invalid time: " + input, Toast.LENGTH_SHORT)
+					.show();
+			return;
+		} catch (IllegalStateException e) {
+			Toast.makeText(this, e.getMessage(), Toast.LENGTH_SHORT).show();
+			return;
+		}
+		lastMatchPos = -1;
+		mAdapter.clear();
+		mAdapter.addAll(mLogReader.fillDown());
+		mListView.setSelection(numBefore);
+	}
+
+	/**
+	 * Searches for the current search text in the background. The first
+	 * search starts from the top of the lines that have been loaded, and each
+	 * search after that starts from the last match.
+	 * 
+	 * @param forward
+	 *            -- true to find the next match, false to find the previous
+	 */
+	private void find(boolean forward) {
+		if (mSearcher == null || mFindTask != null)
+			return;
+		final long start;
+		if (forward) {
+			start = (lastMatchPos >= 0) ? lastMatchPos + 1 : mLogReader
+					.getTopLinePos();
+		} else {
+			start = (lastMatchPos >= 0) ? lastMatchPos : mLogReader
+					.getBotLinePos();
+		}
+		mFindTask = new FindTask(mSearcher, start, forward);
+		mFindTask.execute();
+	}
+
+	/**
+	 * Moves the log reader to the line holding a match and reloads the adapter
+	 * from a few lines before it, so that the match is shown at the top of the
+	 * screen with the lines leading up to it just above.
+	 * 
+	 * @param pos
+	 *            -- the position of the match in the file
+	 */
+	private void showMatch(long pos) {
+		lastMatchPos = pos;
+		final int numBefore = mLogReader.jumpToOffset(pos, numEntriesToSave);
+		mAdapter.clear();
+		mAdapter.addAll(mLogReader.fillDown());
+		mListView.setSelection(numBefore);
+	}
+
+	/**
+	 * Starts a grep of the file for the lines described by the user's input.
+	 * Input between slashes, such as /err(or)?/, is a regular expression, and
+	 * anything else is plain text.
+	 * 
+	 * @param input
+	 *            -- the user's input
+	 */
+	private void filter(String input) {
+
+		if (mGrepTask != null || mLevelTask != null)
+			return;
+
+		final int contextLines = getContextLinesFromPrefs();
+
+		final LineGrep grep;
+		if (input.length() > 2 && input.startsWith("/") && input.endsWith("/")) {
+			try {
+				grep = mLogReader.newGrep(Pattern.compile(input.substring(1,
+						input.length() - 1)), contextLines);
+			} catch (PatternSyntaxException e) {
+				Toast.makeText(this, "Invalid regular expression",
+						Toast.LENGTH_SHORT).show();
+				return;
+			}
+		} else {
+			grep = mLogReader.newGrep(new ByteSearcher(input), contextLines);
+		}
+
+		mGrepTask = new GrepTask(grep);
+		mGrepTask.execute();
+
+	}
+
+	/**
+	 * @return the number of lines to show around each line found by a filter,
+	 *         or 0 if the preference is not a number
+	 */
+	private int getContextLinesFromPrefs() {
+		final String value = mPrefs.getString("filter_context_lines", "0");
+		try {
+			final int contextLines = Integer.parseInt(value.trim());
+			return Math.max(0, Math.min(contextLines, MAX_CONTEXT_LINES));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Asks the user for the least severe level to show, then finds the lines
+	 * at or above that level in the background
+	 */
+	private void showLevelChooser() {
+		final String[] names = new String[FILTER_LEVELS.length];
+		for (int i = 0; i < FILTER_LEVELS.length; i++) {
+			names[i] = FILTER_LEVELS[i].getName(this) + " and above";
+		}
+		new AlertDialog.Builder(this).setTitle("Filter by level")
+				.setItems(names, new DialogInterface.OnClickListener() {
+					@Override
+					public void onClick(DialogInterface dialog, int which) {
+						if (mLevelTask != null || mGrepTask != null)
+							return;
+						mLevelTask = new LevelTask(FILTER_LEVELS[which]);
+						mLevelTask.execute();
+					}
+				}).show();
+	}
+
+	/**
+	 * Shows only the given lines, starting from the top
+	 * 
+	 * @param selection
+	 *            -- the lines found by a grep or by level
+	 */
+	private void showSelection(LineSelection selection) {
+		if (selection.getNumMatches() == 0) {
+			Toast.makeText(this, "No lines found", Toast.LENGTH_SHORT).show();
+			updateTitle();
+			return;
+		}
+		lastMatchPos = -1;
+		mLogReader.setSelection(selection);
+		mAdapter.clear();
+		mAdapter.addAll(mLogReader.fillDown());
+		setScrollToTop();
+		updateTitle();
+	}
+
+	/**
+	 * Shows the number of lines in the title, or the number of lines found if
+	 * only the lines found by a grep are being shown
+	 */
+	private void updateTitle() {
+		final LineSelection selection = mLogReader.getSelection();
+		if (selection != null) {
+			setTitle(mFileName + " (" + selection.getNumMatches()
+					+ " matching lines)");
+		} else if (mLogReader.isIndexed()) {
+			setTitle(mFileName + " (" + mLogReader.getNumIndexedLines()
+					+ " lines)");
+		} else {
+			setTitle(mFileName);
+		}
+	}
+
+	/**
+	 * Shows a dialog asking the user for a single line of input
+	 * 
+	 * @param title
+	 *            -- the title of the dialog
+	 * @param message
+	 *            -- the message shown above the input box
+	 * @param confirmButtonStr
+	 *            -- the text of the confirm button
+	 * @param callback
+	 *            -- notified with the trimmed input when the user confirms
+	 */
+	private void makePrompt(String title, String message,
+			String confirmButtonStr, final PromptCallback callback) {
+		final Dialog dialog = new Dialog(this);
+		dialog.setTitle(title);
+		dialog.setContentView(R.layout.file_log_prompt_dialog);
+
+		final TextView messageView = (TextView) dialog
+				.findViewById(R.id.prompt_dialog_message);
+		final EditText inputEdit = (EditText) dialog
+				.findViewById(R.id.prompt_dialog_edit);
+		final Button confirmButton = (Button) dialog
+				.findViewById(R.id.prompt_dialog_confirm_button);
+		final Button cancelButton = (Button) dialog
+				.findViewById(R.id.prompt_dialog_cancel_button);
+
+		messageView.setText(message);
+		confirmButton.setText(confirmButtonStr);
+
+		cancelButton.setOnClickListener(new View.OnClickListener() {
+			@Override
+			public void onClick(View v) {
+				dialog.dismiss();
+			}
+		});
+
+		confirmButton.setOnClickListener(new View.OnClickListener() {
+			@Override
+			public void onClick(View v) {
+				final String input = inputEdit.getText().toString().trim();
+				dialog.dismiss();
+				if (!input.equals("")) {
+					callback.onConfirm(input);
+				}
+			}
+		});
+
+		dialog.show();
+	}
+
+	/**
+	 * Receives the input of a dialog made by makePrompt()
+	 */
+	private interface PromptCallback {
+		void onConfirm(String input);
+	}
+
+	/**
+	 * Opens the file and reads the first screen of lines in the background.
+	 * When it is done, the lines are shown and the IndexTask is started.
+	 */
+	private class OpenFileTask extends AsyncTask<Void, Void, List<LogElement>> {
+
+		private final String filepath;
+		private final int spreadLimit;
+		private FileLogReader reader;
+		private String errorMsg;
+
+		OpenFileTask(String filepath, int spreadLimit) {
+			this.filepath = filepath;
+			this.spreadLimit = spreadLimit;
+		}
+
+		@Override
+		protected List<LogElement> doInBackground(Void... params) {
+
+			try {
+				final List<File> files = RolledFiles.find(new File(filepath),
+						getIntent().getStringExtra(EXTRA_FILE_NAME_PATTERN));
+				reader = new FileLogReader(FileLogViewer.this, mHandler, files,
+						spreadLimit);
+			} catch (FileNotFoundException e) {
+				errorMsg = "Could not find file: " + filepath;
+				e.printStackTrace();
+				return null;
+			} catch (IOException e) {
+				errorMsg = "Error reading from file: " + filepath;
+				e.printStackTrace();
+				return null;
+			}
+
+			reader.setColored(mPrefs.getBoolean("colored_file_logs", true));
+			setupLayoutPattern(reader);
+			setupTimestampPatternFromPrefs(reader);
+			reader.start();
+
+			if (isCancelled())
+				return null;
+
+			return reader.fillDown();
+
+		}
+
+		@Override
+		protected void onPostExecute(List<LogElement> elements) {
+
+			if (errorMsg != null) {
+				Toast.makeText(FileLogViewer.this, errorMsg, Toast.LENGTH_LONG)
+						.show();
+				logger.error(errorMsg);
+				return;
+			}
+
+			FileLogViewer.super.mLogReader = mLogReader = reader;
+			if (isPaused.get())
+				mLogReader.pause();
+
+			mAdapter.addAll(elements);
+			logger.debug("Adapter count: {}  Spread limit: {}",
+					mAdapter.getCount(), mLogReader.getSpreadLimit());
+			mScrollListener = new FileOnScrollListener();
+			mListView.setOnScrollListener(mScrollListener);
+
+			mIndexTask = new IndexTask();
+			mIndexTask.execute();
+
+		}
+
+		@Override
+		protected void onCancelled() {
+			// We were destroyed before the log reader was handed over to us
+			if (reader != null)
+				reader.terminate();
+		}
+
+	}
+
+	/**
+	 * Counts the lines in the file in the background, a few megabytes at a
+	 * time, and shows how far it has gotten in the title. The file can be
+	 * scrolled in the meantime, but jumping to a line has to wait until the
+	 * lines have all been counted. If the file was counted the last time it
+	 * was opened, only the lines added since then are counted.
+	 * <p/>
+	 * The count is saved when it is done, or as far as it got if we are
+	 * destroyed first, so that it can be picked up again next time.
+	 */
+	private class IndexTask extends AsyncTask<Void, Long, Void> {
+
+		@Override
+		protected Void doInBackground(Void... params) {
+			final long startLength = mLogReader.getIndexedLength();
+			try {
+				while (!isCancelled() && !mLogReader.indexMore(INDEX_STEP)) {
+					publishProgress(mLogReader.getIndexedLength(),
+							mLogReader.length(),
+							(long) mLogReader.getNumIndexedLines());
+				}
+			} catch (IllegalStateException e) {
+				// The file was closed because we were destroyed mid-count
+				if (!isCancelled())
+					throw e;
+			}
+			if (mLogReader.getIndexedLength() != startLength)
+				mLogReader.saveIndex();
+			return null;
+		}
+
+		@Override
+		protected void onProgressUpdate(Long... progress) {
+			// Don't hide the number of lines found by a grep
+			if (mLogReader.getSelection() != null || mGrepTask != null)
+				return;
+			final long percent = (progress[1] == 0) ? 100 : 100 * progress[0]
+					/ progress[1];
+			setTitle(mFileName + " (counting lines: " + percent + "%, "
+					+ progress[2] + " lines)");
+		}
+
+		@Override
+		protected void onPostExecute(Void result) {
+			if (mGrepTask == null)
+				updateTitle();
+		}
+
+	}
+
+	/**
+	 * Searches the file for the next or previous match in the background
+	 */
+	private class FindTask extends AsyncTask<Void, Void, Long> {
+
+		private final ByteSearcher searcher;
+		private final long start;
+		private final boolean forward;
+
+		FindTask(ByteSearcher searcher, long start, boolean forward) {
+			this.searcher = searcher;
+			this.start = start;
+			this.forward = forward;
+		}
+
+		@Override
+		protected Long doInBackground(Void... params) {
+			try {
+				return forward ? mLogReader.findNext(searcher, start)
+						: mLogReader.findPrevious(searcher, start);
+			} catch (IllegalStateException e) {
+				// The file was closed because we were destroyed mid-search
+				if (isCancelled())
+					return -1L;
+				throw e;
+			}
+		}
+
+		@Override
+		protected void onPostExecute(Long pos) {
+			mFindTask = null;
+			if (pos < 0) {
+				final String msg = forward ? "No more matches below"
+						: "No more matches above";
+				Toast.makeText(FileLogViewer.this, msg, Toast.LENGTH_SHORT)
+						.show();
+				return;
+			}
+			showMatch(pos);
+		}
+
+	}
+
+	/**
+	 * Runs a grep of the file in the background, then shows only the lines it
+	 * found
+	 */
+	private class GrepTask extends AsyncTask<Void, Void, LineSelection> {
+
+		private final LineGrep grep;
+
+		GrepTask(LineGrep grep) {
+			this.grep = grep;
+		}
+
+		/**
+		 * Cancels the task and stops the grep's threads
+		 */
+		void stop() {
+			cancel(false);
+			grep.cancel();
+		}
+
+		@Override
+		protected void onPreExecute() {
+			setTitle(mFileName + " (filtering...)");
+		}
+
+		@Override
+		protected LineSelection doInBackground(Void... params) {
+			try {
+				return grep.run();
+			} catch (InterruptedException e) {
+				return null;
+			} catch (IllegalStateException e) {
+				// The file was closed because we were destroyed mid-grep
+				if (isCancelled())
+					return null;
+				throw e;
+			}
+		}
+
+		@Override
+		protected void onPostExecute(LineSelection selection) {
+			mGrepTask = null;
+			if (selection == null) {
+				updateTitle();
+				return;
+			}
+			showSelection(selection);
+		}
+
+	}
+
+	/**
+	 * Finds the lines at or above a level in the background, then shows only
+	 * those lines
+	 */
+	private class LevelTask extends AsyncTask<Void, Void, LineSelection> {
+
+		private final LogLevel minLevel;
+
+		LevelTask(LogLevel minLevel) {
+			this.minLevel = minLevel;
+		}
+
+		@Override
+		protected void onPreExecute() {
+			setTitle(mFileName + " (filtering...)");
+		}
+
+		@Override
+		protected LineSelection doInBackground(Void... params) {
+			try {
+				return mLogReader.selectLevels(minLevel);
+			} catch (IllegalStateException e) {
+				// The file was closed because we were destroyed mid-search
+				if (isCancelled())
+					return null;
+				throw e;
+			}
+		}
+
+		@Override
+		protected void onPostExecute(LineSelection selection) {
+			mLevelTask = null;
+			showSelection(selection);
+		}
+
+	}
+
+	/**
+	 * Moves to the end of the file and reads the lines above it in the
+	 * background, since the end may be in a compressed archive that has not
+	 * been inflated yet. The list is not loaded from while this runs.
+	 */
+	private class BottomTask extends AsyncTask<Void, Void, List<LogElement>> {
+
+		@Override
+		protected List<LogElement> doInBackground(Void... params) {
+			try {
+				mLogReader.jumpToEndOfFile();
+				return mLogReader.fillUp();
+			} catch (IllegalStateException e) {
+				// The file was closed because we were destroyed mid-read
+				if (isCancelled())
+					return null;
+				throw e;
+			}
+		}
+
+		@Override
+		protected void onPostExecute(List<LogElement> elements) {
+			mBottomTask = null;
+			mAdapter.clear();
+			mAdapter.addAll(elements);
+			setScrollToBottom();
+		}
+
+	}
+
 	/**
 	 * Helper method to get the extra out of the intent
 	 * 
@@ -220,7 +1051,7 @@ public class FileLogViewer extends LogViewerBase {
 		// the beginning of the file.
 		while ((firstInList != topMarker)
 				&& (nextElement != FileLogReader.END_OF_FILE)) {
-			mAdapter.remove((LogElement) firstInList);
+			mAdapter.remove(0);
 			mAdapter.add(nextElement);
 			firstInList = mListView.getItemAtPosition(0);
 			nextElement = mLogReader.scrollDown();
@@ -230,7 +1061,7 @@ public class FileLogViewer extends LogViewerBase {
 		// indicator, so we only do the final add/remove if we didn't reach
 		// the end of the file
 		if (nextElement != FileLogReader.END_OF_FILE) {
-			mAdapter.remove((LogElement) firstInList);
+			mAdapter.remove(0);
 			mAdapter.add(nextElement);
 		}
 
@@ -239,7 +1070,8 @@ public class FileLogViewer extends LogViewerBase {
 
 		assert (mAdapter.getCount() == mLogReader.getSpreadLimit());
 
-		mListView.setSelection(mAdapter.getPosition(firstVisible));
+		mListView.setSelection(mAdapter.indexOfElement(firstVisible));
+		mScrollListener.resetTracking();
 
 	}
 
@@ -283,7 +1115,7 @@ public class FileLogViewer extends LogViewerBase {
 		// the beginning of the file.
 		while ((lastInList != endMarker)
 				&& (nextElement != FileLogReader.BEG_OF_FILE)) {
-			mAdapter.remove((LogElement) lastInList);
+			mAdapter.remove(mAdapter.getCount() - 1);
 			mAdapter.insert(nextElement, 0);
 			lastInList = mListView.getItemAtPosition(mAdapter.getCount() - 1);
 			nextElement = mLogReader.scrollUp();
@@ -293,7 +1125,7 @@ public class FileLogViewer extends LogViewerBase {
 		// indicator, so we only do the final add/remove if we didn't reach
 		// the end of the file
 		if (nextElement != FileLogReader.BEG_OF_FILE) {
-			mAdapter.remove((LogElement) lastInList);
+			mAdapter.remove(mAdapter.getCount() - 1);
 			mAdapter.insert(nextElement, 0);
 		}
 
@@ -301,7 +1133,8 @@ public class FileLogViewer extends LogViewerBase {
 				mAdapter.getCount(), mLogReader.getSpreadLimit());
 		assert (mAdapter.getCount() == mLogReader.getSpreadLimit());
 
-		mListView.setSelection(mAdapter.getPosition(firstVisible));
+		mListView.setSelection(mAdapter.indexOfElement(firstVisible));
+		mScrollListener.resetTracking();
 
 	}
 
@@ -320,9 +1153,64 @@ public class FileLogViewer extends LogViewerBase {
 		return true;
 	}
 
+	/**
+	 * Starts decoding the lines past one edge of the list in the background,
+	 * unless that is already being done
+	 * 
+	 * @param forward
+	 *            -- true for the lines below the list, false for those above
+	 * @param numLines
+	 *            -- how many lines to decode
+	 * @return true if the lines are being decoded
+	 */
+	private boolean prefetch(boolean forward, int numLines) {
+		if (mPrefetchTask != null)
+			return false;
+		mPrefetchTask = new PrefetchTask(forward, numLines);
+		mPrefetchTask.execute();
+		return true;
+	}
+
+	/**
+	 * Decodes the lines past one edge of the list into the log reader's page
+	 * cache, so that they can be added to the list without touching the file
+	 * once the user scrolls to that edge
+	 */
+	private class PrefetchTask extends AsyncTask<Void, Void, Void> {
+
+		private final boolean forward;
+		private final int numLines;
+
+		PrefetchTask(boolean forward, int numLines) {
+			this.forward = forward;
+			this.numLines = numLines;
+		}
+
+		@Override
+		protected Void doInBackground(Void... params) {
+			try {
+				mLogReader.prefetch(forward, numLines);
+			} catch (IllegalStateException e) {
+				// The file was closed because we were destroyed mid-prefetch
+				if (!isCancelled())
+					throw e;
+			}
+			return null;
+		}
+
+		@Override
+		protected void onPostExecute(Void result) {
+			mPrefetchTask = null;
+		}
+
+	}
+
 	/**
 	 * This inner clas allows us to monitor the user's scrolling and determine
-	 * when we need to load more lines from our log reader
+	 * when we need to load more lines from our log reader. It also tracks the
+	 * direction and speed of the scrolling, and when the user is about to
+	 * reach an edge of the list at that speed, the lines past that edge are
+	 * prefetched so that loading them does not stall.
 	 * 
 	 * @author Nick King
 	 * 
@@ -331,6 +1219,17 @@ public class FileLogViewer extends LogViewerBase {
 
 		private FileLogViewer parent = FileLogViewer.this;
 
+		/* The last first visible item and when it changed */
+		private int lastFirstVisible = -1;
+		private long lastScrollTime;
+
+		/** a smoothed speed in lines per second, negative when scrolling up */
+		private float velocity = 0;
+
+		/* The edge of the file last prefetched from, so it is only done once */
+		private long lastPrefetchPos = -1;
+		private boolean lastPrefetchForward;
+
 		@Override
 		public void onScrollStateChanged(AbsListView view, int scrollState) {
 			final int firstVisiblePosition = parent.mListView
@@ -342,6 +1241,10 @@ public class FileLogViewer extends LogViewerBase {
 			final boolean atEndOfList = (lastVisiblePosition + 1 == totalItemCount);
 			final boolean atBeginningOfList = (firstVisiblePosition == 0);
 
+			// The list is about to be replaced by the lines at the bottom
+			if (parent.mBottomTask != null)
+				return;
+
 			if (atEndOfList) {
 				parent.loadDown(firstVisiblePosition, lastVisiblePosition);
 			} else if (atBeginningOfList) {
@@ -352,7 +1255,54 @@ public class FileLogViewer extends LogViewerBase {
 		@Override
 		public void onScroll(AbsListView view, int firstVisibleItem,
 				int visibleItemCount, int totalItemCount) {
-			// Do nothing
+
+			final long now = SystemClock.uptimeMillis();
+			if (lastFirstVisible >= 0 && firstVisibleItem != lastFirstVisible) {
+				final long elapsed = Math.max(1, now - lastScrollTime);
+				final float speed = 1000f
+						* (firstVisibleItem - lastFirstVisible) / elapsed;
+				velocity = (velocity + speed) / 2;
+				lastScrollTime = now;
+			} else if (lastFirstVisible < 0) {
+				lastScrollTime = now;
+			}
+			lastFirstVisible = firstVisibleItem;
+
+			if (velocity == 0 || totalItemCount == 0)
+				return;
+
+			final boolean forward = velocity > 0;
+			final int remaining = forward ? totalItemCount
+					- (firstVisibleItem + visibleItemCount) : firstVisibleItem;
+			final float lookahead = visibleItemCount + Math.abs(velocity)
+					* PREFETCH_LOOKAHEAD;
+			if (remaining > lookahead)
+				return;
+
+			// Each load adds about half of the spread, and a fast fling may
+			// go through more than one load
+			final int spreadLimit = mLogReader.getSpreadLimit();
+			final int numLines = Math.min(spreadLimit, spreadLimit / 2
+					+ (int) (Math.abs(velocity) * PREFETCH_LOOKAHEAD));
+
+			final long edge = forward ? mLogReader.getBotLinePos()
+					: mLogReader.getTopLinePos();
+			if (edge == lastPrefetchPos && forward == lastPrefetchForward)
+				return;
+			if (prefetch(forward, numLines)) {
+				lastPrefetchPos = edge;
+				lastPrefetchForward = forward;
+			}
+
+		}
+
+		/**
+		 * Forgets the last scroll position after the list has been reloaded,
+		 * so that the jump in positions is not taken for scrolling
+		 */
+		void resetTracking() {
+			lastFirstVisible = -1;
+			velocity = 0;
 		}
 
 	}
@@ -144,7 +144,7 @@ public class LogViewerBase extends ListActivity {
 		if (mLogReader.isColored()) {
 			for (int i = 0; i < mAdapter.getCount(); i++) {
 				LogElement element = mAdapter.getItem(i);
-				element.setLogLevel(LogReader.getCorrespondingLevel(element.getMessage()));
+				element.setLogLevel(mLogReader.findLevel(element));
 			}
 		} else {
 			for (int i = 0; i < mAdapter.getCount(); i++) {
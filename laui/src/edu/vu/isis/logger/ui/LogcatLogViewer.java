@@ -11,7 +11,6 @@ purpose whatsoever, and to have or authorize others to do so.
 package edu.vu.isis.logger.ui;
 
 import java.io.IOException;
-import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.content.Intent;
@@ -23,7 +22,7 @@ import android.view.MotionEvent;
 import android.view.View;
 import android.view.View.OnTouchListener;
 import android.widget.Toast;
-import edu.vu.isis.logger.util.LogElement;
+import edu.vu.isis.logger.util.LogcatArguments;
 import edu.vu.isis.logger.util.LogcatLogReader;
 
 /**
@@ -55,16 +54,18 @@ public class LogcatLogViewer extends LogViewerBase {
 			switch (msg.what) {
 			case LogcatLogReader.CONCAT_DATA_MSG:
 				if (msg.obj != null) {
-					@SuppressWarnings("unchecked")
-					final List<LogElement> elemList = (List<LogElement>) msg.obj;
+					final LogcatLogReader.Batch batch =
+							(LogcatLogReader.Batch) msg.obj;
 					final int lastVisiblePos = mListView
 							.getLastVisiblePosition();
 					final int adapterCount = mAdapter.getCount();
 					final boolean jumpDown = (lastVisiblePos == adapterCount - 1)
 							|| alwaysJump.get();
-					mAdapter.addAll(elemList);
+					mAdapter.addAll(batch.elements);
 					if (jumpDown)
 						mListView.setSelection(mAdapter.getCount() - 1);
+					// Let the log reader send the next batch
+					batch.consumed();
 				}
 				break;
 			case LogcatLogReader.NOTIFY_INVALID_REGEX_MSG:
@@ -94,10 +95,21 @@ public class LogcatLogViewer extends LogViewerBase {
 
 		});
 
+		configureMaxLinesFromPrefs();
+
+		if (mLogReader != null) {
+			// We changed configurations, and the log reader kept running, so
+			// it only has to send to our new Handler
+			mLogReader.setHandler(mHandler);
+			return;
+		}
+
 		String regex = mPrefs.getString("regular_expression", "");
 
-		openLogReader(regex);
-		configureMaxLinesFromPrefs();
+		openLogReader(regex, getArgumentsFromPrefs(),
+				mPrefs.getBoolean("binary_logcat", false));
+		if (mLogReader == null)
+			return;
 		setupColoringFromPrefs("colored_logcat_logs");
 		mLogReader.start();
 	}
@@ -131,13 +143,20 @@ public class LogcatLogViewer extends LogViewerBase {
 
 		configureMaxLinesFromPrefs();
 		String regex = mPrefs.getString("regular_expression", "");
+		LogcatArguments arguments = getArgumentsFromPrefs();
+		boolean binary = mPrefs.getBoolean("binary_logcat", false);
+		LogcatLogReader reader = (LogcatLogReader) mLogReader;
 		boolean startReader = false;
-		if (!regex.equals(((LogcatLogReader) mLogReader).getRegex())) {
-			openLogReader(regex);
+		if (!regex.equals(reader.getRegex())
+				|| !arguments.equals(reader.getArguments())
+				|| binary != reader.isBinary()) {
+			openLogReader(regex, arguments, binary);
+			if (mLogReader == null)
+				return;
 			// The intended behavior is for the LogReader to resume regardless
-			// of whether or not it was previously paused if the regex was
-			// changed. We want to reread everything and compare it all
-			// against the new regex.
+			// of whether or not it was previously paused if the regex or the
+			// way Logcat is run was changed. We want to reread everything and
+			// compare it all against the new regex.
 			isPaused.set(false);
 			mAdapter.clear();
 			startReader = true;
@@ -164,9 +183,17 @@ public class LogcatLogViewer extends LogViewerBase {
 
 	}
 
-	private void openLogReader(String regex) {
+	private void openLogReader(String regex, LogcatArguments arguments,
+			boolean binary) {
+		// Stop the old log reader's thread and Logcat process before they are
+		// lost
+		if (mLogReader != null) {
+			mLogReader.terminate();
+			mLogReader = null;
+		}
 		try {
-			mLogReader = new LogcatLogReader(this, mHandler, regex);
+			mLogReader = new LogcatLogReader(this, mHandler, regex, arguments,
+					binary);
 		} catch (IOException e) {
 			final String errorMsg = "Could not read from Logcat";
 			logger.error(errorMsg);
@@ -176,6 +203,23 @@ public class LogcatLogViewer extends LogViewerBase {
 		}
 	}
 
+	/**
+	 * Parse the Logcat arguments given in the preferences. If they are invalid,
+	 * the user is told why and Logcat is run without any.
+	 */
+	private LogcatArguments getArgumentsFromPrefs() {
+		String text = mPrefs.getString("logcat_arguments", "");
+		try {
+			return LogcatArguments.parse(text);
+		} catch (IllegalArgumentException e) {
+			final String errorMsg = "Invalid logcat arguments: "
+					+ e.getMessage();
+			logger.error(errorMsg);
+			Toast.makeText(this, errorMsg, Toast.LENGTH_LONG).show();
+			return LogcatArguments.parse(null);
+		}
+	}
+
 	/**
 	 * Set our list adapter's max lines as specified in the preferences
 	 */
@@ -238,10 +238,23 @@ public class LoggerEditor extends ListActivity {
 					.getColumnIndex(LauiContentProvider.AppenderTable.NAME);
 			final int filepathIndex = cursor
 					.getColumnIndex(LauiContentProvider.AppenderTable.FILE_PATH_STRING);
+			// Older versions of the provider do not have this column
+			final int fileNamePatternIndex = cursor
+					.getColumnIndex(LauiContentProvider.AppenderTable.FILE_NAME_PATTERN_STRING);
+			final int encoderPatternIndex = cursor
+					.getColumnIndex(LauiContentProvider.AppenderTable.ENCODER_PATTERN_STRING);
 			while (cursor.moveToNext()) {
 				String name = cursor.getString(nameIndex);
 				AppenderHolder appender = new AppenderHolder(name);
 				appender.filepath = cursor.getString(filepathIndex);
+				if (fileNamePatternIndex >= 0) {
+					appender.fileNamePattern = cursor
+							.getString(fileNamePatternIndex);
+				}
+				if (encoderPatternIndex >= 0) {
+					appender.encoderPattern = cursor
+							.getString(encoderPatternIndex);
+				}
 
 				appenderList.add(appender);
 				appenderMap.put(appender.name, appender);
@@ -765,6 +778,10 @@ public class LoggerEditor extends ListActivity {
 					Intent intent = new Intent().setClass(LoggerEditor.this,
 							FileLogViewer.class);
 					intent.putExtra(LogViewerBase.EXTRA_NAME, a.filepath);
+					intent.putExtra(FileLogViewer.EXTRA_FILE_NAME_PATTERN,
+							a.fileNamePattern);
+					intent.putExtra(FileLogViewer.EXTRA_ENCODER_PATTERN,
+							a.encoderPattern);
 					startActivity(intent);
 					dialog.dismiss();
 				}
@@ -772,6 +789,51 @@ public class LoggerEditor extends ListActivity {
 			ll.addView(button);
 		}
 
+		final List<AppenderHolder> fileAppenders =
+				new ArrayList<AppenderHolder>();
+		for (AppenderHolder a : appenderList) {
+			if (a.hasFilepath())
+				fileAppenders.add(a);
+		}
+
+		if (!fileAppenders.isEmpty()) {
+			Button mergeButton = new Button(this);
+			mergeButton.setWidth(ViewGroup.LayoutParams.MATCH_PARENT);
+			mergeButton.setHeight(ViewGroup.LayoutParams.WRAP_CONTENT);
+			mergeButton.setText("Merge all logs");
+			mergeButton.setOnClickListener(new View.OnClickListener() {
+
+				@Override
+				public void onClick(View v) {
+					final int size = fileAppenders.size();
+					final String[] names = new String[size];
+					final String[] filepaths = new String[size];
+					final String[] fileNamePatterns = new String[size];
+					final String[] encoderPatterns = new String[size];
+					for (int i = 0; i < size; i++) {
+						final AppenderHolder a = fileAppenders.get(i);
+						names[i] = a.name;
+						filepaths[i] = a.filepath;
+						fileNamePatterns[i] = a.fileNamePattern;
+						encoderPatterns[i] = a.encoderPattern;
+					}
+
+					Intent intent = new Intent().setClass(LoggerEditor.this,
+							MergedLogViewer.class);
+					intent.putExtra(MergedLogViewer.EXTRA_NAMES, names);
+					intent.putExtra(MergedLogViewer.EXTRA_FILEPATHS, filepaths);
+					intent.putExtra(MergedLogViewer.EXTRA_FILE_NAME_PATTERNS,
+							fileNamePatterns);
+					intent.putExtra(MergedLogViewer.EXTRA_ENCODER_PATTERNS,
+							encoderPatterns);
+					intent.putExtra(MergedLogViewer.EXTRA_INCLUDE_LOGCAT, true);
+					startActivity(intent);
+					dialog.dismiss();
+				}
+			});
+			ll.addView(mergeButton);
+		}
+
 		dialog.show();
 	}
 
@@ -1288,6 +1350,8 @@ public class LoggerEditor extends ListActivity {
 
 		String name;
 		String filepath;
+		String fileNamePattern;
+		String encoderPattern;
 
 		@SuppressWarnings("unused")
 		private AppenderHolder() {
@@ -0,0 +1,548 @@
+/*Copyright (C) 2010-2012 Institute for Software Integrated Systems (ISIS)
+This software was developed by the Institute for Software Integrated
+Systems (ISIS) at Vanderbilt University, Tennessee, USA for the
+Transformative Apps program under DARPA, Contract # HR011-10-C-0175.
+The United States Government has unlimited rights to this software.
+The US government has the right to use, modify, reproduce, release,
+perform, display, or disclose computer software or computer software
+documentation in whole or in part, in any manner and for any
+purpose whatsoever, and to have or authorize others to do so.
+*/
+package edu.vu.isis.logger.ui;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Intent;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Message;
+import android.view.Display;
+import android.view.LayoutInflater;
+import android.view.MenuItem;
+import android.view.View;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
+import android.widget.TextView;
+import android.widget.Toast;
+import edu.vu.isis.logger.R;
+import edu.vu.isis.logger.util.FileMergeSource;
+import edu.vu.isis.logger.util.LogElement;
+import edu.vu.isis.logger.util.LogElementAdapter;
+import edu.vu.isis.logger.util.LogcatArguments;
+import edu.vu.isis.logger.util.LogcatMergeSource;
+import edu.vu.isis.logger.util.MergeSource;
+import edu.vu.isis.logger.util.MergedLogReader;
+import edu.vu.isis.logger.util.PatternLayoutParser;
+import edu.vu.isis.logger.util.RolledFiles;
+import edu.vu.isis.logger.util.TimestampParser;
+
+/**
+ * A log viewer that displays the logs of several file appenders, and
+ * optionally Logcat, merged into one list in order by time. Each row is tagged
+ * with the name of the log it came from, so that what happened in different
+ * parts of an application can be lined up.
+ *
+ * Like the FileLogViewer, this log viewer only loads enough rows to allow the
+ * user to scroll smoothly, and loads more in the direction of the scrolling
+ * when the user reaches an edge of the list. The merged log is opened at its
+ * end, and new rows are added to the bottom while the user is looking at it.
+ *
+ * @author Nick King
+ *
+ */
+public class MergedLogViewer extends LogViewerBase {
+
+	/** The name of the String array extra holding the name of each log */
+	public static final String EXTRA_NAMES = "names";
+
+	/** The name of the String array extra holding the path of each log */
+	public static final String EXTRA_FILEPATHS = "filepaths";
+
+	/**
+	 * The name of the optional String array extra holding the file name
+	 * pattern of each log's rolling file appender, or null for each log that
+	 * is not rolled over
+	 */
+	public static final String EXTRA_FILE_NAME_PATTERNS = "file_name_patterns";
+
+	/**
+	 * The name of the optional String array extra holding the pattern of each
+	 * log's encoder, or null for each log whose pattern is not known
+	 */
+	public static final String EXTRA_ENCODER_PATTERNS = "encoder_patterns";
+
+	/** The name of the boolean extra telling whether to merge in Logcat */
+	public static final String EXTRA_INCLUDE_LOGCAT = "include_logcat";
+
+	private static final String LOGCAT_NAME = "logcat";
+
+	private OpenTask mOpenTask;
+	private int numEntriesToSave;
+	private long lastToastTime = 0;
+
+	/*
+	 * Whether new entries were found while the logs were being opened, before
+	 * the log reader was handed over to us
+	 */
+	private boolean isNewDataPending = false;
+
+	public final Handler mHandler = new Handler() {
+
+		@Override
+		public void handleMessage(Message msg) {
+			if (mLogReader == null) {
+				// The logs are still being opened, so the new entries are
+				// taken in once they have been
+				if (msg.what == MergedLogReader.NEW_DATA_MSG)
+					isNewDataPending = true;
+				return;
+			}
+			switch (msg.what) {
+			case MergedLogReader.NEW_DATA_MSG:
+				appendNewRows();
+				break;
+			default:
+				logger.error("Handler received malformed message");
+			}
+		}
+
+	};
+
+	@Override
+	public void onCreate(Bundle savedInstanceState) {
+
+		super.onCreate(savedInstanceState);
+
+		final Display display = getWindowManager().getDefaultDisplay();
+		@SuppressWarnings("deprecation")
+		final int width = display.getWidth();
+		@SuppressWarnings("deprecation")
+		final int height = display.getHeight();
+		final int largestDimension = Math.max(width, height);
+
+		final LayoutInflater inflater = getLayoutInflater();
+		final View row = inflater.inflate(R.layout.log_display_row, null);
+		final TextView tv = (TextView) row.findViewById(R.id.log_display_row);
+
+		final float textSize = tv.getTextSize();
+		final int numLinesOnScreen = (int) (largestDimension / textSize);
+		numEntriesToSave = 2 * numLinesOnScreen;
+		final int numRows = 2 * (numLinesOnScreen + numEntriesToSave);
+
+		final String[] filepaths = getIntent().getStringArrayExtra(
+				EXTRA_FILEPATHS);
+		if (filepaths == null) {
+			logger.error("Received intent without extra for filepaths");
+			Toast.makeText(this, "Received invalid Intent", Toast.LENGTH_LONG)
+					.show();
+			return;
+		}
+
+		if (mLogReader != null) {
+			// We changed configurations, and the log reader kept running with
+			// the adapter, so it only has to send to our new Handler. Any
+			// entries found while it was sending to the old one are taken in.
+			mLogReader.setHandler(mHandler);
+			getMergedLogReader().sourcesRefreshed();
+			setTitle("Merged: " + getMergedLogReader().getSourceNames());
+			mListView.setOnScrollListener(new MergedOnScrollListener());
+			return;
+		}
+
+		setTitle("Merged logs");
+		mAdapter = new LogElementAdapter(this, R.layout.log_display_row);
+		mListView.setAdapter(mAdapter);
+
+		// Opening the logs and reading the first screen may take a while, so
+		// it is done in the background
+		mOpenTask = new OpenTask(filepaths, numRows);
+		mOpenTask.execute();
+
+	}
+
+	@Override
+	public void onDestroy() {
+		// Stop opening the logs before the log reader is terminated
+		if (mOpenTask != null)
+			mOpenTask.cancel(false);
+		super.onDestroy();
+	}
+
+	/**
+	 * @return the log reader, or null if the logs are still being opened
+	 */
+	private MergedLogReader getMergedLogReader() {
+		return (MergedLogReader) mLogReader;
+	}
+
+	@Override
+	public boolean onOptionsItemSelected(MenuItem item) {
+		if (mLogReader == null) {
+			Toast.makeText(this, "The logs are still being opened",
+					Toast.LENGTH_SHORT).show();
+			return true;
+		}
+		boolean returnValue = true;
+		switch (item.getItemId()) {
+		case JUMP_BOTTOM_MENU:
+			showBottom();
+			break;
+		case JUMP_TOP_MENU:
+			getMergedLogReader().jumpToBeginningOfFile();
+			mAdapter.clear();
+			mAdapter.addAll(getMergedLogReader().fillDown());
+			setScrollToTop();
+			break;
+		case OPEN_PREFS_MENU:
+			mLogReader.pause();
+			Intent intent = new Intent().setClass(this,
+					LogViewerPreferences.class);
+			startActivityForResult(intent, 0);
+			break;
+		default:
+			returnValue = false;
+		}
+		return returnValue || super.onOptionsItemSelected(item);
+	}
+
+	@Override
+	public void onActivityResult(int requestCode, int resultCode, Intent data) {
+		if (mLogReader == null)
+			return;
+		boolean wasColored = mLogReader.isColored();
+		setupColoringFromPrefs("colored_file_logs");
+		if (wasColored != mLogReader.isColored()) {
+			// The rows only know the level of their first line once they have
+			// been read, so they are read again
+			showBottom();
+		}
+		if (!isPaused.get())
+			mLogReader.resume();
+	}
+
+	/**
+	 * Reloads the adapter from the end of the merged log
+	 */
+	private void showBottom() {
+		getMergedLogReader().jumpToEndOfFile();
+		mAdapter.clear();
+		mAdapter.addAll(getMergedLogReader().fillUp());
+		setScrollToBottom();
+	}
+
+	/**
+	 * Lets the log reader take in the entries found in the logs, and if the
+	 * user is looking at the last row, adds the new rows to the bottom of the
+	 * list, clearing as many rows from the top as needed to stay within the
+	 * spread limit
+	 */
+	private void appendNewRows() {
+
+		final MergedLogReader reader = getMergedLogReader();
+		reader.sourcesRefreshed();
+
+		if (mListView.getLastVisiblePosition() != mAdapter.getCount() - 1)
+			return;
+
+		final int spreadLimit = reader.getSpreadLimit();
+		for (int i = 0; i < spreadLimit; i++) {
+			final LogElement nextElement = reader.scrollDown();
+			if (nextElement == MergedLogReader.END_OF_FILE)
+				break;
+			mAdapter.add(nextElement);
+			if (mAdapter.getCount() > spreadLimit)
+				mAdapter.remove(0);
+		}
+
+		mListView.setSelection(mAdapter.getCount() - 1);
+
+	}
+
+	/**
+	 * Makes a source for each log named in the Intent, reading the timestamps
+	 * of each with the date pattern of its encoder if it has one and with the
+	 * one in the preferences otherwise. A log that cannot be opened is left
+	 * out, and its name is added to the given list.
+	 */
+	private List<MergeSource> openSources(String[] filepaths,
+			List<String> failed) {
+
+		final Intent intent = getIntent();
+		final String[] names = intent.getStringArrayExtra(EXTRA_NAMES);
+		final String[] fileNamePatterns = intent
+				.getStringArrayExtra(EXTRA_FILE_NAME_PATTERNS);
+		final String[] encoderPatterns = intent
+				.getStringArrayExtra(EXTRA_ENCODER_PATTERNS);
+		final String prefsDatePattern = mPrefs.getString("file_date_pattern",
+				TimestampParser.DEFAULT_PATTERN).trim();
+
+		final List<MergeSource> sources = new ArrayList<MergeSource>();
+
+		for (int i = 0; i < filepaths.length; i++) {
+
+			final String name = (names != null && names[i] != null) ? names[i]
+					: new File(filepaths[i]).getName();
+
+			PatternLayoutParser layout = null;
+			if (encoderPatterns != null && encoderPatterns[i] != null) {
+				try {
+					layout = new PatternLayoutParser(encoderPatterns[i]);
+				} catch (IllegalArgumentException e) {
+					logger.error("Could not parse the encoder pattern: {}",
+							encoderPatterns[i]);
+				}
+			}
+			final String datePattern = (layout != null && layout
+					.getDatePattern() != null) ? layout.getDatePattern()
+					: prefsDatePattern;
+
+			try {
+				final List<File> files = RolledFiles.find(new File(
+						filepaths[i]), (fileNamePatterns == null) ? null
+						: fileNamePatterns[i]);
+				sources.add(new FileMergeSource(name, files, getCacheDir(),
+						datePattern, layout));
+			} catch (IOException e) {
+				logger.error("Error reading from file: {}", filepaths[i]);
+				failed.add(name);
+			} catch (IllegalArgumentException e) {
+				// The file has no timestamps that we can read
+				logger.error(e.getMessage());
+				failed.add(name);
+			}
+
+		}
+
+		if (intent.getBooleanExtra(EXTRA_INCLUDE_LOGCAT, false)) {
+			final String arguments = mPrefs.getString("logcat_arguments", "");
+			try {
+				sources.add(new LogcatMergeSource(LOGCAT_NAME,
+						LogcatMergeSource.DEFAULT_CAPACITY, LogcatArguments
+								.parse(arguments)));
+			} catch (IOException e) {
+				logger.error("Could not run logcat");
+				failed.add(LOGCAT_NAME);
+			} catch (IllegalArgumentException e) {
+				logger.error("Invalid logcat arguments: {}", e.getMessage());
+				failed.add(LOGCAT_NAME);
+			}
+		}
+
+		return sources;
+
+	}
+
+	/**
+	 * Opens the logs and reads the last screen of the merged log in the
+	 * background, then hands the log reader over to the Activity
+	 */
+	private class OpenTask extends AsyncTask<Void, Void, List<LogElement>> {
+
+		private final String[] filepaths;
+		private final int spreadLimit;
+		private final List<String> failed = new ArrayList<String>();
+		private MergedLogReader reader;
+
+		OpenTask(String[] filepaths, int spreadLimit) {
+			this.filepaths = filepaths;
+			this.spreadLimit = spreadLimit;
+		}
+
+		@Override
+		protected List<LogElement> doInBackground(Void... params) {
+
+			final List<MergeSource> sources = openSources(filepaths, failed);
+			if (sources.isEmpty())
+				return null;
+
+			reader = new MergedLogReader(MergedLogViewer.this, mHandler,
+					sources, spreadLimit);
+			reader.setColored(mPrefs.getBoolean("colored_file_logs", true));
+			reader.start();
+
+			if (isCancelled())
+				return null;
+
+			reader.jumpToEndOfFile();
+			return reader.fillUp();
+
+		}
+
+		@Override
+		protected void onPostExecute(List<LogElement> elements) {
+
+			if (!failed.isEmpty()) {
+				Toast.makeText(MergedLogViewer.this,
+						"Could not merge: " + failed, Toast.LENGTH_LONG)
+						.show();
+			}
+			if (reader == null)
+				return;
+
+			if (isCancelled()) {
+				// We were destroyed after the logs were opened but before the
+				// log reader could be handed over to us
+				reader.terminate();
+				return;
+			}
+
+			mLogReader = reader;
+			if (isPaused.get())
+				mLogReader.pause();
+
+			setTitle("Merged: " + reader.getSourceNames());
+			mAdapter.addAll(elements);
+			setScrollToBottom();
+			mListView.setOnScrollListener(new MergedOnScrollListener());
+
+			if (isNewDataPending) {
+				isNewDataPending = false;
+				appendNewRows();
+			}
+
+		}
+
+		@Override
+		protected void onCancelled() {
+			// We were destroyed before the log reader was handed over to us
+			if (reader != null)
+				reader.terminate();
+		}
+
+	}
+
+	/**
+	 * Loads rows downwards after the user has reached the bottom of the list.
+	 * For each row added, a row is cleared from the top, so that the rows in
+	 * the adapter are exactly those between the log reader's markers.
+	 *
+	 * @param firstVisiblePosition
+	 *            -- the position of the first row on screen
+	 */
+	private void loadDown(int firstVisiblePosition) {
+
+		final MergedLogReader reader = getMergedLogReader();
+		if (reader.atEndOfFile()) {
+			if (enoughTimePassed())
+				Toast.makeText(this, "End of logs", Toast.LENGTH_SHORT).show();
+			return;
+		}
+
+		final Object topMarker = mListView
+				.getItemAtPosition(firstVisiblePosition - numEntriesToSave);
+		final LogElement firstVisible = (LogElement) mListView
+				.getItemAtPosition(firstVisiblePosition);
+
+		Object firstInList = mListView.getItemAtPosition(0);
+		LogElement nextElement = reader.scrollDown();
+
+		while ((firstInList != topMarker)
+				&& (nextElement != MergedLogReader.END_OF_FILE)) {
+			mAdapter.add(nextElement);
+			if (mAdapter.getCount() > reader.getSpreadLimit())
+				mAdapter.remove(0);
+			firstInList = mListView.getItemAtPosition(0);
+			nextElement = reader.scrollDown();
+		}
+
+		if (nextElement != MergedLogReader.END_OF_FILE) {
+			mAdapter.add(nextElement);
+			if (mAdapter.getCount() > reader.getSpreadLimit())
+				mAdapter.remove(0);
+		}
+
+		mListView.setSelection(mAdapter.indexOfElement(firstVisible));
+
+	}
+
+	/**
+	 * Loads rows upwards after the user has reached the top of the list. For
+	 * each row added, a row is cleared from the bottom.
+	 *
+	 * @param firstVisiblePosition
+	 *            -- the position of the first row on screen
+	 * @param lastVisiblePosition
+	 *            -- the position of the last row on screen
+	 */
+	private void loadUp(int firstVisiblePosition, int lastVisiblePosition) {
+
+		final MergedLogReader reader = getMergedLogReader();
+		if (reader.atBegOfFile()) {
+			if (enoughTimePassed())
+				Toast.makeText(this, "Beginning of logs", Toast.LENGTH_SHORT)
+						.show();
+			return;
+		}
+
+		final Object endMarker = mListView
+				.getItemAtPosition(lastVisiblePosition + numEntriesToSave);
+		final LogElement firstVisible = (LogElement) mListView
+				.getItemAtPosition(firstVisiblePosition);
+
+		Object lastInList = mListView
+				.getItemAtPosition(mAdapter.getCount() - 1);
+		LogElement nextElement = reader.scrollUp();
+
+		while ((lastInList != endMarker)
+				&& (nextElement != MergedLogReader.BEG_OF_FILE)) {
+			mAdapter.insert(nextElement, 0);
+			if (mAdapter.getCount() > reader.getSpreadLimit())
+				mAdapter.remove(mAdapter.getCount() - 1);
+			lastInList = mListView.getItemAtPosition(mAdapter.getCount() - 1);
+			nextElement = reader.scrollUp();
+		}
+
+		if (nextElement != MergedLogReader.BEG_OF_FILE) {
+			mAdapter.insert(nextElement, 0);
+			if (mAdapter.getCount() > reader.getSpreadLimit())
+				mAdapter.remove(mAdapter.getCount() - 1);
+		}
+
+		mListView.setSelection(mAdapter.indexOfElement(firstVisible));
+
+	}
+
+	/**
+	 * Determines if enough time has passed since our last toast to display a
+	 * new toast, so that the user is not flooded with them at either end of
+	 * the merged log
+	 */
+	private boolean enoughTimePassed() {
+		final long now = System.currentTimeMillis();
+		if (now - lastToastTime < 2000)
+			return false;
+		lastToastTime = now;
+		return true;
+	}
+
+	/**
+	 * Loads more rows when the user stops scrolling at either edge of the
+	 * list
+	 */
+	private class MergedOnScrollListener implements OnScrollListener {
+
+		@Override
+		public void onScrollStateChanged(AbsListView view, int scrollState) {
+			final int firstVisiblePosition = mListView
+					.getFirstVisiblePosition();
+			final int lastVisiblePosition = mListView.getLastVisiblePosition();
+
+			if (lastVisiblePosition + 1 == mAdapter.getCount()) {
+				loadDown(firstVisiblePosition);
+			} else if (firstVisiblePosition == 0) {
+				loadUp(firstVisiblePosition, lastVisiblePosition);
+			}
+		}
+
+		@Override
+		public void onScroll(AbsListView view, int firstVisibleItem,
+				int visibleItemCount, int totalItemCount) {
+		}
+
+	}
+
+}
@@ -0,0 +1,287 @@
+/*Copyright (C) 2010-2012 Institute for Software Integrated Systems (ISIS)
+This software was developed by the Institute for Software Integrated
+Systems (ISIS) at Vanderbilt University, Tennessee, USA for the
+Transformative Apps program under DARPA, Contract # HR011-10-C-0175.
+The United States Government has unlimited rights to this software.
+The US government has the right to use, modify, reproduce, release,
+perform, display, or disclose computer software or computer software
+documentation in whole or in part, in any manner and for any
+purpose whatsoever, and to have or authorize others to do so.
+ */
+package edu.vu.isis.logger.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A FileBuffer whose bytes are loaded in fixed-size segments. Subclasses decide
+ * how a segment is loaded, and this class keeps the few most recently used
+ * segments loaded and searches across segment boundaries, so a line may begin
+ * in one segment and end in another. A segment that is dropped is only
+ * forgotten, and its memory, or its mapping if it was mapped, is released
+ * when the garbage collector reclaims it.
+ * <p/>
+ * All of the reading methods use absolute positions, so the buffer may be read
+ * by several threads at once. A segment is loaded without holding the lock on
+ * this buffer, so loading a slow one does not hold up reading the others.
+ *
+ * @author Nick King
+ *
+ */
+public abstract class AbstractSegmentedBuffer implements FileBuffer {
+
+	private final int segmentSize;
+	private final Map<Integer, ByteBuffer> mSegments;
+	private long length;
+	private long unchangedLength;
+
+	/**
+	 * @param segmentSize
+	 *            -- the number of bytes in each segment
+	 * @param maxLoadedSegments
+	 *            -- the most segments that will be kept loaded at once
+	 * @param length
+	 *            -- the number of bytes in the buffer
+	 */
+	protected AbstractSegmentedBuffer(int segmentSize,
+			final int maxLoadedSegments, long length) {
+
+		if (segmentSize < 8) {
+			throw new IllegalArgumentException(
+					"The segment size must be at least 8 bytes");
+		}
+
+		this.segmentSize = segmentSize;
+		this.length = length;
+		this.unchangedLength = length;
+
+		// An access ordered map lets us drop the least recently used segment
+		mSegments = new LinkedHashMap<Integer, ByteBuffer>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<Integer, ByteBuffer> eldest) {
+				return size() > maxLoadedSegments;
+			}
+		};
+
+	}
+
+	/**
+	 * Loads a segment. This may be called by several threads at once, even
+	 * for the same segment.
+	 *
+	 * @param index
+	 *            -- the index of the segment
+	 * @param start
+	 *            -- the position of the first byte in the segment
+	 * @param size
+	 *            -- the number of bytes in the segment
+	 * @return a buffer holding the bytes of the segment from position 0 to
+	 *         size
+	 * @throws IOException
+	 *             if the segment cannot be read
+	 */
+	protected abstract ByteBuffer loadSegment(int index, long start, int size)
+			throws IOException;
+
+	/**
+	 * @return a name for the underlying data to use in error messages
+	 */
+	protected abstract String getName();
+
+	@Override
+	public synchronized long length() {
+		return length;
+	}
+
+	@Override
+	public synchronized long getUnchangedLength() {
+		return unchangedLength;
+	}
+
+	/**
+	 * Changes the length of the buffer. If it grew, only the partially filled
+	 * last segment is dropped so that it will be loaded again with the new
+	 * data. If it shrank, every segment is dropped.
+	 *
+	 * @param newLength
+	 *            -- the new number of bytes in the buffer
+	 */
+	protected synchronized void setLength(long newLength) {
+
+		if (newLength < length) {
+			mSegments.clear();
+		} else if (newLength > length && length % segmentSize != 0) {
+			mSegments.remove((int) (length / segmentSize));
+		}
+
+		unchangedLength = Math.min(length, newLength);
+		length = newLength;
+
+	}
+
+	/**
+	 * Drops every loaded segment
+	 */
+	protected synchronized void clearSegments() {
+		mSegments.clear();
+	}
+
+	@Override
+	public byte get(long pos) {
+		return segmentFor(pos).get(offsetInSegment(pos));
+	}
+
+	@Override
+	public long indexOfBreak(long from, long to) {
+
+		long pos = from;
+
+		while (pos < to) {
+			final ByteBuffer segment = segmentFor(pos);
+			final long segmentStart = pos - offsetInSegment(pos);
+			final int end = (int) Math.min(to - segmentStart, segment.limit());
+			final int found = ByteBuffers.indexOfBreak(segment,
+					offsetInSegment(pos), end);
+			if (found >= 0)
+				return segmentStart + found;
+			pos = segmentStart + end;
+		}
+
+		return -1;
+
+	}
+
+	@Override
+	public long lastIndexOfBreak(long from, long to) {
+
+		long pos = to;
+
+		while (pos > from) {
+			// Look at the segment holding the byte before pos
+			final ByteBuffer segment = segmentFor(pos - 1);
+			final long segmentStart = (pos - 1) - offsetInSegment(pos - 1);
+			final int start = (int) Math.max(from - segmentStart, 0);
+			final int found = ByteBuffers.lastIndexOfBreak(segment, start,
+					(int) (pos - segmentStart));
+			if (found >= 0)
+				return segmentStart + found;
+			pos = segmentStart + start;
+		}
+
+		return -1;
+
+	}
+
+	@Override
+	public long countBreaks(long from, long to) {
+
+		long count = 0;
+		long pos = from;
+
+		while (pos < to) {
+			final ByteBuffer segment = segmentFor(pos);
+			final long segmentStart = pos - offsetInSegment(pos);
+			final int end = (int) Math.min(to - segmentStart, segment.limit());
+			count += ByteBuffers.countBreaks(segment, offsetInSegment(pos),
+					end);
+			pos = segmentStart + end;
+		}
+
+		return count;
+
+	}
+
+	@Override
+	public String decode(long start, long end, LineDecoder decoder) {
+
+		if (end <= start)
+			return "";
+
+		final ByteBuffer segment = segmentFor(start);
+		final int offset = offsetInSegment(start);
+
+		if (offset + (end - start) <= segment.limit()) {
+			return decoder.decode(segment, offset, (int) (offset + end - start));
+		}
+
+		// The range crosses into the next segment, so we have to copy it out
+		final ByteBuffer joined = ByteBuffer.wrap(copy(start, end));
+		return decoder.decode(joined, 0, joined.limit());
+
+	}
+
+	@Override
+	public byte[] copy(long start, long end) {
+		final byte[] bytes = new byte[(int) (end - start)];
+		copyTo(start, end, bytes, 0);
+		return bytes;
+	}
+
+	@Override
+	public void copyTo(long start, long end, byte[] dest, int offset) {
+
+		final int length = (int) (end - start);
+		int copied = 0;
+
+		while (copied < length) {
+			final long pos = start + copied;
+			final ByteBuffer segment = segmentFor(pos).duplicate();
+			segment.position(offsetInSegment(pos));
+			final int count = Math.min(segment.remaining(), length - copied);
+			segment.get(dest, offset + copied, count);
+			copied += count;
+		}
+
+	}
+
+	private int offsetInSegment(long pos) {
+		return (int) (pos % segmentSize);
+	}
+
+	/**
+	 * Gets the segment holding the given position, loading it if necessary
+	 */
+	private ByteBuffer segmentFor(long pos) {
+
+		final int index = (int) (pos / segmentSize);
+		final long segmentStart = (long) index * segmentSize;
+		final long loadedLength;
+
+		synchronized (this) {
+			if (pos < 0 || pos >= length) {
+				throw new IndexOutOfBoundsException("Position " + pos
+						+ " is outside of the " + length + " bytes in "
+						+ getName());
+			}
+			final ByteBuffer segment = mSegments.get(index);
+			if (segment != null)
+				return segment;
+			loadedLength = length;
+		}
+
+		final int size = (int) Math.min(segmentSize, loadedLength
+				- segmentStart);
+		final ByteBuffer segment;
+		try {
+			segment = loadSegment(index, segmentStart, size);
+		} catch (IOException e) {
+			throw new IllegalStateException("Unable to read " + getName()
+					+ " at position " + segmentStart, e);
+		}
+
+		synchronized (this) {
+			// A segment loaded before the length changed may be the wrong size
+			if (length == loadedLength)
+				mSegments.put(index, segment);
+		}
+
+		return segment;
+
+	}
+
+}
@@ -10,20 +10,25 @@ purpose whatsoever, and to have or authorize others to do so.
  */
 package edu.vu.isis.logger.util;
 
-import java.nio.Buffer;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 /**
  * Collection of static helper methods for use with a ByteBuffer object.
+ * <p/>
+ * Line breaks are found by reading the buffer eight bytes at a time with
+ * getLong() and testing all eight bytes of each word at once, rather than
+ * calling get() once per byte. Only the few bytes at either end of a range
+ * that do not fill a whole word are examined individually.
  * @author Nick King
  */
 
 public class ByteBuffers {
 
-	public static final char BEG_OF_TEXT_CHAR = (char) 0x00000010;
-	public static final String BEG_OF_TEXT_STR = Character.toString(BEG_OF_TEXT_CHAR);
-	public static final char END_OF_TEXT_CHAR = (char) 0x00000011;
-	public static final String END_OF_TEXT_STR = Character.toString(END_OF_TEXT_CHAR);
+	/* Constants used to examine all of the bytes in a long at once */
+	private static final long LOW_SEVEN_BITS = 0x7F7F7F7F7F7F7F7FL;
+	private static final long NEWLINES = 0x0A0A0A0A0A0A0A0AL;
+	private static final long CARRIAGE_RETURNS = 0x0D0D0D0D0D0D0D0DL;
 	
 	// Hide the default constructor to prevent instantiation
 	private ByteBuffers() { }
@@ -33,215 +38,138 @@ public class ByteBuffers {
 	// STATIC HELPER METHODS
 	// /////////////////////////////////////////////////////////////
 
-	public static String readForwardToNewline(ByteBuffer buffer) {
-
-		StringBuilder sb = new StringBuilder();
-
-		if (getBufferPosition(buffer) == getBufferLimit(buffer))
-			return END_OF_TEXT_STR;
-
-		char next = (char) buffer.get();
-
-		while (isNotBreak(next) && !isBufferUnderflow(buffer)) {
-			sb.append(next);
-			next = (char) buffer.get();
-		}
-
-		if (getBufferPosition(buffer) == getBufferLimit(buffer)) {
-			// Signal the end of the file if it is reached
-			sb.append(END_OF_TEXT_CHAR);
-		}
-
-		return sb.toString();
-
-	}
-
-	public static int getBufferLimit(ByteBuffer buffer) {
-		return buffer.limit();
+	static boolean isNotBreak(char ch) {
+		return ch != '\n' && ch != '\r';
 	}
 
-	public static String readBackwardToNewline(ByteBuffer buffer) {
-
-		StringBuilder sb = new StringBuilder();
-
-		// Return if we are already at the beginning of the buffer
-		if (getBufferPosition(buffer) == 0)
-			return BEG_OF_TEXT_STR;
-
-		char next = (char) buffer.get(getBufferPosition(buffer));
-		decrementBufferPosition(buffer);
-
-		// We have to stop at position 1 to avoid decrementing the buffer
-		// position to -1
-		while (isNotBreak(next) && getBufferPosition(buffer) >= 1) {
-			sb.append(next);
-			next = (char) buffer.get(getBufferPosition(buffer));
-			decrementBufferPosition(buffer);
-		}
-
-		if (getBufferPosition(buffer) == 0) {
-
-			// The char at position 1 was not appended because we reached
-			// position 0, so we append it if it's not a newline char
-			if (next != '\n') {
-				sb.append(next);
-			}
-
-			// Add the first char in the file if we reached the beginning
-			// and it is not a newline
-			next = (char) buffer.get(0);
-			if(next != '\n') {
-				sb.append(next);
+	/**
+	 * Finds the first line break within a range of the buffer. The buffer's
+	 * position is not changed.
+	 * 
+	 * @param buffer
+	 *            -- the buffer to search
+	 * @param from
+	 *            -- the first position to examine
+	 * @param to
+	 *            -- the position at which to stop, exclusive
+	 * @return the position of the first '\n' or '\r' in the range, or -1 if
+	 *         there is none
+	 */
+	public static int indexOfBreak(ByteBuffer buffer, int from, int to) {
+
+		final boolean bigEndian = buffer.order() == ByteOrder.BIG_ENDIAN;
+		int pos = from;
+
+		for (; pos + 8 <= to; pos += 8) {
+			final long mask = breakMask(buffer.getLong(pos));
+			if (mask != 0) {
+				// The first byte in memory is the most significant byte of a
+				// big endian word
+				return pos
+						+ ((bigEndian ? Long.numberOfLeadingZeros(mask) : Long
+								.numberOfTrailingZeros(mask)) >>> 3);
 			}
-
-			// Signal the beginning of the file
-			sb.append(BEG_OF_TEXT_CHAR);
-
 		}
 
-		return sb.reverse().toString();
-
-	}
-
-	static boolean isNotBreak(char ch) {
-		return ch != '\n' && ch != '\r';
-	}
-
-	public static int getBufferPosition(Buffer buffer) {
-		return buffer.position();
-	}
+		for (; pos < to; pos++) {
+			if (!isNotBreak((char) buffer.get(pos)))
+				return pos;
+		}
 
-	public static void setBufferPosition(Buffer buffer, int newPosition) {
-		buffer.position(newPosition);
-	}
+		return -1;
 
-	public static void decrementBufferPosition(Buffer buffer) {
-		setBufferPosition(buffer, getBufferPosition(buffer) - 1);
 	}
 
 	/**
-	 * Moves the buffer forward a given number of lines
+	 * Finds the last line break within a range of the buffer. The buffer's
+	 * position is not changed.
 	 * 
 	 * @param buffer
-	 *            -- the buffer to use
-	 * @param numLines
-	 *            -- the number of lines to skip forward
-	 * @return -- true if the given number of lines were skipped, false if not
+	 *            -- the buffer to search
+	 * @param from
+	 *            -- the position at which to stop, inclusive
+	 * @param to
+	 *            -- the position after the first one to examine
+	 * @return the position of the last '\n' or '\r' in the range, or -1 if
+	 *         there is none
 	 */
-	public static boolean skipForward(ByteBuffer buffer, int numLines) {
-
-		if (getBufferPosition(buffer) == getBufferLimit(buffer))
-			return false;
-
-		// Waste no time if we were given a dumb argument
-		if (numLines <= 0)
-			return true;
-
-		int numSkipped = 0;
-
-		for (; numSkipped < numLines; numSkipped++) {
-
-			char next = (char) buffer.get();
-
-			while (isNotBreak(next) && !isBufferUnderflow(buffer)) {
-
-				next = (char) buffer.get();
-
-			}
-
-			if (isBufferUnderflow(buffer)) {
-				// We reached the end of the buffer, so we need to determine
-				// whether or not we read all of the lines requested
-				return numSkipped + 1 == numLines;
+	public static int lastIndexOfBreak(ByteBuffer buffer, int from, int to) {
+
+		final boolean bigEndian = buffer.order() == ByteOrder.BIG_ENDIAN;
+		int pos = to;
+
+		for (; pos - 8 >= from; pos -= 8) {
+			final long mask = breakMask(buffer.getLong(pos - 8));
+			if (mask != 0) {
+				// The last byte in memory is the least significant byte of a
+				// big endian word
+				return pos
+						- 1
+						- ((bigEndian ? Long.numberOfTrailingZeros(mask) : Long
+								.numberOfLeadingZeros(mask)) >>> 3);
 			}
+		}
 
+		for (pos--; pos >= from; pos--) {
+			if (!isNotBreak((char) buffer.get(pos)))
+				return pos;
 		}
 
-		return numSkipped == numLines;
+		return -1;
 
 	}
 
 	/**
-	 * Moves the buffer backward a given number of lines
+	 * Counts the line breaks within a range of the buffer. The buffer's
+	 * position is not changed.
 	 * 
 	 * @param buffer
-	 *            -- the buffer to use
-	 * @param numLines
-	 *            -- the number of lines to skip backward
-	 * @return -- true if the given number of lines were skipped, false if not
+	 *            -- the buffer to search
+	 * @param from
+	 *            -- the first position to examine
+	 * @param to
+	 *            -- the position at which to stop, exclusive
+	 * @return the number of '\n' and '\r' characters in the range
 	 */
-	public static boolean skipBackward(ByteBuffer buffer, int numLines) {
-
-		// Return if we are already at the beginning of the buffer
-		if (getBufferPosition(buffer) == 0)
-			return false;
-
-		// Waste no time if we were given a dumb argument
-		if (numLines <= 0)
-			return true;
+	public static int countBreaks(ByteBuffer buffer, int from, int to) {
 
-		int numSkipped = 0;
+		int count = 0;
+		int pos = from;
 
-		for (; numSkipped < numLines; numSkipped++) {
-
-			char next = (char) buffer.get(getBufferPosition(buffer));
-			decrementBufferPosition(buffer);
-
-			// We have to stop at position 1 to avoid decrementing the buffer
-			// position to -1
-			while (isNotBreak(next) && getBufferPosition(buffer) >= 1) {
-				next = (char) buffer.get(getBufferPosition(buffer));
-				decrementBufferPosition(buffer);
-			}
-
-			if (getBufferPosition(buffer) == 0) {
-				// We reached the beginning of the buffer, so we need to
-				// determine
-				// whether or not we read all of the lines requested
-				return numSkipped + 1 == numLines;
-			}
+		for (; pos + 8 <= to; pos += 8) {
+			count += Long.bitCount(breakMask(buffer.getLong(pos)));
+		}
 
+		for (; pos < to; pos++) {
+			if (!isNotBreak((char) buffer.get(pos)))
+				count++;
 		}
 
-		return numSkipped == numLines;
+		return count;
 
 	}
 
 	/**
-	 * Checks if the buffer is currently in an underflow state
+	 * Finds the line breaks in a word of eight bytes.
 	 * 
-	 * @param buffer
-	 *            -- the buffer to check
-	 * @return -- whether the buffer's position is not smaller than its limit
+	 * @param word
+	 *            -- eight bytes read from a buffer
+	 * @return a word with the high bit set in exactly those bytes which are
+	 *         '\n' or '\r', and all other bits clear
 	 */
-	public static boolean isBufferUnderflow(ByteBuffer buffer) {
-		return !(getBufferPosition(buffer) < getBufferLimit(buffer));
-	}
-
-	static boolean isEOF(String str) {
-		return str.endsWith(END_OF_TEXT_STR);
+	private static long breakMask(long word) {
+		return zeroByteMask(word ^ NEWLINES)
+				| zeroByteMask(word ^ CARRIAGE_RETURNS);
 	}
 
-	static boolean isBOF(String str) {
-		return str.startsWith(BEG_OF_TEXT_STR);
-	}
-
-	public static int countLinesBetween(ByteBuffer buffer, int startPos,
-			int endPos) {
-		
-		setBufferPosition(buffer, startPos);
-
-		int numBetween = 0;
-		while (skipForward(buffer, 1)) {
-			if (getBufferPosition(buffer) < endPos) {
-				numBetween++;
-			} else {
-				break;
-			}
-		}
-
-		return numBetween;
-
+	/**
+	 * Finds the zero bytes in a word. Unlike the shorter (x - 0x01..) & ~x
+	 * form, this never flags a nonzero byte, so the position of any flagged
+	 * byte can be trusted in either byte order.
+	 */
+	private static long zeroByteMask(long word) {
+		final long t = (word & LOW_SEVEN_BITS) + LOW_SEVEN_BITS;
+		return ~(t | word | LOW_SEVEN_BITS);
 	}
 
 }
@@ -0,0 +1,218 @@
+/*Copyright (C) 2010-2012 Institute for Software Integrated Systems (ISIS)
+This software was developed by the Institute for Software Integrated
+Systems (ISIS) at Vanderbilt University, Tennessee, USA for the
+Transformative Apps program under DARPA, Contract # HR011-10-C-0175.
+The United States Government has unlimited rights to this software.
+The US government has the right to use, modify, reproduce, release,
+perform, display, or disclose computer software or computer software
+documentation in whole or in part, in any manner and for any
+purpose whatsoever, and to have or authorize others to do so.
+ */
+package edu.vu.isis.logger.util;
+
+/**
+ * Searches for a sequence of bytes using the Boyer-Moore-Horspool algorithm.
+ * The search is done on the raw bytes, so nothing is decoded into Strings, and
+ * most bytes of the text are skipped without being examined.
+ * <p/>
+ * A FileBuffer is searched by copying it out in windows that overlap by one
+ * less than the length of the pattern, so a match that straddles two windows
+ * is still found.
+ * <p/>
+ * A ByteSearcher holds no state between searches, so it may be shared between
+ * threads. Each search of a FileBuffer allocates one window.
+ *
+ * @author Nick King
+ *
+ */
+public class ByteSearcher {
+
+	private static final int WINDOW_SIZE = 256 * 1024;
+
+	private final byte[] pattern;
+
+	/** how far to shift forward, indexed by the byte under the pattern's end */
+	private final int[] forwardShifts = new int[256];
+
+	/** how far to shift backward, indexed by the byte under the pattern's start */
+	private final int[] backwardShifts = new int[256];
+
+	/**
+	 * @param pattern
+	 *            -- the bytes to search for, which may not be empty
+	 */
+	public ByteSearcher(byte[] pattern) {
+
+		if (pattern.length == 0) {
+			throw new IllegalArgumentException("The pattern may not be empty");
+		}
+
+		this.pattern = pattern.clone();
+		final int m = pattern.length;
+
+		for (int i = 0; i < 256; i++) {
+			forwardShifts[i] = m;
+			backwardShifts[i] = m;
+		}
+		for (int i = 0; i < m - 1; i++) {
+			forwardShifts[pattern[i] & 0xFF] = m - 1 - i;
+		}
+		for (int i = m - 1; i > 0; i--) {
+			backwardShifts[pattern[i] & 0xFF] = i;
+		}
+
+	}
+
+	/**
+	 * @param text
+	 *            -- the String to search for, which is encoded as UTF-8
+	 */
+	public ByteSearcher(String text) {
+		this(text.getBytes(LineDecoder.UTF_8));
+	}
+
+	public int getPatternLength() {
+		return pattern.length;
+	}
+
+	/**
+	 * Finds the first match that lies entirely within a range of an array.
+	 *
+	 * @param text
+	 *            -- the array to search
+	 * @param from
+	 *            -- the first position at which a match may begin
+	 * @param to
+	 *            -- the position at which a match must end, exclusive
+	 * @return the position of the first byte of the match, or -1 if there is
+	 *         none
+	 */
+	public int indexOf(byte[] text, int from, int to) {
+
+		final byte[] pattern = this.pattern;
+		final int last = pattern.length - 1;
+		int pos = from;
+
+		while (pos + last < to) {
+			final byte end = text[pos + last];
+			if (end == pattern[last]) {
+				int i = last - 1;
+				while (i >= 0 && text[pos + i] == pattern[i]) {
+					i--;
+				}
+				if (i < 0)
+					return pos;
+			}
+			pos += forwardShifts[end & 0xFF];
+		}
+
+		return -1;
+
+	}
+
+	/**
+	 * Finds the last match that lies entirely within a range of an array.
+	 *
+	 * @param text
+	 *            -- the array to search
+	 * @param from
+	 *            -- the first position at which a match may begin
+	 * @param to
+	 *            -- the position at which a match must end, exclusive
+	 * @return the position of the first byte of the match, or -1 if there is
+	 *         none
+	 */
+	public int lastIndexOf(byte[] text, int from, int to) {
+
+		final byte[] pattern = this.pattern;
+		final int m = pattern.length;
+		int pos = to - m;
+
+		while (pos >= from) {
+			final byte start = text[pos];
+			if (start == pattern[0]) {
+				int i = 1;
+				while (i < m && text[pos + i] == pattern[i]) {
+					i++;
+				}
+				if (i == m)
+					return pos;
+			}
+			pos -= backwardShifts[start & 0xFF];
+		}
+
+		return -1;
+
+	}
+
+	/**
+	 * Finds the first match that lies entirely within a range of a buffer.
+	 *
+	 * @param buffer
+	 *            -- the buffer to search
+	 * @param from
+	 *            -- the first position at which a match may begin
+	 * @param to
+	 *            -- the position at which a match must end, exclusive
+	 * @return the position of the first byte of the match, or -1 if there is
+	 *         none
+	 */
+	public long indexOf(FileBuffer buffer, long from, long to) {
+
+		final int overlap = pattern.length - 1;
+		final int windowSize = Math.max(WINDOW_SIZE, 2 * pattern.length);
+		final byte[] window = new byte[(int) Math.min(windowSize, Math.max(
+				to - from, 0))];
+		long start = from;
+
+		while (to - start > overlap) {
+			final long end = Math.min(to, start + windowSize);
+			buffer.copyTo(start, end, window, 0);
+			final int found = indexOf(window, 0, (int) (end - start));
+			if (found >= 0)
+				return start + found;
+			if (end == to)
+				break;
+			start = end - overlap;
+		}
+
+		return -1;
+
+	}
+
+	/**
+	 * Finds the last match that lies entirely within a range of a buffer.
+	 *
+	 * @param buffer
+	 *            -- the buffer to search
+	 * @param from
+	 *            -- the first position at which a match may begin
+	 * @param to
+	 *            -- the position at which a match must end, exclusive
+	 * @return the position of the first byte of the match, or -1 if there is
+	 *         none
+	 */
+	public long lastIndexOf(FileBuffer buffer, long from, long to) {
+
+		final int overlap = pattern.length - 1;
+		final int windowSize = Math.max(WINDOW_SIZE, 2 * pattern.length);
+		final byte[] window = new byte[(int) Math.min(windowSize, Math.max(
+				to - from, 0))];
+		long end = to;
+
+		while (end - from > overlap) {
+			final long start = Math.max(from, end - windowSize);
+			buffer.copyTo(start, end, window, 0);
+			final int found = lastIndexOf(window, 0, (int) (end - start));
+			if (found >= 0)
+				return start + found;
+			if (start == from)
+				break;
+			end = start + overlap;
+		}
+
+		return -1;
+
+	}
+
+}
@@ -0,0 +1,478 @@
+/*Copyright (C) 2010-2012 Institute for Software Integrated Systems (ISIS)
+This software was developed by the Institute for Software Integrated
+Systems (ISIS) at Vanderbilt University, Tennessee, USA for the
+Transformative Apps program under DARPA, Contract # HR011-10-C-0175.
+The United States Government has unlimited rights to this software.
+The US government has the right to use, modify, reproduce, release,
+perform, display, or disclose computer software or computer software
+documentation in whole or in part, in any manner and for any
+purpose whatsoever, and to have or authorize others to do so.
+ */
+package edu.vu.isis.logger.util;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Several files joined end to end so that they can be read as one file. This
+ * is meant for the set of files written by a rolling file appender, so the
+ * files are given from oldest to newest and the last one is taken to be the
+ * active file that is still being written.
+ * <p/>
+ * When the active file is rolled over, the file that we have open is renamed
+ * and a new file is created in its place. This is detected on refresh() and
+ * the new file is joined onto the end, so the data that was already read keeps
+ * its position. Since refresh() may not be called for a while, such as when
+ * the log viewer is paused, the new file may have grown past the old one by
+ * then, so the two are told apart by their first bytes rather than by their
+ * lengths. If the active file is instead truncated in place, this buffer
+ * becomes smaller just as a single file would.
+ * <p/>
+ * Files whose names end with ".gz" are read through a GzipFileBuffer, which
+ * keeps its chunks in the given cache directory. The chunks of archives that
+ * are gone are deleted when this buffer is opened. A compressed archive that
+ * cannot be read is left out. An archive only has a hint of its length until
+ * unpackMore() has inflated it, so if it turns out to have another length,
+ * refresh() moves the files after it to fit.
+ * <p/>
+ * Each file should end with a line break so that lines are not joined across
+ * files.
+ *
+ * @author Nick King
+ *
+ */
+public class ConcatenatedFileBuffer implements FileBuffer {
+
+	/** We usually read an archived file straight through, so map less of it */
+	private static final int MAX_MAPPED_SEGMENTS_PER_FILE = 2;
+
+	private static final String GZIP_SUFFIX = ".gz";
+
+	/**
+	 * how many bytes at the beginning of the active file are compared to tell
+	 * whether it is still the file we have open
+	 */
+	private static final int IDENTITY_PREFIX_LENGTH = 256;
+
+	private final File mActiveFile;
+	private final File mCacheDir;
+
+	/* Replaced rather than modified so that readers need no lock */
+	private volatile Part[] mParts;
+
+	private volatile long unchangedLength;
+
+	/**
+	 * @param files
+	 *            -- the files to join, from oldest to newest. There must be at
+	 *            least one.
+	 * @param cacheDir
+	 *            -- the directory in which to keep the chunks of gzip files
+	 * @throws IOException
+	 *             if any of the files cannot be opened
+	 */
+	public ConcatenatedFileBuffer(List<File> files, File cacheDir)
+			throws IOException {
+
+		if (files.isEmpty()) {
+			throw new IllegalArgumentException("At least one file is needed");
+		}
+
+		mCacheDir = cacheDir;
+		mActiveFile = files.get(files.size() - 1);
+		for (File file : files) {
+			if (isCompressed(file)) {
+				GzipFileBuffer.pruneCache(cacheDir, files);
+				break;
+			}
+		}
+		final List<Part> parts = new ArrayList<Part>();
+		long start = 0;
+
+		try {
+			for (File file : files) {
+				final FileBuffer buffer;
+				try {
+					buffer = openFile(file);
+				} catch (IOException e) {
+					// An archive may still be in the middle of being
+					// compressed, so leave it out rather than failing
+					if (file == mActiveFile || !isCompressed(file))
+						throw e;
+					e.printStackTrace();
+					continue;
+				}
+				parts.add(new Part(file, buffer, start));
+				start += buffer.length();
+			}
+		} catch (IOException e) {
+			for (Part part : parts) {
+				part.buffer.close();
+			}
+			throw e;
+		}
+
+		mParts = parts.toArray(new Part[parts.size()]);
+		unchangedLength = length();
+
+	}
+
+	/**
+	 * @return the number of files joined in this buffer
+	 */
+	public int getNumFiles() {
+		return mParts.length;
+	}
+
+	/**
+	 * @return the files joined in this buffer, from oldest to newest, leaving
+	 *         out any archive that could not be read
+	 */
+	public List<File> getFiles() {
+		final List<File> files = new ArrayList<File>();
+		for (Part part : mParts) {
+			files.add(part.file);
+		}
+		return files;
+	}
+
+	@Override
+	public long length() {
+		final Part last = last(mParts);
+		return last.start + last.buffer.length();
+	}
+
+	@Override
+	public long getUnchangedLength() {
+		return unchangedLength;
+	}
+
+	/**
+	 * Makes the next few chunks of the compressed archives, so that reading
+	 * them later does not have to inflate them. This should be called from a
+	 * background thread until it returns true.
+	 *
+	 * @param maxBytes
+	 *            -- about how many bytes to inflate
+	 * @return true if every archive has been inflated
+	 */
+	public boolean unpackMore(long maxBytes) {
+		for (Part part : mParts) {
+			if (isCompressed(part.file)
+					&& !((GzipFileBuffer) part.buffer).unpackMore(maxBytes))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if every compressed archive has been inflated, so that the
+	 *         files will not be moved by refresh()
+	 */
+	public boolean isUnpacked() {
+		for (Part part : mParts) {
+			if (isCompressed(part.file)
+					&& !((GzipFileBuffer) part.buffer).isUnpacked())
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Picks up new data in the active file, and joins a new active file onto
+	 * the end if the old one was rolled over. If an archive has been found to
+	 * have a length other than the one recorded in it, the files after it are
+	 * moved to fit, which getUnchangedLength() tells.
+	 */
+	@Override
+	public synchronized long refresh() throws IOException {
+
+		Part[] parts = mParts;
+		long unchanged = length();
+		boolean moved = false;
+		final Part[] relaid = new Part[parts.length];
+		long start = 0;
+
+		for (int i = 0; i < parts.length; i++) {
+			final Part part = parts[i];
+			final boolean isLast = (i == parts.length - 1);
+			final long oldLength = isLast ? part.buffer.length()
+					: parts[i + 1].start - part.start;
+			long partLength = oldLength;
+			if (isLast || isCompressed(part.file)) {
+				partLength = part.buffer.refresh();
+				final long partUnchanged = part.buffer.getUnchangedLength();
+				if (partUnchanged < oldLength)
+					unchanged = Math.min(unchanged, part.start + partUnchanged);
+			}
+			if (start != part.start) {
+				// Everything from where this file used to begin has moved
+				relaid[i] = new Part(part.file, part.buffer, start);
+				unchanged = Math.min(unchanged, part.start);
+				moved = true;
+			} else {
+				relaid[i] = part;
+			}
+			start += partLength;
+		}
+
+		if (moved) {
+			mParts = parts = relaid;
+		}
+		unchangedLength = unchanged;
+
+		final Part last = last(parts);
+		final long lastLength = last.buffer.length();
+
+		// Between the rename and the creation of the new file there is none,
+		// and an archive that was opened on its own is never rolled over
+		if (!mActiveFile.exists() || isCompressed(mActiveFile))
+			return length();
+
+		if (lastLength == 0) {
+			// Nothing has been read from the file we have open, so it can
+			// simply be replaced by whatever is at the active path now
+			if (mActiveFile.length() > 0) {
+				final Part[] replaced = parts.clone();
+				replaced[parts.length - 1] = new Part(mActiveFile,
+						openFile(mActiveFile), last.start);
+				mParts = replaced;
+				last.buffer.close();
+			}
+		} else if (isRolledOver(last.buffer, lastLength)) {
+			final Part[] larger = new Part[parts.length + 1];
+			System.arraycopy(parts, 0, larger, 0, parts.length);
+			larger[parts.length] = new Part(mActiveFile, openFile(mActiveFile),
+					last.start + lastLength);
+			mParts = larger;
+		}
+
+		return length();
+
+	}
+
+	@Override
+	public synchronized void close() {
+		for (Part part : mParts) {
+			part.buffer.close();
+		}
+	}
+
+	@Override
+	public byte get(long pos) {
+		final Part part = partFor(mParts, pos);
+		return part.buffer.get(pos - part.start);
+	}
+
+	@Override
+	public long indexOfBreak(long from, long to) {
+
+		final Part[] parts = mParts;
+		long pos = from;
+
+		while (pos < to) {
+			final Part part = partFor(parts, pos);
+			final long end = Math.min(to, part.end());
+			final long found = part.buffer.indexOfBreak(pos - part.start, end
+					- part.start);
+			if (found >= 0)
+				return part.start + found;
+			pos = end;
+		}
+
+		return -1;
+
+	}
+
+	@Override
+	public long lastIndexOfBreak(long from, long to) {
+
+		final Part[] parts = mParts;
+		long pos = to;
+
+		while (pos > from) {
+			// Look at the file holding the byte before pos
+			final Part part = partFor(parts, pos - 1);
+			final long start = Math.max(from, part.start);
+			final long found = part.buffer.lastIndexOfBreak(start - part.start,
+					pos - part.start);
+			if (found >= 0)
+				return part.start + found;
+			pos = start;
+		}
+
+		return -1;
+
+	}
+
+	@Override
+	public long countBreaks(long from, long to) {
+
+		final Part[] parts = mParts;
+		long count = 0;
+		long pos = from;
+
+		while (pos < to) {
+			final Part part = partFor(parts, pos);
+			final long end = Math.min(to, part.end());
+			count += part.buffer.countBreaks(pos - part.start, end - part.start);
+			pos = end;
+		}
+
+		return count;
+
+	}
+
+	@Override
+	public String decode(long start, long end, LineDecoder decoder) {
+
+		if (end <= start)
+			return "";
+
+		final Part part = partFor(mParts, start);
+		if (end <= part.end()) {
+			return part.buffer.decode(start - part.start, end - part.start,
+					decoder);
+		}
+
+		// The range crosses into the next file, so we have to copy it out
+		final byte[] bytes = copy(start, end);
+		return decoder.decode(ByteBuffer.wrap(bytes), 0, bytes.length);
+
+	}
+
+	@Override
+	public byte[] copy(long start, long end) {
+		final byte[] bytes = new byte[(int) (end - start)];
+		copyTo(start, end, bytes, 0);
+		return bytes;
+	}
+
+	@Override
+	public void copyTo(long start, long end, byte[] dest, int offset) {
+
+		final Part[] parts = mParts;
+		long pos = start;
+
+		while (pos < end) {
+			final Part part = partFor(parts, pos);
+			final long partEnd = Math.min(end, part.end());
+			part.buffer.copyTo(pos - part.start, partEnd - part.start, dest,
+					offset + (int) (pos - start));
+			pos = partEnd;
+		}
+
+	}
+
+	/**
+	 * Tells whether the file at the active path is no longer the file we have
+	 * open. A rolled over file is renamed, so the file at the active path is a
+	 * new one that is smaller than ours or begins with other bytes.
+	 *
+	 * @param buffer
+	 *            -- the buffer of the file we have open
+	 * @param length
+	 *            -- its length, which is more than 0
+	 */
+	private boolean isRolledOver(FileBuffer buffer, long length)
+			throws IOException {
+
+		final int prefixLength = (int) Math.min(IDENTITY_PREFIX_LENGTH, length);
+		final byte[] atPath = new byte[prefixLength];
+
+		final RandomAccessFile file;
+		try {
+			file = new RandomAccessFile(mActiveFile, "r");
+		} catch (FileNotFoundException e) {
+			// It was renamed since we looked, so a new one will be created
+			return false;
+		}
+		try {
+			if (file.length() < length)
+				return true;
+			file.readFully(atPath);
+		} catch (EOFException e) {
+			// It was truncated since we looked, which the next refresh sees
+			return false;
+		} finally {
+			file.close();
+		}
+
+		return !Arrays.equals(atPath, buffer.copy(0, prefixLength));
+
+	}
+
+	private static boolean isCompressed(File file) {
+		return file.getName().endsWith(GZIP_SUFFIX);
+	}
+
+	private FileBuffer openFile(File file) throws IOException {
+		if (isCompressed(file)) {
+			return new GzipFileBuffer(file, mCacheDir);
+		}
+		return new SegmentedFileBuffer(file,
+				SegmentedFileBuffer.DEFAULT_SEGMENT_SIZE,
+				MAX_MAPPED_SEGMENTS_PER_FILE);
+	}
+
+	private static Part last(Part[] parts) {
+		return parts[parts.length - 1];
+	}
+
+	/**
+	 * Finds the file holding the given position by binary search
+	 */
+	private static Part partFor(Part[] parts, long pos) {
+
+		int low = 0;
+		int high = parts.length - 1;
+
+		while (low < high) {
+			final int mid = (low + high + 1) >>> 1;
+			if (parts[mid].start <= pos) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+
+		// Skip over empty files that start at the same position
+		Part part = parts[low];
+		while (pos >= part.end() && low < parts.length - 1) {
+			part = parts[++low];
+		}
+
+		return part;
+
+	}
+
+	/**
+	 * One of the joined files and the position in this buffer at which it
+	 * begins
+	 */
+	private static class Part {
+
+		final File file;
+		final FileBuffer buffer;
+		final long start;
+
+		Part(File file, FileBuffer buffer, long start) {
+			this.file = file;
+			this.buffer = buffer;
+			this.start = start;
+		}
+
+		long end() {
+			return start + buffer.length();
+		}
+
+	}
+
+}
@@ -0,0 +1,137 @@
+/*Copyright (C) 2010-2012 Institute for Software Integrated Systems (ISIS)
+This software was developed by the Institute for Software Integrated
+Systems (ISIS) at Vanderbilt University, Tennessee, USA for the
+Transformative Apps program under DARPA, Contract # HR011-10-C-0175.
+The United States Government has unlimited rights to this software.
+The US government has the right to use, modify, reproduce, release,
+perform, display, or disclose computer software or computer software
+documentation in whole or in part, in any manner and for any
+purpose whatsoever, and to have or authorize others to do so.
+ */
+package edu.vu.isis.logger.util;
+
+import java.io.IOException;
+
+/**
+ * A read-only sequence of bytes addressed by long offsets, such as a mapped
+ * file or several files joined end to end. Implementations must allow the
+ * reading methods to be called from several threads at once.
+ *
+ * @author Nick King
+ *
+ */
+public interface FileBuffer {
+
+	/**
+	 * @return the number of bytes as of the last time this buffer was created
+	 *         or refreshed
+	 */
+	long length();
+
+	/**
+	 * Picks up any change in the underlying files.
+	 *
+	 * @return the new length of this buffer
+	 * @throws IOException
+	 *             if the files cannot be read
+	 */
+	long refresh() throws IOException;
+
+	/**
+	 * @return the number of bytes at the beginning of this buffer that the
+	 *         last refresh() left as they were. It is less than the length
+	 *         before the refresh if this buffer became shorter, or if data
+	 *         that was already there moved, such as when a compressed file
+	 *         turned out to be longer than the length recorded in it.
+	 */
+	long getUnchangedLength();
+
+	/**
+	 * Releases the underlying files. This buffer may not be used after this
+	 * method is called.
+	 */
+	void close();
+
+	/**
+	 * Gets the byte at the given position
+	 *
+	 * @param pos
+	 *            -- the position in this buffer
+	 * @return the byte at pos
+	 */
+	byte get(long pos);
+
+	/**
+	 * Finds the first line break within a range of this buffer.
+	 *
+	 * @param from
+	 *            -- the first position to examine
+	 * @param to
+	 *            -- the position at which to stop, exclusive
+	 * @return the position of the first line break in the range, or -1 if
+	 *         there is none
+	 */
+	long indexOfBreak(long from, long to);
+
+	/**
+	 * Finds the last line break within a range of this buffer.
+	 *
+	 * @param from
+	 *            -- the position at which to stop, inclusive
+	 * @param to
+	 *            -- the position after the first one to examine
+	 * @return the position of the last line break in the range, or -1 if
+	 *         there is none
+	 */
+	long lastIndexOfBreak(long from, long to);
+
+	/**
+	 * Counts the line breaks within a range of this buffer.
+	 *
+	 * @param from
+	 *            -- the first position to examine
+	 * @param to
+	 *            -- the position at which to stop, exclusive
+	 * @return the number of line breaks in the range
+	 */
+	long countBreaks(long from, long to);
+
+	/**
+	 * Decodes a range of this buffer into a String
+	 *
+	 * @param start
+	 *            -- the position of the first byte to decode
+	 * @param end
+	 *            -- the position after the last byte to decode
+	 * @param decoder
+	 *            -- the decoder to use
+	 * @return the decoded String
+	 */
+	String decode(long start, long end, LineDecoder decoder);
+
+	/**
+	 * Copies a range of this buffer into a new array
+	 *
+	 * @param start
+	 *            -- the position of the first byte to copy
+	 * @param end
+	 *            -- the position after the last byte to copy
+	 * @return the bytes in the range
+	 */
+	byte[] copy(long start, long end);
+
+	/**
+	 * Copies a range of this buffer into an existing array
+	 *
+	 * @param start
+	 *            -- the position of the first byte to copy
+	 * @param end
+	 *            -- the position after the last byte to copy
+	 * @param dest
+	 *            -- the array to copy into
+	 * @param offset
+	 *            -- the position in dest of the first byte copied
+	 */
+	void copyTo(long start, long end, byte[] dest, int offset);
+
+}
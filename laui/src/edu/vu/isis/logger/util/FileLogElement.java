@@ -0,0 +1,108 @@
+/*Copyright (C) 2010-2012 Institute for Software Integrated Systems (ISIS)
+This software was developed by the Institute for Software Integrated
+Systems (ISIS) at Vanderbilt University, Tennessee, USA for the 
+Transformative Apps program under DARPA, Contract # HR011-10-C-0175.
+The United States Government has unlimited rights to this software. 
+The US government has the right to use, modify, reproduce, release, 
+perform, display, or disclose computer software or computer software 
+documentation in whole or in part, in any manner and for any 
+purpose whatsoever, and to have or authorize others to do so.
+ */
+package edu.vu.isis.logger.util;
+
+/**
+ * A LogElement for a line of a file that holds only where the line is in the
+ * file's buffer. The line is gotten from a LinePageCache the first time its
+ * message is asked for, such as when the line is first drawn, and the message
+ * is kept after that. Lines that are read into the margins above and below the
+ * screen but are never scrolled to are therefore never decoded, and lines that
+ * are scrolled away from and back to are usually still in the cache.
+ * <p/>
+ * If the line is the first line of a collapsed stack trace, its message ends
+ * with the number of lines that are hidden.
+ * 
+ * @author Nick King
+ * 
+ */
+public class FileLogElement extends LogElement {
+
+	private final LinePageCache mCache;
+	private final long start;
+	private final long end;
+	private final int hiddenLines;
+
+	private String mMessage;
+
+	/**
+	 * @param level
+	 *            -- the level corresponding to the line
+	 * @param cache
+	 *            -- the cache of the lines of the buffer holding the line
+	 * @param start
+	 *            -- the position of the first character of the line
+	 * @param end
+	 *            -- the position of the line break that ends the line, or the
+	 *            length of the buffer if it has none
+	 * @param hiddenLines
+	 *            -- the number of lines collapsed under the line
+	 */
+	FileLogElement(LogLevel level, LinePageCache cache, long start, long end,
+			int hiddenLines) {
+		super(level);
+		mCache = cache;
+		this.start = start;
+		this.end = end;
+		this.hiddenLines = hiddenLines;
+	}
+
+	/**
+	 * @return the position of the first character of the line in the file
+	 */
+	public long getStart() {
+		return start;
+	}
+
+	/**
+	 * @return the position after the last character of the line in the file
+	 */
+	public long getEnd() {
+		return end;
+	}
+
+	/**
+	 * @return the number of lines collapsed under this line
+	 */
+	public int getHiddenLines() {
+		return hiddenLines;
+	}
+
+	/**
+	 * @return true if the line has already been decoded
+	 */
+	public synchronized boolean isDecoded() {
+		return mMessage != null;
+	}
+
+	@Override
+	public synchronized String getMessage() {
+
+		if (mMessage != null)
+			return mMessage;
+
+		try {
+			final String line = mCache.getLine(start, end);
+			mMessage = (hiddenLines == 0) ? line : line + "  [+"
+					+ hiddenLines + ((hiddenLines == 1) ? " line]" : " lines]");
+		} catch (IndexOutOfBoundsException e) {
+			// The file was truncated since the line was read
+			return "";
+		} catch (IllegalStateException e) {
+			// The file was closed since the line was read
+			return "";
+		}
+
+		return mMessage;
+
+	}
+
+}
@@ -16,10 +16,17 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
 
 import android.content.Context;
 import android.os.FileObserver;
 import android.os.Handler;
+import android.os.Message;
 
 /**
  * A log reader designed to read logs from files. This log reader is designed to
@@ -48,26 +55,100 @@ import android.os.Handler;
  * newest, bottommost line is pushed off screen again. This is the model that
  * was in mind for this class to facilitate.
  * <p/>
- * This log reader does not cache previously read data to accomplish this
+ * This log reader does not keep the lines it has read to accomplish this
  * behavior. It only keeps track of the position of the top and bottom lines
- * within its spread limit. It is the responsibility of the client class to
- * manage the lines as they are read and do whatever is necessary to ensure that
- * when scrollUp() or scrollDown() is called, the expected lines are in fact the
- * ones that are returned.
+ * within its spread limit, along with a LinePageCache of recently decoded
+ * lines so that scrolling back over them does not decode them again. It is the
+ * responsibility of the client class to manage the lines as they are read and
+ * do whatever is necessary to ensure that when scrollUp() or scrollDown() is
+ * called, the expected lines are in fact the ones that are returned.
+ * <p/>
+ * Once started, this log reader follows the end of the file in the manner of
+ * <code>tail -f</code>. When the file is modified, only the appended data is
+ * mapped and indexed, and the new lines are sent to the Handler in batches
+ * with the what field set to CONCAT_DATA_MSG. Modifications that happen close
+ * together are coalesced into a single batch. The lines are only read and sent
+ * if the bottom line marker is at the end of the file, since otherwise the
+ * client class is not displaying the end of the file anyway. A client class
+ * receiving a batch should pass it to acceptAppendedLines() to find out how
+ * many lines it must clear from its top.
+ * <p/>
+ * A FileLogReader may also be given the archives of a rolling file appender
+ * along with its active file. They are read as one continuous file with a
+ * single set of line numbers, and when the active file is rolled over, the new
+ * active file is joined onto the end and followed in its place.
+ * <p/>
+ * A FileLogReader can also show only some of the lines of the file, in the
+ * manner of <code>grep</code>. A LineGrep made by newGrep() finds the lines,
+ * and passing its result to setSelection() makes the scrolling and jumping
+ * methods skip over every other line. New lines are not sent while a
+ * selection is set.
+ * <p/>
+ * If the pattern of the appender that wrote the file is given to
+ * setLayoutPattern(), the level of each line is found from its level field.
+ * Otherwise it is found from the first character of the line. The lines of a
+ * stack trace are given the level of the line that logged it,
+ * and setCollapsed() can show each stack trace as only that line, followed by
+ * a count of the lines that are hidden. New lines are not sent while records
+ * are collapsed either.
  * 
  * @author Nick King
  * 
  */
 public class FileLogReader extends LogReader {
 
+	/*
+	 * Returned by scrollUp() and scrollDown() when there are no more lines,
+	 * and only ever compared by identity
+	 */
 	public static final LogElement BEG_OF_FILE = new LogElement(LogLevel.None,
-			ByteBuffers.BEG_OF_TEXT_STR);
+			"");
 	public static final LogElement END_OF_FILE = new LogElement(LogLevel.None,
-			ByteBuffers.END_OF_TEXT_STR);
+			"");
+
+	/**
+	 * The constant for the what field of a Message that contains an
+	 * AppendedLines object
+	 */
+	public static final int CONCAT_DATA_MSG = 0;
 
-	// private final MyFileObserver mObserver;
+	/**
+	 * How long in ms to wait after a modification before reading the new data,
+	 * so that several writes in a row are sent as one batch
+	 */
+	private static final long FOLLOW_DELAY = 100;
+
+	private final MyFileObserver mObserver;
 	private final File mFile;
+	private final ConcatenatedFileBuffer mBuffer;
 	private final ScrollingFileReader mReader;
+	private final IndexCache mIndexCache;
+
+	private final ScheduledExecutorService scheduler = Executors
+			.newSingleThreadScheduledExecutor();
+	private final AtomicBoolean isFollowScheduled = new AtomicBoolean(false);
+
+	/* Receives the ends of the line stepped over by scrollUp() and scrollDown() */
+	private final long[] mLine = new long[2];
+
+	/* Shared by the FileLogElements made by this reader to decode their lines */
+	private final LinePageCache mPageCache;
+
+	/* Only used on the scheduler's thread once this reader has been started */
+	private final LineDecoder mFollowDecoder = new LineDecoder();
+	private long followPos;
+
+	private final Runnable followRunnable = new Runnable() {
+		@Override
+		public void run() {
+			isFollowScheduled.set(false);
+			try {
+				sendAppendedLines();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	};
 
 	/**
 	 * @param context
@@ -104,38 +185,196 @@ public class FileLogReader extends LogReader {
 	 */
 	public FileLogReader(Context context, Handler handler, File file,
 			int spreadLimit) throws IOException, FileNotFoundException {
-		mReader = new ScrollingFileReader(file, spreadLimit);
-		mFile = file;
+
+		this(context, handler, Collections.singletonList(file), spreadLimit);
+
+	}
+
+	/**
+	 * Creates a FileLogReader that reads several files as though they were one
+	 * continuous file, such as the archives of a rolling file appender
+	 * followed by its active file. Files ending with ".gz" are decompressed
+	 * on the fly, which requires indexing them the first time they are read.
+	 * <p/>
+	 * If the lines of the files were indexed the last time they were opened
+	 * and saveIndex() was called, the saved index is read back here, so this
+	 * constructor should not be called from the UI thread.
+	 * 
+	 * @param context
+	 *            -- the Context of the Activity using this FileLogReader
+	 * @param handler
+	 *            -- the Handler to which messages should be posted
+	 * @param files
+	 *            -- the files which will be read, from oldest to newest. The
+	 *            last file is the one that will be followed.
+	 * @param spreadLimit
+	 *            -- the farthest apart the top and bottom line markers can be
+	 *            before they are moved simultaneously when a new line is read
+	 * @throws IOException
+	 * @throws FileNotFoundException
+	 */
+	public FileLogReader(Context context, Handler handler, List<File> files,
+			int spreadLimit) throws IOException, FileNotFoundException {
+		mBuffer = new ConcatenatedFileBuffer(files, context.getCacheDir());
+		mReader = new ScrollingFileReader(mBuffer, spreadLimit);
+		mPageCache = new LinePageCache(mBuffer);
+		mIndexCache = new IndexCache(context.getCacheDir(), mBuffer.getFiles());
+		final LineIndex savedIndex = mIndexCache.load();
+		if (savedIndex != null)
+			mReader.setLineIndex(savedIndex);
+		mFile = files.get(files.size() - 1).getAbsoluteFile();
 		mContext = context;
 		mHandler = handler;
-		// mObserver = new MyFileObserver(file.getAbsolutePath(),
-		// FileObserver.MODIFY);
+		// Watch the directory rather than the file so that we also hear about
+		// the new file created when the file is rolled over
+		mObserver = new MyFileObserver(mFile.getParent(), FileObserver.MODIFY
+				| FileObserver.CREATE | FileObserver.MOVED_TO);
 	}
 
-	/*
-	 * The functionality for displaying new file contents as they are written
-	 * has not been added yet, so the overidden methods below essentially do
-	 * nothing.
+	/**
+	 * Starts following the end of the file. It is extremely important that
+	 * after this method is called, the terminate method is called when this
+	 * object is no longer needed.
 	 */
-
 	@Override
 	public void start() {
-		// mObserver.startWatching();
+		super.start();
+		followPos = mReader.length();
+		mObserver.startWatching();
+		resume();
 	}
 
+	/**
+	 * Resumes sending new lines, including any that were written while this
+	 * reader was paused
+	 */
 	@Override
 	public void resume() {
-		// TODO: Resume the FileObserver
+		super.resume();
+		scheduleFollow();
 	}
 
+	/**
+	 * Stops sending new lines until resume() is called. The file is still
+	 * watched so that nothing written in the meantime is missed.
+	 */
 	@Override
 	public void pause() {
-		// TODO: Pause the FileObserver
+		super.pause();
+	}
+
+	/**
+	 * Gets the level of a line from the index, so that the level field of the
+	 * layout is used and continuation lines take the level of their record
+	 */
+	@Override
+	public LogLevel findLevel(LogElement element) {
+		if (!(element instanceof FileLogElement))
+			return super.findLevel(element);
+		final FileLogElement line = (FileLogElement) element;
+		synchronized (mReader) {
+			// The file may have been truncated since the line was read
+			if (line.getEnd() <= line.getStart()
+					|| line.getStart() >= mReader.length())
+				return LogLevel.None;
+			return mReader.getLevelOf(line.getStart());
+		}
 	}
 
 	@Override
 	public void terminate() {
-		// mObserver.stopWatching();
+		super.terminate();
+		mObserver.stopWatching();
+		scheduler.shutdownNow();
+		mReader.close();
+	}
+
+	/**
+	 * Updates the line markers to account for a batch of lines that was sent
+	 * to the Handler. If the batch does not begin at the bottom line marker,
+	 * because the client class has moved elsewhere in the file since the
+	 * batch was read, the batch is rejected and should be discarded.
+	 * 
+	 * @param lines
+	 *            -- the batch of lines received by the Handler
+	 * @return the number of lines that the client class must clear from the
+	 *         top of its list after adding the batch to the bottom, or -1 if
+	 *         the batch was rejected
+	 */
+	public int acceptAppendedLines(AppendedLines lines) {
+		return mReader.advanceOver(lines.startPos, lines.endPos,
+				lines.elements.size());
+	}
+
+	/**
+	 * Schedules the new data in the file to be read, unless it already has
+	 * been
+	 */
+	private void scheduleFollow() {
+		if (!isFollowScheduled.getAndSet(true)) {
+			try {
+				scheduler.schedule(followRunnable, FOLLOW_DELAY,
+						TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				// We have been terminated, so there is nobody to send to
+			}
+		}
+	}
+
+	/**
+	 * Maps the data appended to the file since the last time this method was
+	 * called and sends the complete lines in it to the Handler. A line that
+	 * has not had its line break written yet is left for the next time.
+	 */
+	private void sendAppendedLines() throws IOException {
+
+		if (isPaused.get() || hasBeenTerminated.get())
+			return;
+
+		final long length = mReader.notifyFileModified();
+		final FileBuffer buffer = mReader.getBuffer();
+		final long unchanged = buffer.getUnchangedLength();
+
+		if (length < followPos || unchanged < followPos) {
+			// The file was truncated, or what we read moved, so start
+			// following from where the file still holds what we read
+			followPos = Math.min(length, unchanged);
+			return;
+		}
+
+		final long startPos = followPos;
+		final long lastBreak = buffer.lastIndexOfBreak(startPos, length);
+		if (lastBreak < 0)
+			return;
+		final long endPos = lastBreak + 1;
+		followPos = endPos;
+
+		// Nobody is looking at the end of the file, so don't bother reading it.
+		// The new lines were not grepped, so they aren't shown when filtering,
+		// and they are one row each, so they aren't shown when records are
+		// collapsed. Either way they are read when the list is scrolled down.
+		if (mReader.getSelection() != null || mReader.isCollapsed()
+				|| mReader.getBotLinePos() != startPos)
+			return;
+
+		final List<LogElement> elements = new ArrayList<LogElement>();
+		long lineStart = startPos;
+		while (lineStart < endPos) {
+			final long lineBreak = buffer.indexOfBreak(lineStart, endPos);
+			final String str = buffer.decode(lineStart, lineBreak,
+					mFollowDecoder);
+			final LogLevel level = isColored() ? mReader.getLevelOf(lineStart)
+					: LogLevel.None;
+			elements.add(new LogElement(level, str));
+			lineStart = lineBreak + 1;
+		}
+
+		final Message msg = Message.obtain();
+		msg.what = CONCAT_DATA_MSG;
+		msg.obj = new AppendedLines(startPos, endPos, elements);
+		msg.setTarget(mHandler);
+		msg.sendToTarget();
+
 	}
 
 	/**
@@ -146,14 +385,11 @@ public class FileLogReader extends LogReader {
 	 *         reached
 	 */
 	public LogElement scrollDown() {
-		String str = mReader.stepForward();
-		if (str.equals(ByteBuffers.END_OF_TEXT_STR))
-			return END_OF_FILE;
-		if (str.endsWith(ByteBuffers.END_OF_TEXT_STR)) {
-			// Trim off the EOF character given to us by ByteBuffers
-			str = str.substring(0, str.length() - 1);
+		synchronized (mReader) {
+			if (!mReader.stepOverLine(true, mLine))
+				return END_OF_FILE;
+			return makeElement(mLine[0], mLine[1]);
 		}
-		return new LogElement(getCorrespondingLevelIfIsColored(str), str);
 	}
 
 	/**
@@ -164,44 +400,45 @@ public class FileLogReader extends LogReader {
 	 *         file was reached
 	 */
 	public LogElement scrollUp() {
-		String str = mReader.stepBackward();
-		if (str.equals(ByteBuffers.BEG_OF_TEXT_STR))
-			return BEG_OF_FILE;
-		if (str.startsWith(ByteBuffers.BEG_OF_TEXT_STR)) {
-			// Trim off the BOF character given to us by ByteBuffers
-			str = str.substring(1);
+		synchronized (mReader) {
+			if (!mReader.stepOverLine(false, mLine))
+				return BEG_OF_FILE;
+			return makeElement(mLine[0], mLine[1]);
 		}
-		return new LogElement(getCorrespondingLevelIfIsColored(str), str);
 	}
 
+	/**
+	 * @return true if there are no more lines below the bottom line marker
+	 */
 	public boolean atEndOfFile() {
-		final String str = mReader.peekForward();
-		return str == ByteBuffers.END_OF_TEXT_STR;
+		return mReader.isAtEnd();
 	}
 
+	/**
+	 * @return true if there are no more lines above the top line marker
+	 */
 	public boolean atBegOfFile() {
-		final String str = mReader.peekBackward();
-		return str == ByteBuffers.BEG_OF_TEXT_STR;
+		return mReader.isAtBeginning();
 	}
 
 	/**
 	 * Scroll down through the file as far as possible until the spread limit is
-	 * reached
+	 * reached. The lines are not decoded until they are first shown.
 	 * 
 	 * @return a list of all LogElements read
 	 */
 	public List<LogElement> fillDown() {
 
-		final String[] str = mReader.leapForward();
 		final List<LogElement> logList = new ArrayList<LogElement>();
 
-		for (int i = 0; i < str.length; i++) {
-			// Return early if we reach the end of the file
-			if (str[i].equals(ByteBuffers.END_OF_TEXT_STR))
-				return logList;
-			LogElement element = new LogElement(
-					getCorrespondingLevelIfIsColored(str[i]), str[i]);
-			logList.add(element);
+		final long[] starts = new long[mReader.getSpreadLimit()];
+		final long[] ends = new long[starts.length];
+
+		synchronized (mReader) {
+			final int numLines = mReader.leapOverLines(true, starts, ends);
+			for (int i = 0; i < numLines; i++) {
+				logList.add(makeElement(starts[i], ends[i]));
+			}
 		}
 
 		return logList;
@@ -214,28 +451,73 @@ public class FileLogReader extends LogReader {
 
 	/**
 	 * Scroll up through the file as far as possible until the spread limit is
-	 * reached
+	 * reached. The lines are not decoded until they are first shown.
 	 * 
 	 * @return a list of all LogElements read
 	 */
 	public List<LogElement> fillUp() {
-		final String[] str = mReader.leapBackward();
+
 		final List<LogElement> logList = new ArrayList<LogElement>();
 
-		for (int i = 0; i < str.length; i++) {
-			// Return early if we reach the end of the file
-			if (str[i].equals(ByteBuffers.END_OF_TEXT_STR))
-				return logList;
-			LogElement element = new LogElement(
-					getCorrespondingLevelIfIsColored(str[i]), str[i]);
-			logList.add(element);
-		}
+		final long[] starts = new long[mReader.getSpreadLimit()];
+		final long[] ends = new long[starts.length];
 
-		Collections.reverse(logList);
+		synchronized (mReader) {
+			final int numLines = mReader.leapOverLines(false, starts, ends);
+			// The lines were read from the bottom up
+			for (int i = numLines - 1; i >= 0; i--) {
+				logList.add(makeElement(starts[i], ends[i]));
+			}
+		}
 
 		return logList;
 	}
 
+	/**
+	 * Decodes the lines that the next scrollDown() or scrollUp() calls will
+	 * read into the page cache, so that showing them later does not have to
+	 * touch the file. This should be called from a background thread, and
+	 * does not move the line markers.
+	 * 
+	 * @param forward
+	 *            -- true to prefetch the lines below the bottom line marker,
+	 *            false for the lines above the top line marker
+	 * @param numLines
+	 *            -- how many lines to prefetch
+	 */
+	public void prefetch(boolean forward, int numLines) {
+		final long[] lineStarts = mReader.peekLineStarts(forward, numLines);
+		for (int i = 0; i < lineStarts.length; i++) {
+			// Each page is decoded while holding the lock on mReader so that
+			// the file is not truncated under it, as when getting a line
+			synchronized (mReader) {
+				if (lineStarts[i] >= mReader.length())
+					return;
+				mPageCache.prefetch(lineStarts[i]);
+			}
+		}
+	}
+
+	/**
+	 * Makes a LogElement for a line without decoding it. Its level is found
+	 * from the first byte of the first line of its record. The caller must
+	 * hold the lock on mReader so that the file is not truncated in the
+	 * meantime.
+	 * 
+	 * @param lineStart
+	 *            -- the position of the first character of the line
+	 * @param lineEnd
+	 *            -- the position of the end of the line
+	 * @return a FileLogElement that decodes the line when it is first shown
+	 */
+	private LogElement makeElement(long lineStart, long lineEnd) {
+		LogLevel level = LogLevel.None;
+		if (isColored() && lineEnd > lineStart)
+			level = mReader.getLevelOf(lineStart);
+		return new FileLogElement(level, mPageCache, lineStart, lineEnd,
+				mReader.countHiddenLines(lineStart));
+	}
+
 	/**
 	 * Jumps to the end of the file. It is important to note that both the
 	 * bottom and top line markers are moved to the same position. Therefore, it
@@ -257,27 +539,346 @@ public class FileLogReader extends LogReader {
 	}
 
 	/**
-	 * Private inner class to notify us of file events. The plan is to
-	 * automatically do whatever is necessary to allow the user to see the new
-	 * lines in the file when they are added, but this functionality is not yet
-	 * implemented.
+	 * Jumps to the given line of the file. Both line markers are moved to the
+	 * beginning of the line, so it is probably desirable to call fillDown()
+	 * after calling this method.
+	 *
+	 * @param line
+	 *            -- the line to jump to, starting from 1
 	 */
-	@SuppressWarnings("unused")
-	private class MyFileObserver extends FileObserver {
+	public void jumpToLine(int line) {
+		mReader.jumpToLine(line);
+	}
+
+	/**
+	 * Jumps to the line holding the given position in the file, such as the
+	 * position of a search match. Both line markers are moved to a few lines
+	 * before it, so it is probably desirable to call fillDown() after calling
+	 * this method.
+	 * 
+	 * @param pos
+	 *            -- a position within the line to jump to
+	 * @param linesBefore
+	 *            -- how many lines to show before the line, if there are that
+	 *            many
+	 * @return the number of lines that will come before the line when
+	 *         fillDown() is called
+	 */
+	public int jumpToOffset(long pos, int linesBefore) {
+		return mReader.jumpToOffset(pos, linesBefore);
+	}
+
+	/**
+	 * Jumps to the first line whose timestamp is at or after a time typed by
+	 * the user. Both line markers are moved to a few lines before it, so it
+	 * is probably desirable to call fillDown() after calling this method. The
+	 * times of the lines must have been indexed, so this should be called
+	 * once isIndexed() returns true.
+	 * 
+	 * @param input
+	 *            -- a date and time such as 2012-05-01 14:32, or a time of day
+	 *            such as 14:32:05 on the day of the line at the top
+	 * @param linesBefore
+	 *            -- how many lines to show before the line, if there are that
+	 *            many
+	 * @return the number of lines that will come before the line when
+	 *         fillDown() is called
+	 * @throws IllegalArgumentException
+	 *             if the input is not a time
+	 * @throws IllegalStateException
+	 *             if none of the lines has a timestamp
+	 */
+	public int jumpToTime(String input, int linesBefore) {
+		return mReader.jumpToTime(input, linesBefore);
+	}
+
+	/**
+	 * Sets the pattern of the timestamps of the lines, so that their times
+	 * are indexed along with the lines and jumpToTime() can be used
+	 * 
+	 * @param datePattern
+	 *            -- the SimpleDateFormat pattern of the timestamps, such as
+	 *            TimestampParser.DEFAULT_PATTERN, or null to not index times
+	 * @throws IllegalArgumentException
+	 *             if the pattern is not valid
+	 */
+	public void setTimestampPattern(String datePattern) {
+		mReader.setTimestampPattern(datePattern);
+	}
+
+	/**
+	 * Sets the pattern of the encoder of the appender that wrote the file, so
+	 * that the level of each line is found from its level field. If the lines
+	 * were indexed with a different pattern, they are indexed again, so this
+	 * should be called before the file is indexed.
+	 * 
+	 * @param pattern
+	 *            -- the pattern of a logback PatternLayout, or null to find
+	 *            levels from the first character of each line
+	 * @throws IllegalArgumentException
+	 *             if the pattern is not valid
+	 */
+	public void setLayoutPattern(String pattern) {
+		mReader.setLayoutPattern(pattern);
+	}
 
-		private FileLogReader parent = FileLogReader.this;
+	/**
+	 * @return the layout of the lines, or null if none was given
+	 */
+	public PatternLayoutParser getLayout() {
+		return mReader.getLayout();
+	}
 
-		public MyFileObserver(String path) {
-			super(path);
+	/**
+	 * Finds the next occurrence of some text after the given position. The
+	 * file is searched as raw bytes, so no lines are decoded, and this may be
+	 * called from a background thread.
+	 * 
+	 * @param searcher
+	 *            -- the text to find
+	 * @param from
+	 *            -- the first position at which the text may begin
+	 * @return the position of the match, or -1 if there is none
+	 */
+	public long findNext(ByteSearcher searcher, long from) {
+		return searcher.indexOf(mReader.getBuffer(), from, mReader.length());
+	}
+
+	/**
+	 * Finds the last occurrence of some text that begins before the given
+	 * position. This may be called from a background thread.
+	 * 
+	 * @param searcher
+	 *            -- the text to find
+	 * @param before
+	 *            -- the position before which the text must begin
+	 * @return the position of the match, or -1 if there is none
+	 */
+	public long findPrevious(ByteSearcher searcher, long before) {
+		final long to = Math.min(mReader.length(), before
+				+ searcher.getPatternLength() - 1);
+		return searcher.lastIndexOf(mReader.getBuffer(), 0, to);
+	}
+
+	/**
+	 * Makes a grep for the lines of the file that hold some text. The grep
+	 * is not started until its run() method is called, which may take a while,
+	 * so it should be called from a background thread.
+	 * 
+	 * @param searcher
+	 *            -- the text to find
+	 * @param contextLines
+	 *            -- how many lines before and after each line found to select
+	 *            as well
+	 * @return the grep
+	 */
+	public LineGrep newGrep(ByteSearcher searcher, int contextLines) {
+		return new LineGrep(mReader.getBuffer(), searcher, contextLines);
+	}
+
+	/**
+	 * Makes a grep for the lines of the file that match a regular expression.
+	 * 
+	 * @param pattern
+	 *            -- the regular expression to find in each line
+	 * @param contextLines
+	 *            -- how many lines before and after each line found to select
+	 *            as well
+	 * @return the grep
+	 * @see #newGrep(ByteSearcher, int)
+	 */
+	public LineGrep newGrep(Pattern pattern, int contextLines) {
+		return new LineGrep(mReader.getBuffer(), pattern, contextLines);
+	}
+
+	/**
+	 * Finds the lines of the file whose level is at least the given level.
+	 * The line index keeps a mask of the levels in each block of lines, so
+	 * blocks holding none of the levels are skipped. Only lines that have been
+	 * indexed are found, so this should be called once isIndexed() returns
+	 * true. It should also be called from a background thread.
+	 * 
+	 * @param minLevel
+	 *            -- the least severe level to find
+	 * @return the lines found, which may be passed to setSelection()
+	 */
+	public LineSelection selectLevels(LogLevel minLevel) {
+		return mReader.copyLineIndex().selectLevels(mReader.getBuffer(),
+				LineIndex.maskOfLevelsFrom(minLevel));
+	}
+
+	/**
+	 * Sets the only lines to read, such as the result of a LineGrep. Both
+	 * line markers are moved to the beginning of the file, so it is probably
+	 * desirable to call fillDown() after calling this method.
+	 * 
+	 * @param selection
+	 *            -- the lines to read, or null to read every line again
+	 */
+	public void setSelection(LineSelection selection) {
+		mReader.setSelection(selection);
+	}
+
+	/**
+	 * @return the only lines being read, or null if every line is read
+	 */
+	public LineSelection getSelection() {
+		return mReader.getSelection();
+	}
+
+	/**
+	 * Sets whether each stack trace or other record of more than one line is
+	 * shown as only its first line. Both line markers are moved to the
+	 * beginning of the record holding the top line, so it is probably
+	 * desirable to call fillDown() after calling this method. Only records in
+	 * the part of the file that has been indexed are collapsed, so this should
+	 * be called once isIndexed() returns true.
+	 * 
+	 * @param collapsed
+	 *            -- true to collapse records, false to show every line
+	 */
+	public void setCollapsed(boolean collapsed) {
+		mReader.setCollapsed(collapsed);
+	}
+
+	public boolean isCollapsed() {
+		return mReader.isCollapsed();
+	}
+
+	/**
+	 * @return the position of the first character of the topmost line read
+	 */
+	public long getTopLinePos() {
+		return mReader.getTopLinePos();
+	}
+
+	/**
+	 * @return the position after the line break of the bottommost line read
+	 */
+	public long getBotLinePos() {
+		return mReader.getBotLinePos();
+	}
+
+	/**
+	 * Jumps to the line that is the given fraction of the way through the
+	 * file. Both line markers are moved to the beginning of the line, so it is
+	 * probably desirable to call fillDown() after calling this method.
+	 *
+	 * @param fraction
+	 *            -- a value from 0 to 1
+	 */
+	public void jumpToFraction(float fraction) {
+		mReader.jumpToFraction(fraction);
+	}
+
+	/**
+	 * Gets the number of lines in the file. If the file has not been indexed,
+	 * this will scan the whole file, so it should not be called from the UI
+	 * thread unless isIndexed() returns true.
+	 * 
+	 * @return the number of lines in the file
+	 */
+	public int getNumLines() {
+		return mReader.getNumLinesInBuffer();
+	}
+
+	/**
+	 * Indexes a limited number of bytes of the file. This is meant to be
+	 * called repeatedly from a background thread until it returns true, and
+	 * the file can be scrolled in the meantime. Any compressed archives are
+	 * inflated into chunks first, so that scrolling into them later does not
+	 * have to inflate them, and so that their real lengths are known before
+	 * their lines are counted.
+	 * 
+	 * @param maxBytes
+	 *            -- the most bytes to scan
+	 * @return true if the whole file has now been indexed
+	 */
+	public boolean indexMore(long maxBytes) {
+		if (!mBuffer.isUnpacked()) {
+			if (!mBuffer.unpackMore(maxBytes))
+				return false;
+			try {
+				mReader.notifyFileModified();
+			} catch (IOException e) {
+				throw new IllegalStateException("Unable to read "
+						+ mFile.getName(), e);
+			}
+		}
+		return mReader.indexMore(maxBytes);
+	}
+
+	/**
+	 * Saves the index of the lines in the file to the cache directory, so that
+	 * the next FileLogReader to open the file can use it rather than scanning
+	 * the file again. This writes to a file, so it should be called from a
+	 * background thread.
+	 */
+	public void saveIndex() {
+		mIndexCache.save(mReader.copyLineIndex());
+	}
+
+	/**
+	 * @return true if the lines of the whole file have been indexed, and any
+	 *         compressed archives have been inflated
+	 */
+	public boolean isIndexed() {
+		return mBuffer.isUnpacked() && mReader.isIndexed();
+	}
+
+	/**
+	 * @return the number of bytes of the file that have been indexed
+	 */
+	public long getIndexedLength() {
+		return mReader.getIndexedLength();
+	}
+
+	/**
+	 * @return the number of lines found so far while indexing
+	 */
+	public int getNumIndexedLines() {
+		return mReader.getNumIndexedLines();
+	}
+
+	/**
+	 * @return the number of bytes in the file
+	 */
+	public long length() {
+		return mReader.length();
+	}
+
+	/**
+	 * A batch of lines that were appended to the file, along with the range of
+	 * the file that they came from
+	 */
+	public static class AppendedLines {
+
+		final long startPos;
+		final long endPos;
+		public final List<LogElement> elements;
+
+		AppendedLines(long startPos, long endPos, List<LogElement> elements) {
+			this.startPos = startPos;
+			this.endPos = endPos;
+			this.elements = elements;
 		}
 
+	}
+
+	/**
+	 * Private inner class to notify us when the file is written to or replaced
+	 */
+	private class MyFileObserver extends FileObserver {
+
 		public MyFileObserver(String path, int mask) {
 			super(path, mask);
 		}
 
 		@Override
 		public void onEvent(int event, String path) {
-			System.err.println(mFile.length());
+			if (mFile.getName().equals(path)) {
+				scheduleFollow();
+			}
 		}
 
 	}
@@ -0,0 +1,237 @@
+/*Copyright (C) 2010-2012 Institute for Software Integrated Systems (ISIS)
+This software was developed by the Institute for Software Integrated
+Systems (ISIS) at Vanderbilt University, Tennessee, USA for the
+Transformative Apps program under DARPA, Contract # HR011-10-C-0175.
+The United States Government has unlimited rights to this software.
+The US government has the right to use, modify, reproduce, release,
+perform, display, or disclose computer software or computer software
+documentation in whole or in part, in any manner and for any
+purpose whatsoever, and to have or authorize others to do so.
+ */
+package edu.vu.isis.logger.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.List;
+
+/**
+ * A MergeSource that reads a log file, or the archives of a rolling file
+ * appender along with its active file, through a FileBuffer. Positions are
+ * byte offsets, and nothing is read until it is asked for, so a large file
+ * costs no more memory than a small one.
+ * <p/>
+ * Each entry is a line with a timestamp followed by the lines after it that
+ * have none, up to MAX_ENTRY_LINES lines in all. Lines without a timestamp
+ * that do not fit in an entry, such as those at the top of a file, are
+ * entries of their own with no time. Because the length of an entry is
+ * bounded, the entry before a position can be found by looking back at most
+ * MAX_ENTRY_LINES lines.
+ * <p/>
+ * If the timestamps of the file only give the time of day, they are taken to
+ * be on the day the file was last modified.
+ *
+ * @author Nick King
+ *
+ */
+public class FileMergeSource implements MergeSource {
+
+	/** the most lines that one entry can span, including its first line */
+	public static final int MAX_ENTRY_LINES = 64;
+
+	/** how many lines at the top of the file are looked at for a timestamp */
+	private static final int LINES_TO_CHECK = 64;
+
+	private final String mName;
+	private final ConcatenatedFileBuffer mBuffer;
+	private final TimestampParser mParser;
+	private final PatternLayoutParser mLayout;
+	private final LineDecoder mDecoder = new LineDecoder();
+
+	/** added to every time parsed, if the timestamps have no date */
+	private final long dayStart;
+
+	/** the position after the last complete line as of the last refresh */
+	private long end;
+
+	/**
+	 * Opens a log file to be merged. This reads the top of the file, so it
+	 * should not be called from the UI thread.
+	 *
+	 * @param name
+	 *            -- the name with which to tag the rows from this file
+	 * @param files
+	 *            -- the files which will be read, from oldest to newest
+	 * @param cacheDir
+	 *            -- where compressed archives may be decompressed
+	 * @param datePattern
+	 *            -- the SimpleDateFormat pattern of the timestamps
+	 * @param layout
+	 *            -- the pattern of the appender that wrote the file, used to
+	 *            find the level of each line, or null to take the level from
+	 *            the first character of each line
+	 * @throws IOException
+	 *             if the files cannot be read
+	 * @throws IllegalArgumentException
+	 *             if the date pattern is not valid or no timestamps in it
+	 *             were found at the top of the file
+	 */
+	public FileMergeSource(String name, List<File> files, File cacheDir,
+			String datePattern, PatternLayoutParser layout)
+			throws IOException {
+
+		mName = name;
+		mParser = new TimestampParser(datePattern);
+		mLayout = layout;
+		mBuffer = new ConcatenatedFileBuffer(files, cacheDir);
+		end = completeLinesEnd(mBuffer.length());
+		dayStart = mParser.hasDate() ? 0 : startOfDay(files.get(
+				files.size() - 1).lastModified());
+
+		if (!hasTimestamps()) {
+			mBuffer.close();
+			throw new IllegalArgumentException("No timestamps matching "
+					+ datePattern + " were found in " + name);
+		}
+
+	}
+
+	@Override
+	public String getName() {
+		return mName;
+	}
+
+	@Override
+	public long getBeginning() {
+		return 0;
+	}
+
+	@Override
+	public synchronized long getEnd() {
+		return end;
+	}
+
+	@Override
+	public synchronized long refresh() throws IOException {
+		end = completeLinesEnd(mBuffer.refresh());
+		return end;
+	}
+
+	@Override
+	public synchronized boolean readEntry(long pos, long[] entry) {
+
+		if (pos >= end)
+			return false;
+
+		final long time = parseTime(pos);
+		long lineStart = nextLineStart(pos);
+		if (time != TimestampParser.NO_TIME) {
+			for (int i = 1; i < MAX_ENTRY_LINES && lineStart < end
+					&& parseTime(lineStart) == TimestampParser.NO_TIME; i++) {
+				lineStart = nextLineStart(lineStart);
+			}
+		}
+
+		entry[0] = time;
+		entry[1] = pos;
+		entry[2] = lineStart;
+		return true;
+
+	}
+
+	@Override
+	public synchronized long entryBefore(long pos) {
+
+		if (pos <= 0)
+			return -1;
+
+		final long lineBefore = previousLineStart(pos);
+		long lineStart = lineBefore;
+		for (int i = 0; i < MAX_ENTRY_LINES; i++) {
+			if (parseTime(lineStart) != TimestampParser.NO_TIME)
+				return lineStart;
+			if (lineStart == 0)
+				break;
+			lineStart = previousLineStart(lineStart);
+		}
+
+		// No timestamp is close enough, so the line is an entry of its own
+		return lineBefore;
+
+	}
+
+	@Override
+	public synchronized String getText(long start, long end) {
+		// Leave off the last line break
+		return mBuffer.decode(start, Math.max(start, end - 1), mDecoder);
+	}
+
+	@Override
+	public synchronized LogLevel getLevel(long start) {
+		// The file may have been truncated since the entry was read
+		if (start >= end)
+			return LogLevel.None;
+		if (mLayout != null)
+			return mLayout.parseLevel(mBuffer, start, end);
+		return LogReader.getCorrespondingLevel((char) mBuffer.get(start));
+	}
+
+	@Override
+	public synchronized void close() {
+		mBuffer.close();
+	}
+
+	/**
+	 * @return whether any of the lines at the top of the file has a timestamp,
+	 *         or true if the file is still empty
+	 */
+	private boolean hasTimestamps() {
+		if (end == 0)
+			return true;
+		long lineStart = 0;
+		for (int i = 0; i < LINES_TO_CHECK && lineStart < end; i++) {
+			if (parseTime(lineStart) != TimestampParser.NO_TIME)
+				return true;
+			lineStart = nextLineStart(lineStart);
+		}
+		return false;
+	}
+
+	private long parseTime(long lineStart) {
+		final long time = mParser.parseLine(mBuffer, lineStart, end, mDecoder);
+		return (time == TimestampParser.NO_TIME) ? time : time + dayStart;
+	}
+
+	private long completeLinesEnd(long length) {
+		return mBuffer.lastIndexOfBreak(0, length) + 1;
+	}
+
+	private long nextLineStart(long pos) {
+		final long lineBreak = mBuffer.indexOfBreak(pos, end);
+		return (lineBreak < 0) ? end : lineBreak + 1;
+	}
+
+	/**
+	 * @param pos
+	 *            -- the position of the first character of a line, or the end
+	 * @return the position of the first character of the line before pos
+	 */
+	private long previousLineStart(long pos) {
+		return mBuffer.lastIndexOfBreak(0, pos - 1) + 1;
+	}
+
+	/**
+	 * @return the first ms of the local day holding the given time, as a time
+	 *         of day parsed in UTC would be counted from it
+	 */
+	private static long startOfDay(long time) {
+		final Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(time);
+		calendar.set(Calendar.HOUR_OF_DAY, 0);
+		calendar.set(Calendar.MINUTE, 0);
+		calendar.set(Calendar.SECOND, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+		return calendar.getTimeInMillis();
+	}
+
+}
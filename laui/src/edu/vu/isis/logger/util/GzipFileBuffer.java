@@ -0,0 +1,825 @@
+/*Copyright (C) 2010-2012 Institute for Software Integrated Systems (ISIS)
+This software was developed by the Institute for Software Integrated
+Systems (ISIS) at Vanderbilt University, Tennessee, USA for the
+Transformative Apps program under DARPA, Contract # HR011-10-C-0175.
+The United States Government has unlimited rights to this software.
+The US government has the right to use, modify, reproduce, release,
+perform, display, or disclose computer software or computer software
+documentation in whole or in part, in any manner and for any
+purpose whatsoever, and to have or authorize others to do so.
+ */
+package edu.vu.isis.logger.util;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A read-only view of the uncompressed contents of a gzip file that can be read
+ * at any position without inflating the file from the beginning.
+ * <p/>
+ * A gzip file can normally only be read from the start, and the Inflater
+ * cannot be resumed from the middle of a deflate stream, so the file is
+ * inflated once and its contents are split into chunks of CHUNK_SIZE bytes.
+ * Each chunk is deflated again on its own and written to a chunk file in the
+ * cache directory, along with an index of where each chunk begins. Reading any
+ * position then costs inflating at most one chunk, and the few most recently
+ * used chunks are kept inflated.
+ * <p/>
+ * The chunks are made in the background by unpackMore(), and a chunk that is
+ * read before then is made along with any before it that are still missing.
+ * The chunks are made one at a time under a lock of their own, so reading the
+ * chunks that have already been made never waits for the next one.
+ * <p/>
+ * The only length recorded in a gzip file is that of its last member, modulo
+ * 2^32, so it is only a hint until the file has been inflated. The buffer
+ * starts out with that length, and once every chunk has been made, the next
+ * refresh() changes it to the real one if they differ. Until then, a position
+ * past the real end reads as a line break. A file that has been modified
+ * recently is inflated as soon as it is opened, since it may still be being
+ * compressed.
+ * <p/>
+ * Once every chunk has been made, the chunk file and an index holding the real
+ * length are kept in the cache directory so that the next time the same gzip
+ * file is opened, they are used without inflating it again. They are named
+ * after the directory of the gzip file and the checksum and lengths recorded
+ * at its end rather than after its name, so they are still used after a
+ * rolling file appender renames the file. Those that no longer belong to any
+ * gzip file in the directory, and the temporary files left by a process that
+ * was killed while making chunks, are deleted by pruneCache().
+ *
+ * @author Nick King
+ *
+ */
+public class GzipFileBuffer extends AbstractSegmentedBuffer {
+
+	public static final int CHUNK_SIZE = 1024 * 1024;
+
+	private static final int MAX_INFLATED_CHUNKS = 4;
+
+	/** how long in ms a file must go unmodified before its length is trusted */
+	private static final long SETTLE_TIME = 60 * 1000;
+
+	private static final int INPUT_SIZE = 64 * 1024;
+
+	private static final String GZIP_SUFFIX = ".gz";
+	private static final String CACHE_PREFIX = "gz-";
+	private static final String CHUNK_SUFFIX = ".chunks";
+	private static final String INDEX_SUFFIX = ".chunkindex";
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	/** the length of the checksum and length at the end of a gzip file */
+	private static final int TRAILER_SIZE = 8;
+
+	/** the temporary files being written by the buffers of this process */
+	private static final Set<File> TEMP_FILES_IN_USE = new HashSet<File>();
+
+	private final File mFile;
+	private final File mCacheDir;
+	private final String mCacheName;
+
+	/* Held while a chunk is made, and never while the chunks are read */
+	private final Object mChunkLock = new Object();
+
+	/**
+	 * the position in the chunk file of each chunk, then the position after
+	 * the last chunk made, of which the first numChunksMade + 1 are known.
+	 * It is replaced by a larger array rather than grown in place.
+	 */
+	private volatile long[] chunkOffsets;
+	private volatile int numChunksMade;
+
+	/** the length of the uncompressed data, or -1 until it is known */
+	private volatile long realLength = -1;
+
+	private volatile FileChannel mChunkChannel;
+
+	/* Only used while holding mChunkLock */
+	private RandomAccessFile mChunkFile;
+	private File mTempChunkFile;
+	private MemberStream mSource;
+	private Deflater mDeflater;
+	private byte[] mChunk;
+	private byte[] mCompressed;
+	private long numInflated;
+
+	private volatile boolean isClosed;
+
+	/**
+	 * @param file
+	 *            -- the gzip file to read
+	 * @param cacheDir
+	 *            -- the directory in which to keep the chunk file
+	 * @throws IOException
+	 *             if the gzip file cannot be read or the chunk file cannot be
+	 *             written
+	 */
+	public GzipFileBuffer(File file, File cacheDir) throws IOException {
+		this(file, cacheDir, readTrailer(file));
+	}
+
+	private GzipFileBuffer(File file, File cacheDir, long[] trailer)
+			throws IOException {
+
+		super(CHUNK_SIZE, MAX_INFLATED_CHUNKS, trailer[1]);
+		mFile = file;
+		mCacheDir = cacheDir;
+		mCacheName = cacheName(file, trailer);
+
+		if (readIndex()) {
+			mChunkFile = new RandomAccessFile(getChunkFile(), "r");
+			mChunkChannel = mChunkFile.getChannel();
+			setLength(realLength);
+			return;
+		}
+
+		chunkOffsets = new long[numChunksFor(length()) + 1];
+		if (System.currentTimeMillis() - file.lastModified() < SETTLE_TIME) {
+			// The file may still be being compressed, so we make sure now
+			// that it is whole
+			try {
+				synchronized (mChunkLock) {
+					while (realLength < 0) {
+						makeNextChunk();
+					}
+				}
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+			setLength(realLength);
+		}
+
+	}
+
+	/**
+	 * Picks up the real length of the file once every chunk has been made, in
+	 * case it differs from the length recorded in the file. The file itself
+	 * does not change.
+	 */
+	@Override
+	public long refresh() {
+		final long known = realLength;
+		setLength((known < 0) ? length() : known);
+		return length();
+	}
+
+	@Override
+	public void close() {
+		synchronized (mChunkLock) {
+			isClosed = true;
+			clearSegments();
+			endChunks();
+			try {
+				if (mChunkFile != null)
+					mChunkFile.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			// Chunks that were never all made cannot be used again
+			if (mTempChunkFile != null) {
+				mTempChunkFile.delete();
+				setInUse(mTempChunkFile, false);
+				mTempChunkFile = null;
+			}
+		}
+	}
+
+	/**
+	 * Makes the next few chunks that have not been made yet. This should be
+	 * called from a background thread until it returns true, so that the
+	 * chunks are ready by the time they are read. The lock is let go between
+	 * chunks, so a chunk can be made for a reader in the meantime.
+	 *
+	 * @param maxBytes
+	 *            -- about how many bytes to inflate
+	 * @return true if every chunk has been made, or the file could not be
+	 *         inflated any further, or this buffer has been closed
+	 */
+	public boolean unpackMore(long maxBytes) {
+		long made = 0;
+		while (made < maxBytes && realLength < 0 && !isClosed) {
+			synchronized (mChunkLock) {
+				makeNextChunkOrEnd();
+			}
+			made += CHUNK_SIZE;
+		}
+		return realLength >= 0 || isClosed;
+	}
+
+	/**
+	 * @return true if every chunk has been made, so that the real length of
+	 *         the file is known
+	 */
+	public boolean isUnpacked() {
+		return realLength >= 0;
+	}
+
+	/**
+	 * Inflates a chunk, making it and any before it first. Reading a chunk
+	 * that has been made only takes a position in the chunk file, so several
+	 * threads may do so at once.
+	 */
+	@Override
+	protected ByteBuffer loadSegment(int index, long start, int size)
+			throws IOException {
+
+		while (numChunksMade <= index && realLength < 0) {
+			synchronized (mChunkLock) {
+				if (isClosed)
+					throw new IOException(mFile.getName() + " was closed");
+				if (numChunksMade <= index)
+					makeNextChunkOrEnd();
+			}
+		}
+
+		final long known = realLength;
+		final int available = (known < 0) ? size : (int) Math.max(0,
+				Math.min(size, known - start));
+
+		final byte[] chunk = new byte[size];
+		if (available > 0)
+			inflateChunk(index, chunk, available);
+		// The file is shorter than the length recorded in it, which the next
+		// refresh() will fix
+		Arrays.fill(chunk, available, size, (byte) '\n');
+
+		return ByteBuffer.wrap(chunk);
+
+	}
+
+	@Override
+	protected String getName() {
+		return mFile.getName();
+	}
+
+	/**
+	 * Inflates the beginning of a chunk that has been made
+	 */
+	private void inflateChunk(int index, byte[] chunk, int size)
+			throws IOException {
+
+		final long[] offsets = chunkOffsets;
+		final long offset = offsets[index];
+		final byte[] compressed = new byte[(int) (offsets[index + 1] - offset)];
+		final ByteBuffer target = ByteBuffer.wrap(compressed);
+		while (target.hasRemaining()) {
+			if (mChunkChannel.read(target, offset + target.position()) < 0) {
+				throw new EOFException("The chunk file of " + mFile.getName()
+						+ " is truncated");
+			}
+		}
+
+		final Inflater inflater = new Inflater(true);
+		inflater.setInput(compressed);
+
+		try {
+			int inflated = 0;
+			while (inflated < size && !inflater.finished()) {
+				final int count = inflater.inflate(chunk, inflated, size
+						- inflated);
+				if (count == 0 && inflater.needsInput()) {
+					break;
+				}
+				inflated += count;
+			}
+			if (inflated != size) {
+				throw new IOException("Chunk " + index + " of "
+						+ mFile.getName() + " is truncated");
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Chunk " + index + " of " + mFile.getName()
+					+ " is corrupt: " + e.getMessage());
+		} finally {
+			inflater.end();
+		}
+
+	}
+
+	/**
+	 * Makes the next chunk, or if the file cannot be inflated any further,
+	 * ends it after what could be inflated. This is only called while holding
+	 * mChunkLock.
+	 */
+	private void makeNextChunkOrEnd() {
+		if (realLength >= 0)
+			return;
+		try {
+			makeNextChunk();
+		} catch (IOException e) {
+			// Show what could be read rather than failing every read after
+			e.printStackTrace();
+			realLength = numInflated;
+			endChunks();
+		}
+	}
+
+	/**
+	 * Inflates the next CHUNK_SIZE bytes of the gzip file and deflates them on
+	 * their own onto the end of a temporary chunk file. Once the gzip file has
+	 * been inflated to its end, its real length is known, and the temporary
+	 * chunk file is kept as the chunk file and the index is written. This is
+	 * only called while holding mChunkLock.
+	 */
+	private void makeNextChunk() throws IOException {
+
+		if (mSource == null) {
+			mSource = new MemberStream(mFile);
+			mTempChunkFile = File.createTempFile(mCacheName + CHUNK_SUFFIX,
+					TEMP_SUFFIX, mCacheDir);
+			setInUse(mTempChunkFile, true);
+			mChunkFile = new RandomAccessFile(mTempChunkFile, "rw");
+			mChunkChannel = mChunkFile.getChannel();
+			mDeflater = new Deflater(Deflater.BEST_SPEED, true);
+			mChunk = new byte[CHUNK_SIZE];
+			mCompressed = new byte[INPUT_SIZE];
+		}
+
+		int filled = 0;
+		int count;
+		IOException failure = null;
+		try {
+			while (filled < CHUNK_SIZE
+					&& (count = mSource.read(mChunk, filled, CHUNK_SIZE
+							- filled)) >= 0) {
+				filled += count;
+			}
+		} catch (IOException e) {
+			// Keep what was inflated before the failure
+			failure = e;
+		}
+
+		if (filled > 0) {
+			long[] offsets = chunkOffsets;
+			if (numChunksMade + 1 == offsets.length) {
+				// The file is longer than the length recorded in it
+				final long[] larger = new long[offsets.length * 2];
+				System.arraycopy(offsets, 0, larger, 0, offsets.length);
+				offsets = larger;
+			}
+
+			long written = offsets[numChunksMade];
+			mChunkFile.seek(written);
+			mDeflater.reset();
+			mDeflater.setInput(mChunk, 0, filled);
+			mDeflater.finish();
+			while (!mDeflater.finished()) {
+				count = mDeflater.deflate(mCompressed);
+				mChunkFile.write(mCompressed, 0, count);
+				written += count;
+			}
+			offsets[numChunksMade + 1] = written;
+			numInflated += filled;
+
+			// Readers look at numChunksMade before chunkOffsets
+			chunkOffsets = offsets;
+			numChunksMade++;
+		}
+
+		if (failure != null)
+			throw failure;
+		if (filled < CHUNK_SIZE)
+			finishChunks();
+
+	}
+
+	/**
+	 * Keeps the chunk file and writes its index now that the gzip file has
+	 * been inflated to its end, which also checked the checksum and length at
+	 * the end of each of its members
+	 */
+	private void finishChunks() throws IOException {
+
+		realLength = numInflated;
+		endChunks();
+
+		// Our channel keeps reading the same file after the rename
+		if (!mTempChunkFile.renameTo(getChunkFile())) {
+			// Another buffer may be using the chunk file, so we keep our own
+			return;
+		}
+		setInUse(mTempChunkFile, false);
+		mTempChunkFile = null;
+
+		final long[] offsets = chunkOffsets;
+		final File indexFile = getIndexFile();
+		final File tempIndexFile = new File(indexFile.getPath() + TEMP_SUFFIX);
+		setInUse(tempIndexFile, true);
+		try {
+			final DataOutputStream indexOut = new DataOutputStream(
+					new FileOutputStream(tempIndexFile));
+			try {
+				indexOut.writeLong(realLength);
+				indexOut.writeInt(numChunksMade + 1);
+				for (int i = 0; i <= numChunksMade; i++) {
+					indexOut.writeLong(offsets[i]);
+				}
+			} finally {
+				indexOut.close();
+			}
+			if (!tempIndexFile.renameTo(indexFile))
+				tempIndexFile.delete();
+		} finally {
+			setInUse(tempIndexFile, false);
+		}
+
+	}
+
+	/**
+	 * Lets go of what was used to make chunks
+	 */
+	private void endChunks() {
+		if (mSource != null) {
+			mSource.close();
+			mSource = null;
+		}
+		if (mDeflater != null) {
+			mDeflater.end();
+			mDeflater = null;
+		}
+		mChunk = null;
+		mCompressed = null;
+	}
+
+	/**
+	 * Reads the index of the chunk file made for the gzip file, which holds
+	 * the real length of the file
+	 *
+	 * @return true if there is a complete chunk file
+	 */
+	private boolean readIndex() {
+
+		final File indexFile = getIndexFile();
+		final File chunkFile = getChunkFile();
+
+		// The system may have cleared part of the cache directory
+		if (!indexFile.exists() || !chunkFile.exists())
+			return false;
+
+		try {
+			final DataInputStream in = new DataInputStream(
+					new BufferedInputStream(new FileInputStream(indexFile)));
+			try {
+				final long length = in.readLong();
+				final int numOffsets = in.readInt();
+				if (length < 0 || numOffsets != numChunksFor(length) + 1)
+					return false;
+				final long[] offsets = new long[numOffsets];
+				for (int i = 0; i < offsets.length; i++) {
+					offsets[i] = in.readLong();
+				}
+				if (offsets[offsets.length - 1] != chunkFile.length())
+					return false;
+				chunkOffsets = offsets;
+				numChunksMade = numOffsets - 1;
+				realLength = length;
+				return true;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			// Fall through and make it again
+			e.printStackTrace();
+			return false;
+		}
+
+	}
+
+	private File getChunkFile() {
+		return new File(mCacheDir, mCacheName + CHUNK_SUFFIX);
+	}
+
+	private File getIndexFile() {
+		return new File(mCacheDir, mCacheName + INDEX_SUFFIX);
+	}
+
+	private static int numChunksFor(long length) {
+		return (int) ((length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+	}
+
+	private static void setInUse(File tempFile, boolean inUse) {
+		synchronized (TEMP_FILES_IN_USE) {
+			if (inUse) {
+				TEMP_FILES_IN_USE.add(tempFile.getAbsoluteFile());
+			} else {
+				TEMP_FILES_IN_USE.remove(tempFile.getAbsoluteFile());
+			}
+		}
+	}
+
+	private static boolean isInUse(File tempFile) {
+		synchronized (TEMP_FILES_IN_USE) {
+			return TEMP_FILES_IN_USE.contains(tempFile.getAbsoluteFile());
+		}
+	}
+
+	/**
+	 * Reads the checksum and the uncompressed length, modulo 2^32, recorded at
+	 * the end of the last member of a gzip file
+	 *
+	 * @return the checksum and the length
+	 */
+	private static long[] readTrailer(File file) throws IOException {
+		final RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			if (in.length() < TRAILER_SIZE)
+				throw new IOException(file.getName() + " is not a gzip file");
+			final byte[] trailer = new byte[TRAILER_SIZE];
+			in.seek(in.length() - TRAILER_SIZE);
+			in.readFully(trailer);
+			return new long[] { readUnsignedInt(trailer, 0),
+					readUnsignedInt(trailer, 4) };
+		} finally {
+			in.close();
+		}
+	}
+
+	private static long readUnsignedInt(byte[] bytes, int offset) {
+		return (bytes[offset] & 0xffL) | (bytes[offset + 1] & 0xffL) << 8
+				| (bytes[offset + 2] & 0xffL) << 16
+				| (bytes[offset + 3] & 0xffL) << 24;
+	}
+
+	/**
+	 * Names the cache files of a gzip file after its directory and the
+	 * checksum and lengths that identify its contents, so the name does not
+	 * change when the file is renamed within its directory
+	 */
+	private static String cacheName(File file, long[] trailer) {
+		return directoryPrefix(file.getAbsoluteFile().getParentFile())
+				+ Long.toHexString(trailer[0]) + "-" + trailer[1] + "-"
+				+ file.length();
+	}
+
+	private static String directoryPrefix(File dir) {
+		final String path = (dir == null) ? "" : dir.getPath();
+		return CACHE_PREFIX + Integer.toHexString(path.hashCode()) + "-";
+	}
+
+	/**
+	 * Deletes the cache files of the gzip files that are no longer in the
+	 * directories of the given files, such as archives that were deleted when
+	 * a rolling file appender rolled over, along with cache files named in an
+	 * older way and temporary files that no buffer is writing, such as those
+	 * left by a process that was killed. This should be called before the
+	 * files are opened.
+	 *
+	 * @param cacheDir
+	 *            -- the directory in which the cache files are kept
+	 * @param files
+	 *            -- files in the directories whose gzip files are to be kept
+	 */
+	public static void pruneCache(File cacheDir, Collection<File> files) {
+
+		final Set<String> prefixes = new HashSet<String>();
+		final Set<String> keep = new HashSet<String>();
+
+		for (File file : files) {
+			final File dir = file.getAbsoluteFile().getParentFile();
+			if (dir == null || !prefixes.add(directoryPrefix(dir)))
+				continue;
+			final File[] siblings = dir.listFiles();
+			if (siblings == null)
+				continue;
+			for (File sibling : siblings) {
+				if (!sibling.getName().endsWith(GZIP_SUFFIX))
+					continue;
+				try {
+					keep.add(cacheName(sibling, readTrailer(sibling)));
+				} catch (IOException e) {
+					// It cannot be opened, so its cache would not be used
+				}
+			}
+		}
+
+		final File[] cached = cacheDir.listFiles();
+		if (cached == null)
+			return;
+
+		for (File file : cached) {
+			final String name = file.getName();
+			if (name.endsWith(TEMP_SUFFIX)) {
+				if ((name.startsWith(CACHE_PREFIX) || name
+						.contains(GZIP_SUFFIX + "-")) && !isInUse(file))
+					file.delete();
+				continue;
+			}
+			if (!name.endsWith(CHUNK_SUFFIX) && !name.endsWith(INDEX_SUFFIX))
+				continue;
+			final int dot = name.indexOf('.');
+			if (!name.startsWith(CACHE_PREFIX)) {
+				// Named after the gzip file itself, as chunk files once were
+				if (name.contains(GZIP_SUFFIX + "-"))
+					file.delete();
+				continue;
+			}
+			final String key = name.substring(0, dot);
+			for (String prefix : prefixes) {
+				if (key.startsWith(prefix) && !keep.contains(key)) {
+					file.delete();
+					break;
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * Inflates every member of a gzip file in turn, checking the checksum and
+	 * length at the end of each. A GZIPInputStream stops after the first
+	 * member on older versions of Android, and gzip files may be concatenated.
+	 */
+	private static class MemberStream extends InputStream {
+
+		private static final int FHCRC = 2;
+		private static final int FEXTRA = 4;
+		private static final int FNAME = 8;
+		private static final int FCOMMENT = 16;
+
+		private final String mName;
+		private final PushbackInputStream mIn;
+		private final Inflater mInflater = new Inflater(true);
+		private final CRC32 mCrc = new CRC32();
+		private final byte[] input = new byte[INPUT_SIZE];
+		private int inputLength;
+
+		private int numMembers;
+		private boolean inMember;
+		private boolean ended;
+		private long memberLength;
+
+		MemberStream(File file) throws IOException {
+			mName = file.getName();
+			mIn = new PushbackInputStream(new FileInputStream(file),
+					INPUT_SIZE);
+		}
+
+		@Override
+		public int read() throws IOException {
+			final byte[] one = new byte[1];
+			return (read(one, 0, 1) < 0) ? -1 : one[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+
+			if (len == 0)
+				return 0;
+
+			while (!ended) {
+
+				if (!inMember) {
+					ended = !readHeader();
+					continue;
+				}
+
+				if (mInflater.needsInput()) {
+					inputLength = mIn.read(input);
+					if (inputLength < 0)
+						throw new EOFException(mName + " ends within a member");
+					mInflater.setInput(input, 0, inputLength);
+				}
+
+				final int count;
+				try {
+					count = mInflater.inflate(b, off, len);
+				} catch (DataFormatException e) {
+					throw new IOException(mName + " is corrupt: "
+							+ e.getMessage());
+				}
+				if (count > 0) {
+					mCrc.update(b, off, count);
+					memberLength += count;
+					return count;
+				}
+				if (mInflater.finished()) {
+					readTrailer();
+				} else if (mInflater.needsDictionary()) {
+					throw new IOException(mName + " needs a preset dictionary");
+				}
+
+			}
+
+			return -1;
+
+		}
+
+		@Override
+		public void close() {
+			mInflater.end();
+			try {
+				mIn.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		/**
+		 * Reads the header of the next member
+		 *
+		 * @return false if there are no more members
+		 */
+		private boolean readHeader() throws IOException {
+
+			final int first = mIn.read();
+			final int second = (first < 0) ? -1 : mIn.read();
+			if (first != 0x1f || second != 0x8b) {
+				if (numMembers == 0)
+					throw new IOException(mName + " is not a gzip file");
+				// Like gzip, ignore anything after the last member, such as
+				// padding
+				return false;
+			}
+
+			if (readByte() != 8)
+				throw new IOException(mName + " is not deflated");
+			final int flags = readByte();
+			// Skip the time, the extra flags and the operating system
+			skipBytes(6);
+			if ((flags & FEXTRA) != 0)
+				skipBytes(readByte() | readByte() << 8);
+			if ((flags & FNAME) != 0)
+				skipString();
+			if ((flags & FCOMMENT) != 0)
+				skipString();
+			if ((flags & FHCRC) != 0)
+				skipBytes(2);
+
+			mInflater.reset();
+			mCrc.reset();
+			memberLength = 0;
+			inMember = true;
+			numMembers++;
+			return true;
+
+		}
+
+		/**
+		 * Checks the checksum and length at the end of the member that was
+		 * just inflated
+		 */
+		private void readTrailer() throws IOException {
+
+			// The Inflater may have been given the start of what follows
+			final int remaining = mInflater.getRemaining();
+			if (remaining > 0)
+				mIn.unread(input, inputLength - remaining, remaining);
+
+			final byte[] trailer = new byte[TRAILER_SIZE];
+			for (int i = 0; i < TRAILER_SIZE; i++) {
+				trailer[i] = (byte) readByte();
+			}
+			final long length = memberLength & 0xffffffffL;
+			if (readUnsignedInt(trailer, 0) != mCrc.getValue()
+					|| readUnsignedInt(trailer, 4) != length) {
+				throw new IOException(mName + " fails its checksum");
+			}
+
+			inMember = false;
+
+		}
+
+		private int readByte() throws IOException {
+			final int b = mIn.read();
+			if (b < 0)
+				throw new EOFException(mName + " ends within a member");
+			return b;
+		}
+
+		private void skipBytes(int count) throws IOException {
+			for (int i = 0; i < count; i++) {
+				readByte();
+			}
+		}
+
+		/**
+		 * Skips a string that ends with a 0
+		 */
+		private void skipString() throws IOException {
+			int b;
+			do {
+				b = readByte();
+			} while (b != 0);
+		}
+
+	}
+
+}
@@ -0,0 +1,214 @@
+/*Copyright (C) 2010-2012 Institute for Software Integrated Systems (ISIS)
+This software was developed by the Institute for Software Integrated
+Systems (ISIS) at Vanderbilt University, Tennessee, USA for the
+Transformative Apps program under DARPA, Contract # HR011-10-C-0175.
+The United States Government has unlimited rights to this software.
+The US government has the right to use, modify, reproduce, release,
+perform, display, or disclose computer software or computer software
+documentation in whole or in part, in any manner and for any
+purpose whatsoever, and to have or authorize others to do so.
+ */
+package edu.vu.isis.logger.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the index of a log file in a sidecar file in the cache directory, so
+ * that the file does not have to be scanned again the next time it is opened,
+ * even after the process has been restarted.
+ * <p/>
+ * The sidecar is named after the path of the last of the files, which is the
+ * active file of a rolling file appender, so there is only ever one sidecar
+ * for each log. Along with the index, it records the path, length and
+ * modification time of each file and a checksum of the first few kilobytes of
+ * it. The index is only used if every file but the last is unchanged and the
+ * last one has only grown, in which case the index is extended over the new
+ * data rather than being rebuilt.
+ *
+ * @author Nick King
+ *
+ */
+public class IndexCache {
+
+	private static final int MAGIC = 0x4C415549;
+	private static final int VERSION = 6;
+
+	/** how much of the beginning of each file is checksummed */
+	private static final int HEAD_SIZE = 4096;
+
+	private static final String SIDECAR_SUFFIX = ".lineindex";
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private final File mSidecar;
+	private final List<File> mFiles;
+
+	/**
+	 * @param cacheDir
+	 *            -- the directory in which to keep the sidecar
+	 * @param files
+	 *            -- the files that are indexed, in the order in which they
+	 *            are joined
+	 */
+	public IndexCache(File cacheDir, List<File> files) {
+		if (files.isEmpty()) {
+			throw new IllegalArgumentException("At least one file is needed");
+		}
+		mFiles = new ArrayList<File>(files);
+		final File active = files.get(files.size() - 1).getAbsoluteFile();
+		mSidecar = new File(cacheDir, active.getName() + "-"
+				+ Integer.toHexString(active.getPath().hashCode())
+				+ SIDECAR_SUFFIX);
+	}
+
+	/**
+	 * Reads the saved index if it is still valid for the files
+	 *
+	 * @return the saved index, or null if there is none or the files have
+	 *         changed in some way other than the last one growing
+	 */
+	public LineIndex load() {
+
+		if (!mSidecar.exists())
+			return null;
+
+		try {
+			final DataInputStream in = new DataInputStream(
+					new BufferedInputStream(new FileInputStream(mSidecar)));
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION)
+					return null;
+				if (!readAndCheckFiles(in))
+					return null;
+				return LineIndex.readFrom(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			// A sidecar that cannot be read is no worse than none at all
+			e.printStackTrace();
+			return null;
+		}
+
+	}
+
+	/**
+	 * Writes the index to the sidecar. It is written to a temporary file that
+	 * then replaces the sidecar, so a sidecar is never left half written.
+	 *
+	 * @param index
+	 *            -- the index to save, which must not be modified while this
+	 *            method runs
+	 */
+	public void save(LineIndex index) {
+
+		final File temp = new File(mSidecar.getPath() + TEMP_SUFFIX);
+
+		try {
+			final DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(temp)));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				writeFiles(out);
+				index.writeTo(out);
+			} finally {
+				out.close();
+			}
+			if (!temp.renameTo(mSidecar)) {
+				throw new IOException("Could not rename " + temp.getName());
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			temp.delete();
+		}
+
+	}
+
+	private void writeFiles(DataOutputStream out) throws IOException {
+		out.writeInt(mFiles.size());
+		for (File file : mFiles) {
+			final long length = file.length();
+			final int headLength = (int) Math.min(HEAD_SIZE, length);
+			out.writeUTF(file.getAbsolutePath());
+			out.writeLong(length);
+			out.writeLong(file.lastModified());
+			out.writeInt(headLength);
+			out.writeLong(checksumHead(file, headLength));
+		}
+	}
+
+	/**
+	 * Reads the files recorded in the sidecar and compares them with the
+	 * files as they are now
+	 *
+	 * @return true if the saved index is still valid for the files
+	 */
+	private boolean readAndCheckFiles(DataInputStream in) throws IOException {
+
+		if (in.readInt() != mFiles.size())
+			return false;
+
+		for (int i = 0; i < mFiles.size(); i++) {
+
+			final File file = mFiles.get(i);
+			final boolean isLast = (i == mFiles.size() - 1);
+
+			final String path = in.readUTF();
+			final long length = in.readLong();
+			final long lastModified = in.readLong();
+			final int headLength = in.readInt();
+			final long headChecksum = in.readLong();
+
+			if (!path.equals(file.getAbsolutePath()))
+				return false;
+
+			final long currentLength = file.length();
+			final boolean unchanged = currentLength == length
+					&& file.lastModified() == lastModified;
+			final boolean grown = isLast && currentLength > length;
+			if (!unchanged && !grown)
+				return false;
+
+			// A file that was rewritten rather than appended to will almost
+			// always begin differently
+			if (checksumHead(file, headLength) != headChecksum)
+				return false;
+
+		}
+
+		return true;
+
+	}
+
+	/**
+	 * Computes the checksum of the first headLength bytes of a file
+	 */
+	private static long checksumHead(File file, int headLength)
+			throws IOException {
+
+		final byte[] head = new byte[headLength];
+		final RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			in.readFully(head);
+		} finally {
+			in.close();
+		}
+
+		final CRC32 crc = new CRC32();
+		crc.update(head);
+		return crc.getValue();
+
+	}
+
+}
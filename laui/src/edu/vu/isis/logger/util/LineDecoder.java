@@ -0,0 +1,132 @@
+/*Copyright (C) 2010-2012 Institute for Software Integrated Systems (ISIS)
+This software was developed by the Institute for Software Integrated
+Systems (ISIS) at Vanderbilt University, Tennessee, USA for the
+Transformative Apps program under DARPA, Contract # HR011-10-C-0175.
+The United States Government has unlimited rights to this software.
+The US government has the right to use, modify, reproduce, release,
+perform, display, or disclose computer software or computer software
+documentation in whole or in part, in any manner and for any
+purpose whatsoever, and to have or authorize others to do so.
+ */
+package edu.vu.isis.logger.util;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Turns ranges of bytes in a ByteBuffer into Strings. A LineDecoder reuses the
+ * same CharsetDecoder and char array for every line it decodes, so decoding a
+ * line costs only the allocation of the resulting String.
+ * <p/>
+ * Lines made up entirely of ASCII characters, which is most lines in a typical
+ * log, are copied straight into the char array without going through the
+ * CharsetDecoder at all. As soon as a non-ASCII byte is found, the rest of the
+ * line is handed to the CharsetDecoder. Malformed input is replaced rather
+ * than reported.
+ * <p/>
+ * A LineDecoder is not thread safe. Each thread should use its own.
+ *
+ * @author Nick King
+ *
+ */
+public class LineDecoder {
+
+	public static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final int INITIAL_CAPACITY = 256;
+
+	private final CharsetDecoder mDecoder;
+	private char[] mChars = new char[INITIAL_CAPACITY];
+
+	public LineDecoder() {
+		this(UTF_8);
+	}
+
+	/**
+	 * @param charset
+	 *            -- the charset in which the lines are encoded. It must encode
+	 *            ASCII characters as single bytes, and it must never produce
+	 *            more chars than there are bytes.
+	 */
+	public LineDecoder(Charset charset) {
+		mDecoder = charset.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	}
+
+	/**
+	 * Decodes a range of bytes. The buffer's position and limit are not
+	 * changed.
+	 *
+	 * @param buffer
+	 *            -- the buffer holding the encoded bytes
+	 * @param start
+	 *            -- the position of the first byte to decode
+	 * @param end
+	 *            -- the position after the last byte to decode
+	 * @return the decoded String
+	 */
+	public String decode(ByteBuffer buffer, int start, int end) {
+
+		final int length = end - start;
+		if (length <= 0)
+			return "";
+
+		ensureCapacity(length);
+		final char[] chars = mChars;
+
+		int i = 0;
+		for (; i < length; i++) {
+			final byte b = buffer.get(start + i);
+			if (b < 0) {
+				// The high bit is set, so this is not an ASCII character
+				return new String(chars, 0, i
+						+ decodeRemaining(buffer, start + i, end, i));
+			}
+			chars[i] = (char) b;
+		}
+
+		return new String(chars, 0, length);
+
+	}
+
+	/**
+	 * Decodes the bytes that could not be copied directly into the char array.
+	 *
+	 * @return the number of chars that were decoded
+	 */
+	private int decodeRemaining(ByteBuffer buffer, int start, int end,
+			int charOffset) {
+
+		// The view is not kept, since it would keep a segment that its file
+		// buffer has dropped from being released
+		final ByteBuffer view = buffer.duplicate();
+		view.clear();
+		view.limit(end);
+		view.position(start);
+
+		final CharBuffer out = CharBuffer.wrap(mChars, charOffset,
+				mChars.length - charOffset);
+
+		mDecoder.reset();
+		mDecoder.decode(view, out, true);
+		mDecoder.flush(out);
+
+		return out.position() - charOffset;
+
+	}
+
+	private void ensureCapacity(int length) {
+		if (mChars.length < length) {
+			int newLength = mChars.length;
+			while (newLength < length) {
+				newLength *= 2;
+			}
+			mChars = new char[newLength];
+		}
+	}
+
+}
@@ -0,0 +1,373 @@
+/*Copyright (C) 2010-2012 Institute for Software Integrated Systems (ISIS)
+This software was developed by the Institute for Software Integrated
+Systems (ISIS) at Vanderbilt University, Tennessee, USA for the
+Transformative Apps program under DARPA, Contract # HR011-10-C-0175.
+The United States Government has unlimited rights to this software.
+The US government has the right to use, modify, reproduce, release,
+perform, display, or disclose computer software or computer software
+documentation in whole or in part, in any manner and for any
+purpose whatsoever, and to have or authorize others to do so.
+ */
+package edu.vu.isis.logger.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds every line of a FileBuffer that holds some text or matches a regular
+ * expression, in the manner of <code>grep</code>.
+ * <p/>
+ * The buffer is split into chunks of about CHUNK_SIZE bytes that each end on
+ * a line break, so no line is split between two chunks, and the chunks are
+ * scanned in parallel by a pool with one thread per processor. Text is
+ * searched for in the raw bytes with a ByteSearcher, so only the lines of a
+ * regular expression search are decoded. The lines found in each chunk are
+ * joined in order into a LineSelection, along with the given number of lines
+ * of context before and after each of them.
+ * <p/>
+ * The buffer must not be closed while the grep is running, or the grep fails
+ * with an IllegalStateException.
+ *
+ * @author Nick King
+ *
+ */
+public class LineGrep {
+
+	/** the number of bytes scanned by each task, give or take a line */
+	public static final int CHUNK_SIZE = 1024 * 1024;
+
+	private final FileBuffer mBuffer;
+	private final ByteSearcher mSearcher;
+	private final Pattern mPattern;
+	private final int contextLines;
+
+	private final AtomicInteger numChunksDone = new AtomicInteger(0);
+	private volatile int numChunks = 0;
+	private volatile boolean isCancelled = false;
+
+	/**
+	 * @param buffer
+	 *            -- the buffer to search
+	 * @param searcher
+	 *            -- the text that a line must hold to be selected
+	 * @param contextLines
+	 *            -- how many lines before and after each matching line to
+	 *            select as well
+	 */
+	public LineGrep(FileBuffer buffer, ByteSearcher searcher, int contextLines) {
+		this(buffer, searcher, null, contextLines);
+	}
+
+	/**
+	 * @param buffer
+	 *            -- the buffer to search
+	 * @param pattern
+	 *            -- the regular expression that must be found in a line for
+	 *            the line to be selected
+	 * @param contextLines
+	 *            -- how many lines before and after each matching line to
+	 *            select as well
+	 */
+	public LineGrep(FileBuffer buffer, Pattern pattern, int contextLines) {
+		this(buffer, null, pattern, contextLines);
+	}
+
+	private LineGrep(FileBuffer buffer, ByteSearcher searcher,
+			Pattern pattern, int contextLines) {
+		if (contextLines < 0) {
+			throw new IllegalArgumentException(
+					"The number of context lines may not be negative");
+		}
+		mBuffer = buffer;
+		mSearcher = searcher;
+		mPattern = pattern;
+		this.contextLines = contextLines;
+	}
+
+	/**
+	 * Searches the whole buffer. This blocks until every chunk has been
+	 * scanned, so it should be called from a background thread.
+	 *
+	 * @return the selected lines, or null if the grep was cancelled
+	 * @throws InterruptedException
+	 *             if the calling thread is interrupted while waiting
+	 */
+	public LineSelection run() throws InterruptedException {
+
+		final long length = mBuffer.length();
+		final List<Long> bounds = findChunkBounds(length);
+		numChunks = bounds.size() - 1;
+
+		final int numThreads = Runtime.getRuntime().availableProcessors();
+		final ExecutorService executor = Executors
+				.newFixedThreadPool(numThreads);
+
+		try {
+
+			final List<Future<Offsets>> results = new ArrayList<Future<Offsets>>(
+					numChunks);
+			for (int i = 0; i < numChunks; i++) {
+				results.add(executor.submit(new ChunkTask(bounds.get(i), bounds
+						.get(i + 1), length)));
+			}
+
+			// The chunks are in order, so joining their lines in order keeps
+			// the selection sorted
+			final Offsets selected = new Offsets();
+			for (Future<Offsets> result : results) {
+				final Offsets chunk = getResult(result);
+				if (chunk == null)
+					return null;
+				selected.addAll(chunk);
+			}
+
+			return isCancelled ? null : new LineSelection(selected.toArray(),
+					selected.numMatches);
+
+		} finally {
+			executor.shutdownNow();
+		}
+
+	}
+
+	/**
+	 * Stops the grep as soon as possible. The call to run() then returns
+	 * null.
+	 */
+	public void cancel() {
+		isCancelled = true;
+	}
+
+	/**
+	 * @return the number of chunks the buffer was split into, or 0 if run()
+	 *         has not split it yet
+	 */
+	public int getNumChunks() {
+		return numChunks;
+	}
+
+	/**
+	 * @return the number of chunks that have been scanned so far
+	 */
+	public int getNumChunksDone() {
+		return numChunksDone.get();
+	}
+
+	/**
+	 * Splits the buffer into chunks that each end just after a line break,
+	 * except for the last one, which ends at the end of the buffer
+	 *
+	 * @return the position of the start of each chunk, then the length
+	 */
+	private List<Long> findChunkBounds(long length) {
+
+		final List<Long> bounds = new ArrayList<Long>();
+		long start = 0;
+		bounds.add(start);
+
+		while (start < length) {
+			final long nominalEnd = start + CHUNK_SIZE;
+			if (nominalEnd >= length) {
+				start = length;
+			} else {
+				final long lineBreak = mBuffer.indexOfBreak(nominalEnd - 1,
+						length);
+				start = (lineBreak < 0) ? length : lineBreak + 1;
+			}
+			bounds.add(start);
+		}
+
+		return bounds;
+
+	}
+
+	private static Offsets getResult(Future<Offsets> result)
+			throws InterruptedException {
+		try {
+			return result.get();
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new IllegalStateException(cause);
+		}
+	}
+
+	/**
+	 * Selects a matching line along with its lines of context. Lines that
+	 * were already selected for an earlier match are not selected again.
+	 *
+	 * @param selected
+	 *            -- the lines selected so far
+	 * @param lineStart
+	 *            -- the position of the first character of the matching line
+	 * @param length
+	 *            -- the length of the buffer when the grep began
+	 */
+	private void selectMatch(Offsets selected, long lineStart, long length) {
+
+		final long[] before = new long[contextLines];
+		int numBefore = 0;
+		long pos = lineStart;
+		while (numBefore < contextLines && pos > 0) {
+			pos = mBuffer.lastIndexOfBreak(0, pos - 1) + 1;
+			if (pos <= selected.last())
+				break;
+			before[numBefore++] = pos;
+		}
+		for (int i = numBefore - 1; i >= 0; i--) {
+			selected.add(before[i]);
+		}
+
+		selected.add(lineStart);
+		selected.numMatches++;
+
+		pos = lineStart;
+		for (int i = 0; i < contextLines; i++) {
+			final long lineBreak = mBuffer.indexOfBreak(pos, length);
+			if (lineBreak < 0 || lineBreak + 1 >= length)
+				break;
+			pos = lineBreak + 1;
+			selected.add(pos);
+		}
+
+	}
+
+	/**
+	 * Scans one chunk of the buffer for matching lines
+	 */
+	private class ChunkTask implements Callable<Offsets> {
+
+		private final long start;
+		private final long end;
+		private final long length;
+
+		ChunkTask(long start, long end, long length) {
+			this.start = start;
+			this.end = end;
+			this.length = length;
+		}
+
+		@Override
+		public Offsets call() {
+
+			if (isCancelled)
+				return null;
+
+			final Offsets selected = new Offsets();
+			final ByteBuffer chunk = ByteBuffer.wrap(mBuffer.copy(start, end));
+
+			if (mSearcher != null) {
+				scanForText(chunk, selected);
+			} else {
+				scanForPattern(chunk, selected);
+			}
+
+			numChunksDone.incrementAndGet();
+			return isCancelled ? null : selected;
+
+		}
+
+		/**
+		 * Searches the raw bytes for the text. After a match, the search
+		 * skips to the next line, since the line has already been selected.
+		 */
+		private void scanForText(ByteBuffer chunk, Offsets selected) {
+
+			final byte[] bytes = chunk.array();
+			final int limit = bytes.length;
+			int lineStart = 0;
+
+			while (lineStart < limit && !isCancelled) {
+				final int match = mSearcher.indexOf(bytes, lineStart, limit);
+				if (match < 0)
+					break;
+				final int matchLineStart = ByteBuffers.lastIndexOfBreak(chunk,
+						lineStart, match) + 1;
+				selectMatch(selected,
+						start + Math.max(matchLineStart, lineStart), length);
+				final int lineBreak = ByteBuffers.indexOfBreak(chunk, match,
+						limit);
+				lineStart = (lineBreak < 0) ? limit : lineBreak + 1;
+			}
+
+		}
+
+		/**
+		 * Decodes each line and looks for the pattern in it
+		 */
+		private void scanForPattern(ByteBuffer chunk, Offsets selected) {
+
+			final LineDecoder decoder = new LineDecoder();
+			final Matcher matcher = mPattern.matcher("");
+			final int limit = chunk.limit();
+			int lineStart = 0;
+
+			while (lineStart < limit && !isCancelled) {
+				final int lineBreak = ByteBuffers.indexOfBreak(chunk,
+						lineStart, limit);
+				final int lineEnd = (lineBreak < 0) ? limit : lineBreak;
+				matcher.reset(decoder.decode(chunk, lineStart, lineEnd));
+				if (matcher.find()) {
+					selectMatch(selected, start + lineStart, length);
+				}
+				lineStart = lineEnd + 1;
+			}
+
+		}
+
+	}
+
+	/**
+	 * A growable array of increasing line positions. Adding a position that
+	 * is not after the last one does nothing, so lines of context shared by
+	 * two matches are only selected once.
+	 */
+	private static class Offsets {
+
+		private long[] offsets = new long[64];
+		private int size = 0;
+		int numMatches = 0;
+
+		long last() {
+			return (size == 0) ? -1 : offsets[size - 1];
+		}
+
+		void add(long offset) {
+			if (offset <= last())
+				return;
+			if (size == offsets.length) {
+				final long[] larger = new long[offsets.length * 2];
+				System.arraycopy(offsets, 0, larger, 0, size);
+				offsets = larger;
+			}
+			offsets[size++] = offset;
+		}
+
+		void addAll(Offsets other) {
+			for (int i = 0; i < other.size; i++) {
+				add(other.offsets[i]);
+			}
+			numMatches += other.numMatches;
+		}
+
+		long[] toArray() {
+			final long[] trimmed = new long[size];
+			System.arraycopy(offsets, 0, trimmed, 0, size);
+			return trimmed;
+		}
+
+	}
+
+}
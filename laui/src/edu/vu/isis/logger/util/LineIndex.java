@@ -0,0 +1,518 @@
+/*Copyright (C) 2010-2012 Institute for Software Integrated Systems (ISIS)
+This software was developed by the Institute for Software Integrated
+Systems (ISIS) at Vanderbilt University, Tennessee, USA for the
+Transformative Apps program under DARPA, Contract # HR011-10-C-0175.
+The United States Government has unlimited rights to this software.
+The US government has the right to use, modify, reproduce, release,
+perform, display, or disclose computer software or computer software
+documentation in whole or in part, in any manner and for any
+purpose whatsoever, and to have or authorize others to do so.
+ */
+package edu.vu.isis.logger.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A sparse index of the lines in a file. Rather than remembering where
+ * every line begins, a LineIndex only stores the byte offset of every Nth
+ * line, known as a checkpoint. Finding the offset of any line then costs one
+ * array lookup plus a scan over at most N - 1 lines.
+ * <p/>
+ * The index is built by a single pass over the file and can be extended
+ * afterward when more data is appended to the underlying file. Only the newly
+ * appended bytes are scanned when the index is updated. A last line that has
+ * no line break yet may still be being written, so it is left for a later
+ * update.
+ * <p/>
+ * Along with each checkpoint, a LineIndex keeps a mask of the levels of the
+ * lines in the block of lines that begins there. A line's level is found from
+ * its first byte in the same way as LogReader.getCorrespondingLevel(), or
+ * from its level field if the PatternLayoutParser of the file's appender has
+ * been given, so no lines are decoded. The masks allow the lines of a given
+ * level to be found while skipping every block that holds none of them.
+ * <p/>
+ * A RecordIndex is built along with the lines, which groups the lines of a
+ * stack trace with the line that logged it. The lines of such a record are
+ * given the level of its first line, both in the level masks and when levels
+ * are selected.
+ * <p/>
+ * A TimeIndex may also be kept along with a LineIndex, in which case it is
+ * updated whenever the LineIndex is. The times lag behind the lines, so the
+ * indexed limit is where both have been indexed up to.
+ * <p/>
+ * An index can be written out and read back in, so that a file does not have
+ * to be scanned again each time it is opened.
+ * <p/>
+ * Line numbers used by this class are zero-based.
+ *
+ * @author Nick King
+ *
+ */
+public class LineIndex {
+
+	public static final int DEFAULT_LINES_PER_CHECKPOINT = 256;
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private final int linesPerCheckpoint;
+
+	private long[] checkpoints = new long[INITIAL_CAPACITY];
+
+	/*
+	 * The levels of the lines in the block beginning at each checkpoint, with
+	 * bit n set if a line has the level whose ordinal is n
+	 */
+	private byte[] levelMasks = new byte[INITIAL_CAPACITY];
+
+	private int numCheckpoints = 0;
+	private int numLines = 0;
+
+	/** the layout of the lines, or null to take levels from first bytes */
+	private PatternLayoutParser mLayout = null;
+
+	/** the records of more than one line */
+	private RecordIndex mRecords = new RecordIndex();
+
+	/** the times of the blocks of lines, or null if they are not indexed */
+	private TimeIndex mTimes = null;
+
+	/** the position after the last line break that has been scanned */
+	private long scanPos = 0;
+
+	public LineIndex() {
+		this(DEFAULT_LINES_PER_CHECKPOINT);
+	}
+
+	/**
+	 * @param linesPerCheckpoint
+	 *            -- the number of lines between each stored offset
+	 */
+	public LineIndex(int linesPerCheckpoint) {
+		if (linesPerCheckpoint <= 0) {
+			throw new IllegalArgumentException(
+					"The number of lines per checkpoint must be positive");
+		}
+		this.linesPerCheckpoint = linesPerCheckpoint;
+	}
+
+	/**
+	 * Scans any part of the file that has not yet been indexed. If the file has
+	 * become smaller than the part that was already indexed, then it is
+	 * assumed to have been truncated and the index is rebuilt from the
+	 * beginning.
+	 *
+	 * @param buffer
+	 *            -- the file to index
+	 */
+	public void update(FileBuffer buffer) {
+		update(buffer, buffer.length());
+	}
+
+	/**
+	 * Scans the part of the file that has not yet been indexed, stopping at
+	 * the given position. This allows a large file to be indexed a piece at a
+	 * time.
+	 *
+	 * @param buffer
+	 *            -- the file to index
+	 * @param limit
+	 *            -- the position at which to stop scanning, which is clamped
+	 *            to the length of the file. A line that runs past it is still
+	 *            indexed if no line ends before it.
+	 */
+	public void update(FileBuffer buffer, long limit) {
+
+		final long length = buffer.length();
+
+		if (length < scanPos) {
+			clear();
+		}
+
+		limit = Math.min(limit, length);
+
+		if (limit > scanPos) {
+
+			// Only lines that have ended are indexed, since the level of a
+			// line and whether it continues a record are not known until then
+			long lastBreak = buffer.lastIndexOfBreak(scanPos, limit);
+			if (lastBreak < 0 && limit < length) {
+				// A line longer than the piece being indexed is taken whole
+				lastBreak = buffer.indexOfBreak(limit, length);
+			}
+
+			long pos = scanPos;
+			while (pos <= lastBreak) {
+				final LogLevel level = levelAt(buffer, pos);
+				addLine(pos, mRecords.addLine(buffer, pos, level));
+				// The byte after a line break begins a line
+				pos = buffer.indexOfBreak(pos, lastBreak + 1) + 1;
+			}
+			scanPos = pos;
+
+		}
+
+		// The limit may be behind scanPos if the times were not kept when the
+		// lines were indexed, in which case they catch up a piece at a time
+		if (mTimes != null)
+			mTimes.update(buffer, this, limit);
+
+	}
+
+	/**
+	 * Forgets everything that has been indexed so far
+	 */
+	public void clear() {
+		if (mTimes != null)
+			mTimes.clear();
+		mRecords.clear();
+		numCheckpoints = 0;
+		numLines = 0;
+		scanPos = 0;
+	}
+
+	/**
+	 * @return the number of lines that have been indexed
+	 */
+	public int getNumLines() {
+		return numLines;
+	}
+
+	/**
+	 * @return the position up to which the file has been indexed, including
+	 *         the times of the lines if they are being indexed
+	 */
+	public long getIndexedLimit() {
+		if (mTimes == null || mTimes.getNumTimes() >= numCheckpoints - 1)
+			return scanPos;
+		return Math.min(scanPos, checkpoints[mTimes.getNumTimes()]);
+	}
+
+	/**
+	 * @param buffer
+	 *            -- the file being indexed
+	 * @return true if every line of the file that has ended has been indexed,
+	 *         along with its time if the times are being indexed
+	 */
+	public boolean isUpToDate(FileBuffer buffer) {
+		return getIndexedLimit() == scanPos
+				&& buffer.indexOfBreak(scanPos, buffer.length()) < 0;
+	}
+
+	/**
+	 * @return the position up to which the lines have been indexed, even if
+	 *         their times have not
+	 */
+	long getScannedLimit() {
+		return scanPos;
+	}
+
+	/**
+	 * Starts keeping the times of the lines, or stops if the TimeIndex is
+	 * null. The times of the lines that have already been indexed are found
+	 * by the next few calls to update().
+	 * 
+	 * @param times
+	 *            -- an empty TimeIndex, or null
+	 */
+	public void setTimeIndex(TimeIndex times) {
+		mTimes = times;
+	}
+
+	/**
+	 * @return the times of the lines, or null if they are not being kept
+	 */
+	public TimeIndex getTimeIndex() {
+		return mTimes;
+	}
+
+	/**
+	 * Sets the layout used to find the levels of the lines. If it is not the
+	 * same as the layout the lines were indexed with, the index is cleared so
+	 * that the lines are indexed again.
+	 * 
+	 * @param layout
+	 *            -- the layout of the lines, or null to find each line's
+	 *            level from its first byte
+	 */
+	public void setLayout(PatternLayoutParser layout) {
+		final String oldPattern = (mLayout == null) ? null : mLayout
+				.getPattern();
+		final String newPattern = (layout == null) ? null : layout
+				.getPattern();
+		mLayout = layout;
+		if ((oldPattern == null) ? newPattern != null : !oldPattern
+				.equals(newPattern))
+			clear();
+	}
+
+	/**
+	 * @return the layout used to find the levels of the lines, or null if
+	 *         they are found from the first byte of each line
+	 */
+	public PatternLayoutParser getLayout() {
+		return mLayout;
+	}
+
+	/**
+	 * @return the records of more than one line, such as stack traces
+	 */
+	public RecordIndex getRecordIndex() {
+		return mRecords;
+	}
+
+	/**
+	 * Gets the level of an indexed line, which is the level of the first
+	 * line of the record that holds it
+	 *
+	 * @param buffer
+	 *            -- the file that was indexed
+	 * @param pos
+	 *            -- the position of the first character of the line
+	 * @return the level of the line
+	 */
+	public LogLevel getLevelOf(FileBuffer buffer, long pos) {
+		final int record = mRecords.find(pos, scanPos);
+		return (record < 0) ? levelAt(buffer, pos) : mRecords.getLevel(record);
+	}
+
+	int getNumCheckpoints() {
+		return numCheckpoints;
+	}
+
+	/**
+	 * @return the position of the first line in the given block of lines
+	 */
+	long getCheckpoint(int index) {
+		return checkpoints[index];
+	}
+
+	public int getLinesPerCheckpoint() {
+		return linesPerCheckpoint;
+	}
+
+	/**
+	 * Gets the position of the first character of a line.
+	 *
+	 * @param buffer
+	 *            -- the file that was indexed
+	 * @param line
+	 *            -- the zero-based number of the line
+	 * @return the position at which the line begins
+	 */
+	public long getLineOffset(FileBuffer buffer, int line) {
+
+		if (line < 0 || line >= numLines) {
+			throw new IndexOutOfBoundsException("Line " + line
+					+ " is not within the " + numLines + " indexed lines");
+		}
+
+		final int checkpoint = line / linesPerCheckpoint;
+		long offset = checkpoints[checkpoint];
+
+		for (int i = checkpoint * linesPerCheckpoint; i < line; i++) {
+			// Every indexed line ends with a break
+			offset = buffer.indexOfBreak(offset, scanPos) + 1;
+		}
+
+		return offset;
+
+	}
+
+	/**
+	 * Makes a mask of levels for use with selectLevels()
+	 * 
+	 * @param minLevel
+	 *            -- the least severe level to include
+	 * @return a mask of minLevel and every more severe level, not including
+	 *         LogLevel.None
+	 */
+	public static int maskOfLevelsFrom(LogLevel minLevel) {
+		int mask = 0;
+		for (LogLevel level : LogLevel.values()) {
+			if (level != LogLevel.None && level.compareTo(minLevel) >= 0)
+				mask |= 1 << level.ordinal();
+		}
+		return mask;
+	}
+
+	/**
+	 * Finds every indexed line whose level is in the given mask, taking the
+	 * level of a line in a record to be that of the record. Blocks of lines
+	 * that hold none of the levels are skipped without being read.
+	 * 
+	 * @param buffer
+	 *            -- the file that was indexed
+	 * @param levelMask
+	 *            -- the levels to find, with bit n set to find the level whose
+	 *            ordinal is n
+	 * @return the lines found
+	 */
+	public LineSelection selectLevels(FileBuffer buffer, int levelMask) {
+
+		long[] found = new long[INITIAL_CAPACITY];
+		int numFound = 0;
+
+		for (int i = 0; i < numCheckpoints; i++) {
+
+			if ((levelMasks[i] & 0xFF & levelMask) == 0)
+				continue;
+
+			final int firstLine = i * linesPerCheckpoint;
+			final int endLine = Math.min(numLines, firstLine
+					+ linesPerCheckpoint);
+			long pos = checkpoints[i];
+
+			// The first record that does not end before the line at pos
+			int record = mRecords.findFrom(pos, scanPos);
+
+			for (int line = firstLine; line < endLine; line++) {
+				while (record < mRecords.getNumRecords()
+						&& pos >= mRecords.getEnd(record, scanPos)) {
+					record++;
+				}
+				final boolean inRecord = record < mRecords.getNumRecords()
+						&& pos >= mRecords.getStart(record);
+				final LogLevel level = inRecord ? mRecords.getLevel(record)
+						: levelAt(buffer, pos);
+				if ((levelMaskOf(level) & levelMask) != 0) {
+					if (numFound == found.length) {
+						final long[] larger = new long[found.length * 2];
+						System.arraycopy(found, 0, larger, 0, numFound);
+						found = larger;
+					}
+					found[numFound++] = pos;
+				}
+				// Every indexed line ends with a break
+				pos = buffer.indexOfBreak(pos, scanPos) + 1;
+			}
+
+		}
+
+		final long[] trimmed = new long[numFound];
+		System.arraycopy(found, 0, trimmed, 0, numFound);
+		return new LineSelection(trimmed, numFound);
+
+	}
+
+	/**
+	 * @return a copy of this index that can be written out while this one
+	 *         goes on being updated
+	 */
+	public LineIndex copy() {
+		final LineIndex copy = new LineIndex(linesPerCheckpoint);
+		copy.checkpoints = new long[Math.max(numCheckpoints, 1)];
+		System.arraycopy(checkpoints, 0, copy.checkpoints, 0, numCheckpoints);
+		copy.levelMasks = new byte[Math.max(numCheckpoints, 1)];
+		System.arraycopy(levelMasks, 0, copy.levelMasks, 0, numCheckpoints);
+		copy.numCheckpoints = numCheckpoints;
+		copy.numLines = numLines;
+		copy.scanPos = scanPos;
+		copy.mLayout = mLayout;
+		copy.mRecords = mRecords.copy();
+		copy.mTimes = (mTimes == null) ? null : mTimes.copy();
+		return copy;
+	}
+
+	/**
+	 * Writes out this index so that it can be read back by readFrom()
+	 */
+	void writeTo(DataOutput out) throws IOException {
+		out.writeInt(linesPerCheckpoint);
+		out.writeInt(numLines);
+		out.writeLong(scanPos);
+		out.writeInt(numCheckpoints);
+		for (int i = 0; i < numCheckpoints; i++) {
+			out.writeLong(checkpoints[i]);
+		}
+		out.write(levelMasks, 0, numCheckpoints);
+		out.writeBoolean(mLayout != null);
+		if (mLayout != null)
+			out.writeUTF(mLayout.getPattern());
+		mRecords.writeTo(out);
+		out.writeBoolean(mTimes != null);
+		if (mTimes != null)
+			mTimes.writeTo(out);
+	}
+
+	/**
+	 * Reads an index written by writeTo()
+	 *
+	 * @throws IOException
+	 *             if the index cannot be read or does not make sense
+	 */
+	static LineIndex readFrom(DataInput in) throws IOException {
+
+		final int linesPerCheckpoint = in.readInt();
+		final int numLines = in.readInt();
+		final long scanPos = in.readLong();
+		final int numCheckpoints = in.readInt();
+
+		if (linesPerCheckpoint <= 0 || numLines < 0 || scanPos < 0
+				|| numCheckpoints != (numLines + linesPerCheckpoint - 1)
+						/ linesPerCheckpoint) {
+			throw new IOException("The saved line index is corrupt");
+		}
+
+		final LineIndex index = new LineIndex(linesPerCheckpoint);
+		index.checkpoints = new long[Math.max(numCheckpoints, 1)];
+		for (int i = 0; i < numCheckpoints; i++) {
+			index.checkpoints[i] = in.readLong();
+		}
+		index.levelMasks = new byte[Math.max(numCheckpoints, 1)];
+		in.readFully(index.levelMasks, 0, numCheckpoints);
+		index.numCheckpoints = numCheckpoints;
+		index.numLines = numLines;
+		index.scanPos = scanPos;
+		if (in.readBoolean()) {
+			final String pattern = in.readUTF();
+			try {
+				index.mLayout = new PatternLayoutParser(pattern);
+			} catch (IllegalArgumentException e) {
+				throw new IOException("The saved layout is not valid: "
+						+ pattern);
+			}
+		}
+		index.mRecords = RecordIndex.readFrom(in);
+		if (in.readBoolean())
+			index.mTimes = TimeIndex.readFrom(in);
+		return index;
+
+	}
+
+	private void addLine(long offset, LogLevel level) {
+
+		if (numLines % linesPerCheckpoint == 0) {
+			if (numCheckpoints == checkpoints.length) {
+				final long[] larger = new long[checkpoints.length * 2];
+				System.arraycopy(checkpoints, 0, larger, 0, numCheckpoints);
+				checkpoints = larger;
+				final byte[] largerMasks = new byte[checkpoints.length];
+				System.arraycopy(levelMasks, 0, largerMasks, 0, numCheckpoints);
+				levelMasks = largerMasks;
+			}
+			levelMasks[numCheckpoints] = 0;
+			checkpoints[numCheckpoints++] = offset;
+		}
+
+		levelMasks[numCheckpoints - 1] |= levelMaskOf(level);
+		numLines++;
+
+	}
+
+	private static int levelMaskOf(LogLevel level) {
+		return 1 << level.ordinal();
+	}
+
+	/**
+	 * Gets the level of the line beginning at pos from its level field, or
+	 * from its first byte if there is no layout
+	 */
+	private LogLevel levelAt(FileBuffer buffer, long pos) {
+		if (mLayout != null)
+			return mLayout.parseLevel(buffer, pos, buffer.length());
+		return LogReader.getCorrespondingLevel((char) (buffer.get(pos) & 0xFF));
+	}
+
+}
@@ -0,0 +1,276 @@
+/*Copyright (C) 2010-2012 Institute for Software Integrated Systems (ISIS)
+This software was developed by the Institute for Software Integrated
+Systems (ISIS) at Vanderbilt University, Tennessee, USA for the
+Transformative Apps program under DARPA, Contract # HR011-10-C-0175.
+The United States Government has unlimited rights to this software.
+The US government has the right to use, modify, reproduce, release,
+perform, display, or disclose computer software or computer software
+documentation in whole or in part, in any manner and for any
+purpose whatsoever, and to have or authorize others to do so.
+ */
+package edu.vu.isis.logger.util;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A cache of the decoded lines of a FileBuffer, so that scrolling back and
+ * forth over the same part of a file does not decode the same lines again.
+ * <p/>
+ * The buffer is divided into pages of PAGE_SIZE bytes, and a page holds the
+ * decoded lines that begin within it. When a line is asked for and its page
+ * is not cached, every line beginning in the page is decoded at once, since
+ * the lines around it are likely to be shown next. Finding a cached line is a
+ * hash lookup of its page and a binary search within the page.
+ * <p/>
+ * The pages are evicted in least recently used order once the estimated size
+ * of the cached lines goes over a budget. If the buffer becomes shorter, it is
+ * assumed to have been rewritten and the whole cache is dropped. If it grows,
+ * a page that ended at the old end of the buffer is decoded again when a line
+ * it did not hold is asked for.
+ * <p/>
+ * The methods of a LinePageCache are synchronized, so it may be shared by
+ * several threads.
+ *
+ * @author Nick King
+ *
+ */
+public class LinePageCache {
+
+	/** the number of bytes of the buffer in each page */
+	public static final int PAGE_SIZE = 8 * 1024;
+
+	public static final int DEFAULT_BUDGET = 2 * 1024 * 1024;
+
+	/* A rough guess at the bytes taken by each line besides its chars */
+	private static final int LINE_OVERHEAD = 64;
+
+	private final FileBuffer mBuffer;
+	private final LineDecoder mDecoder = new LineDecoder();
+	private final long budget;
+
+	/* Ordered from least to most recently used */
+	private final LinkedHashMap<Long, Page> mPages = new LinkedHashMap<Long, Page>(
+			16, 0.75f, true);
+
+	private long cachedSize = 0;
+	private long knownLength;
+
+	public LinePageCache(FileBuffer buffer) {
+		this(buffer, DEFAULT_BUDGET);
+	}
+
+	/**
+	 * @param buffer
+	 *            -- the buffer holding the lines
+	 * @param budget
+	 *            -- about how many bytes of memory the cached lines may take
+	 */
+	public LinePageCache(FileBuffer buffer, long budget) {
+		mBuffer = buffer;
+		this.budget = budget;
+		knownLength = buffer.length();
+	}
+
+	/**
+	 * Gets a decoded line, decoding its page if it is not cached
+	 *
+	 * @param start
+	 *            -- the position of the first character of the line
+	 * @param end
+	 *            -- the position of the line break that ends the line, or the
+	 *            end of the buffer if it has none
+	 * @return the line
+	 */
+	public synchronized String getLine(long start, long end) {
+
+		final long length = checkLength();
+
+		final Long key = Long.valueOf(start / PAGE_SIZE);
+		Page page = mPages.get(key);
+
+		if (page != null) {
+			final String line = page.find(start, end);
+			if (line != null)
+				return line;
+			// The page was decoded before the line was complete
+			removePage(key);
+		}
+
+		page = decodePage(key.longValue(), length);
+		mPages.put(key, page);
+		cachedSize += page.size;
+		evict();
+
+		final String line = page.find(start, end);
+		// The line may not begin where a line break leaves off, such as the
+		// line of a file that was rewritten after the line was read
+		return (line != null) ? line : mBuffer.decode(start, end, mDecoder);
+
+	}
+
+	/**
+	 * Decodes the page holding a line ahead of time if it is not cached, so
+	 * that getting the line later is only a lookup
+	 * 
+	 * @param start
+	 *            -- the position of the first character of a line
+	 */
+	public synchronized void prefetch(long start) {
+
+		final long length = checkLength();
+
+		final Long key = Long.valueOf(start / PAGE_SIZE);
+		if (mPages.get(key) != null)
+			return;
+
+		final Page page = decodePage(key.longValue(), length);
+		mPages.put(key, page);
+		cachedSize += page.size;
+		evict();
+
+	}
+
+	/**
+	 * Drops every cached page
+	 */
+	public synchronized void clear() {
+		mPages.clear();
+		cachedSize = 0;
+	}
+
+	/**
+	 * @return the estimated number of bytes taken by the cached lines
+	 */
+	public synchronized long getCachedSize() {
+		return cachedSize;
+	}
+
+	public synchronized int getNumPages() {
+		return mPages.size();
+	}
+
+	/**
+	 * Drops the cache if the buffer has become shorter
+	 * 
+	 * @return the length of the buffer
+	 */
+	private long checkLength() {
+		final long length = mBuffer.length();
+		if (length < knownLength)
+			clear();
+		knownLength = length;
+		return length;
+	}
+
+	/**
+	 * Decodes every line that begins within a page
+	 */
+	private Page decodePage(long index, long length) {
+
+		final long pageStart = index * PAGE_SIZE;
+		final long pageEnd = Math.min(pageStart + PAGE_SIZE, length);
+
+		// The first line in the page begins after the line break before it
+		long lineStart = (pageStart == 0) ? 0 : mBuffer.indexOfBreak(
+				pageStart - 1, pageEnd) + 1;
+		if (lineStart == 0 && pageStart != 0)
+			return new Page(new long[0], new long[0], new String[0], 0);
+
+		int numLines = 0;
+		long[] starts = new long[64];
+		long[] ends = new long[64];
+		String[] lines = new String[64];
+		long size = 0;
+
+		while (lineStart < pageEnd) {
+
+			final long lineBreak = mBuffer.indexOfBreak(lineStart, length);
+			final long lineEnd = (lineBreak < 0) ? length : lineBreak;
+
+			if (numLines == starts.length) {
+				starts = grow(starts);
+				ends = grow(ends);
+				final String[] larger = new String[lines.length * 2];
+				System.arraycopy(lines, 0, larger, 0, numLines);
+				lines = larger;
+			}
+
+			starts[numLines] = lineStart;
+			ends[numLines] = lineEnd;
+			lines[numLines] = mBuffer.decode(lineStart, lineEnd, mDecoder);
+			size += 2 * lines[numLines].length() + LINE_OVERHEAD;
+			numLines++;
+
+			if (lineBreak < 0)
+				break;
+			lineStart = lineBreak + 1;
+
+		}
+
+		final long[] trimmedStarts = new long[numLines];
+		final long[] trimmedEnds = new long[numLines];
+		final String[] trimmedLines = new String[numLines];
+		System.arraycopy(starts, 0, trimmedStarts, 0, numLines);
+		System.arraycopy(ends, 0, trimmedEnds, 0, numLines);
+		System.arraycopy(lines, 0, trimmedLines, 0, numLines);
+		return new Page(trimmedStarts, trimmedEnds, trimmedLines, size);
+
+	}
+
+	/**
+	 * Evicts the least recently used pages until the cache is within its
+	 * budget, always keeping the most recently used page
+	 */
+	private void evict() {
+		final Iterator<Page> it = mPages.values().iterator();
+		while (cachedSize > budget && mPages.size() > 1) {
+			cachedSize -= it.next().size;
+			it.remove();
+		}
+	}
+
+	private void removePage(Long key) {
+		final Page page = mPages.remove(key);
+		if (page != null)
+			cachedSize -= page.size;
+	}
+
+	private static long[] grow(long[] array) {
+		final long[] larger = new long[array.length * 2];
+		System.arraycopy(array, 0, larger, 0, array.length);
+		return larger;
+	}
+
+	/**
+	 * The decoded lines that begin within a page of the buffer
+	 */
+	private static class Page {
+
+		final long[] starts;
+		final long[] ends;
+		final String[] lines;
+		final long size;
+
+		Page(long[] starts, long[] ends, String[] lines, long size) {
+			this.starts = starts;
+			this.ends = ends;
+			this.lines = lines;
+			this.size = size;
+		}
+
+		/**
+		 * @return the line with the given start and end, or null if this page
+		 *         does not hold it
+		 */
+		String find(long start, long end) {
+			final int i = Arrays.binarySearch(starts, start);
+			if (i < 0 || ends[i] != end)
+				return null;
+			return lines[i];
+		}
+
+	}
+
+}
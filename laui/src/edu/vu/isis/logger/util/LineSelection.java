@@ -0,0 +1,96 @@
+/*Copyright (C) 2010-2012 Institute for Software Integrated Systems (ISIS)
+This software was developed by the Institute for Software Integrated
+Systems (ISIS) at Vanderbilt University, Tennessee, USA for the
+Transformative Apps program under DARPA, Contract # HR011-10-C-0175.
+The United States Government has unlimited rights to this software.
+The US government has the right to use, modify, reproduce, release,
+perform, display, or disclose computer software or computer software
+documentation in whole or in part, in any manner and for any
+purpose whatsoever, and to have or authorize others to do so.
+ */
+package edu.vu.isis.logger.util;
+
+import java.util.Arrays;
+
+/**
+ * The lines of a file that are selected to be shown, such as the lines found
+ * by a LineGrep along with the lines around them. Each line is stored as the
+ * position of its first character, in a sorted array of longs, so a selection
+ * of a million lines takes 8 MB and finding the selected line nearest to any
+ * position is a binary search.
+ *
+ * @author Nick King
+ *
+ */
+public class LineSelection {
+
+	private final long[] lineStarts;
+	private final int numMatches;
+
+	/**
+	 * @param lineStarts
+	 *            -- the position of the first character of each selected line,
+	 *            in increasing order
+	 * @param numMatches
+	 *            -- how many of the selected lines were matches rather than
+	 *            lines of context
+	 */
+	LineSelection(long[] lineStarts, int numMatches) {
+		this.lineStarts = lineStarts;
+		this.numMatches = numMatches;
+	}
+
+	/**
+	 * @return the number of selected lines, including lines of context
+	 */
+	public int size() {
+		return lineStarts.length;
+	}
+
+	/**
+	 * @return the number of selected lines that were matches
+	 */
+	public int getNumMatches() {
+		return numMatches;
+	}
+
+	/**
+	 * @param index
+	 *            -- the index of a selected line, starting from 0
+	 * @return the position of the first character of the line
+	 */
+	public long get(int index) {
+		return lineStarts[index];
+	}
+
+	/**
+	 * Finds the first selected line that begins at or after a position
+	 *
+	 * @param pos
+	 *            -- a position in the file
+	 * @return the position of the first character of the line, or -1 if no
+	 *         selected line begins at or after pos
+	 */
+	public long ceiling(long pos) {
+		int index = Arrays.binarySearch(lineStarts, pos);
+		if (index < 0)
+			index = -index - 1;
+		return (index < lineStarts.length) ? lineStarts[index] : -1;
+	}
+
+	/**
+	 * Finds the last selected line that begins before a position
+	 *
+	 * @param pos
+	 *            -- a position in the file
+	 * @return the position of the first character of the line, or -1 if no
+	 *         selected line begins before pos
+	 */
+	public long lower(long pos) {
+		int index = Arrays.binarySearch(lineStarts, pos);
+		if (index < 0)
+			index = -index - 1;
+		return (index > 0) ? lineStarts[index - 1] : -1;
+	}
+
+}
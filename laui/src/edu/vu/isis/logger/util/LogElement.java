@@ -30,6 +30,15 @@ public class LogElement {
 		this.mMessage = message;
 	}
 	
+	/**
+	 * Make a new LogElement whose message is supplied later by a subclass,
+	 * which must override getMessage()
+	 * @param level -- the level corresponding to the entry
+	 */
+	protected LogElement(LogLevel level) {
+		this.mLevel = level;
+	}
+	
 	public LogLevel getLogLevel() {
 		return this.mLevel;
 	}
@@ -46,23 +55,24 @@ public class LogElement {
 	
 	@Override
 	public String toString() {
-		return "LogElement Level: [" + mLevel.toString() + "] Message: [" + mMessage + "]";
+		return "LogElement Level: [" + mLevel.toString() + "] Message: [" + getMessage() + "]";
 	}
 	
 	@Override
 	public int hashCode() {
 		int result = 17;
 		result = 31 * result + mLevel.hashCode();
-		result = 31 * result + mMessage.hashCode();
+		result = 31 * result + getMessage().hashCode();
 		return result;
 	}
 	
 	
 	@Override
 	public boolean equals(Object other) {
+		if(other == this) return true;
 		if(!(other instanceof LogElement)) return false;
 		LogElement otherElement = (LogElement) other;
-		return otherElement.mMessage.equals(this.mMessage) && otherElement.mLevel.equals(this.mLevel);
+		return otherElement.getMessage().equals(this.getMessage()) && otherElement.mLevel.equals(this.mLevel);
 	}
 	
 }
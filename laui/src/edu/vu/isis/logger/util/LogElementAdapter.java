@@ -10,6 +10,7 @@ purpose whatsoever, and to have or authorize others to do so.
  */
 package edu.vu.isis.logger.util;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import android.content.Context;
@@ -21,6 +22,12 @@ import android.widget.TextView;
 /**
  * An adapter for LogElements. Automatically colors each line based on the
  * LogLevel's level.
+ * <p>
+ * Elements are found and removed by position or by identity, never with
+ * equals(), which would compare and therefore decode or format the messages of
+ * every element before the one wanted. Two elements can also have equal
+ * messages, such as repeated lines, and only the very element given should be
+ * found.
  * 
  * @author Nick King
  * 
@@ -30,9 +37,57 @@ public class LogElementAdapter extends ArrayAdapter<LogElement> {
 	private Context mContext;
 	private int maxNumLines = 0; // 0 means unlimited lines
 
+	/* The list the ArrayAdapter holds its elements in */
+	private final List<LogElement> mElements;
+
 	public LogElementAdapter(Context context, int textViewResourceId) {
-		super(context, textViewResourceId);
+		this(context, textViewResourceId, new ArrayList<LogElement>());
+	}
+
+	private LogElementAdapter(Context context, int textViewResourceId,
+			List<LogElement> elements) {
+		super(context, textViewResourceId, elements);
 		this.mContext = context;
+		this.mElements = elements;
+	}
+
+	/**
+	 * Finds the position of an element by identity
+	 * 
+	 * @param element
+	 *            -- the element to find
+	 * @return its position, or -1 if it is not in this adapter
+	 */
+	public int indexOfElement(LogElement element) {
+		for (int i = 0; i < mElements.size(); i++) {
+			if (mElements.get(i) == element)
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Removes the element at a position and notifies observers
+	 * 
+	 * @param position
+	 *            -- the position of the element to remove
+	 */
+	public void remove(int position) {
+		mElements.remove(position);
+		super.notifyDataSetChanged();
+	}
+
+	/**
+	 * Removes elements from the beginning and notifies observers once
+	 * 
+	 * @param count
+	 *            -- the number of elements to remove
+	 */
+	public void removeFirst(int count) {
+		if (count <= 0)
+			return;
+		mElements.subList(0, Math.min(count, mElements.size())).clear();
+		super.notifyDataSetChanged();
 	}
 
 	@Override
@@ -50,17 +105,33 @@ public class LogElementAdapter extends ArrayAdapter<LogElement> {
 
 	}
 
+	/**
+	 * Adds a batch of elements to the end of this adapter, removing elements
+	 * from the beginning if the max number of lines is exceeded. Observers
+	 * are notified once for the whole batch rather than for each element, and
+	 * elements of the batch that would only be removed again are not added.
+	 * 
+	 * @param elemList
+	 *            -- the elements to add
+	 */
 	public void addAll(List<LogElement> elemList) {
 		synchronized (elemList) {
-			for (LogElement e : elemList) {
-				super.add(e);
-				if (this.maxNumLines != 0
-						&& this.maxNumLines < super.getCount()) {
-					// Remove the first item in the list if we have exceeded the
-					// max number of lines allowed
-					super.remove(super.getItem(0));
-				}
+			if (elemList.isEmpty())
+				return;
+			super.setNotifyOnChange(false);
+			int first = 0;
+			if (this.maxNumLines != 0 && elemList.size() > this.maxNumLines)
+				first = elemList.size() - this.maxNumLines;
+			for (int i = first; i < elemList.size(); i++) {
+				mElements.add(elemList.get(i));
 			}
+			// Remove the first items in the list if we have exceeded the max
+			// number of lines allowed
+			if (this.maxNumLines != 0 && this.maxNumLines < mElements.size())
+				mElements.subList(0, mElements.size() - this.maxNumLines)
+						.clear();
+			// This also turns notifying on each change back on
+			super.notifyDataSetChanged();
 		}
 	}
 
@@ -81,9 +152,7 @@ public class LogElementAdapter extends ArrayAdapter<LogElement> {
 		if (this.maxNumLines == 0)
 			return;
 
-		while (this.maxNumLines < super.getCount()) {
-			super.remove(super.getItem(0));
-		}
+		removeFirst(super.getCount() - this.maxNumLines);
 	}
 
 }
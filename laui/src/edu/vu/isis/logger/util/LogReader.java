@@ -135,8 +135,19 @@ public abstract class LogReader {
 			return LogLevel.None;
 		if (str.length() == 0)
 			return LogLevel.None;
+		return getCorrespondingLevel(str.charAt(0));
+	}
 
-		final char firstChar = str.charAt(0);
+	/**
+	 * Gets the LogLevel that corresponds to the first char of a String, as
+	 * described in getCorrespondingLevel(String). This lets a line be
+	 * classified from its first byte without decoding it.
+	 * 
+	 * @param firstChar
+	 *            -- the first char of the String
+	 * @return the corresponding LogLevel
+	 */
+	public static LogLevel getCorrespondingLevel(char firstChar) {
 		switch (firstChar) {
 		case 'V':
 			return LogLevel.Verbose;
@@ -157,6 +168,31 @@ public abstract class LogReader {
 		}
 	}
 
+	/**
+	 * Gets the LogLevel of a line read by this LogReader. By default this is
+	 * the level of the line's first char, but readers whose lines put the
+	 * level elsewhere override this.
+	 * 
+	 * @param line
+	 *            -- a line read by this LogReader
+	 * @return the corresponding LogLevel
+	 */
+	public LogLevel findLevel(String line) {
+		return getCorrespondingLevel(line);
+	}
+
+	/**
+	 * Gets the LogLevel of an element read by this LogReader, which is the
+	 * level of its message unless a subclass knows better
+	 * 
+	 * @param element
+	 *            -- an element read by this LogReader
+	 * @return the corresponding LogLevel
+	 */
+	public LogLevel findLevel(LogElement element) {
+		return findLevel(element.getMessage());
+	}
+
 	/**
 	 * Convenience method to get a LogLevel for a String only if we have been
 	 * set to color logs
@@ -168,7 +204,7 @@ public abstract class LogReader {
 	 */
 	LogLevel getCorrespondingLevelIfIsColored(String str) {
 		if (isColored.get()) {
-			return getCorrespondingLevel(str);
+			return findLevel(str);
 		} else {
 			return LogLevel.None;
 		}
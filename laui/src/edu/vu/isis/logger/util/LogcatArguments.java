@@ -0,0 +1,314 @@
+/*Copyright (C) 2010-2012 Institute for Software Integrated Systems (ISIS)
+This software was developed by the Institute for Software Integrated
+Systems (ISIS) at Vanderbilt University, Tennessee, USA for the
+Transformative Apps program under DARPA, Contract # HR011-10-C-0175.
+The United States Government has unlimited rights to this software.
+The US government has the right to use, modify, reproduce, release,
+perform, display, or disclose computer software or computer software
+documentation in whole or in part, in any manner and for any
+purpose whatsoever, and to have or authorize others to do so.
+ */
+package edu.vu.isis.logger.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * The arguments to run Logcat with, parsed from what the user typed into the
+ * logcat_arguments preference. Logcat then drops the lines that the user does
+ * not want before they are ever sent to us.
+ * <p/>
+ * The text is split into words the way a shell would, so a word can be quoted
+ * with single or double quotes or have characters escaped with a backslash,
+ * but nothing is ever run through a shell. Only the arguments that select
+ * which lines Logcat prints and how are allowed:
+ * <ul>
+ * <li>-v format, where format is one of FORMATS</li>
+ * <li>-b buffer, which may be given more than once</li>
+ * <li>--pid=pid or --pid pid</li>
+ * <li>-s, which silences every tag not named by a filter spec</li>
+ * <li>filter specs such as ActivityManager:I or *:S</li>
+ * </ul>
+ * Anything else, such as -f or -c, which would write a file or clear the log,
+ * is rejected.
+ *
+ * @author Nick King
+ *
+ */
+public class LogcatArguments {
+
+	/** the output formats that Logcat may be asked for */
+	public static final List<String> FORMATS = Arrays.asList("brief",
+			"process", "tag", "thread", "raw", "time", "threadtime", "long");
+
+	/** the format Logcat uses if none is given */
+	public static final String DEFAULT_FORMAT = "brief";
+
+	private static final Pattern BUFFER = Pattern.compile("[a-z]+");
+	private static final Pattern PID = Pattern.compile("[0-9]+");
+	private static final Pattern FILTER_SPEC = Pattern
+			.compile("[^\\s:]+(:[VDIWEFS])?");
+
+	private static final String PID_OPTION = "--pid";
+
+	private String format = null;
+	private final List<String> buffers = new ArrayList<String>();
+	private String pid = null;
+	private boolean silent = false;
+	private final List<String> filterSpecs = new ArrayList<String>();
+
+	private LogcatArguments() {
+	}
+
+	/**
+	 * Parses the arguments typed by the user
+	 *
+	 * @param text
+	 *            -- the arguments, or null for none
+	 * @return the parsed arguments
+	 * @throws IllegalArgumentException
+	 *             if an argument is not allowed or is missing its value, or if
+	 *             a quote is not closed
+	 */
+	public static LogcatArguments parse(String text) {
+
+		final LogcatArguments args = new LogcatArguments();
+		if (text == null)
+			return args;
+
+		final List<String> words = split(text);
+		for (int i = 0; i < words.size(); i++) {
+
+			final String word = words.get(i);
+
+			if (word.startsWith("-v")) {
+				final String value = (word.length() > 2) ? word.substring(2)
+						: valueAfter(words, i++, word);
+				if (!FORMATS.contains(value))
+					throw new IllegalArgumentException("Unknown format: "
+							+ value);
+				args.format = value;
+			} else if (word.startsWith("-b")) {
+				final String value = (word.length() > 2) ? word.substring(2)
+						: valueAfter(words, i++, word);
+				if (!BUFFER.matcher(value).matches())
+					throw new IllegalArgumentException("Invalid buffer: "
+							+ value);
+				args.buffers.add(value);
+			} else if (word.startsWith(PID_OPTION)) {
+				final String value;
+				if (word.equals(PID_OPTION)) {
+					value = valueAfter(words, i++, word);
+				} else if (word.charAt(PID_OPTION.length()) == '=') {
+					value = word.substring(PID_OPTION.length() + 1);
+				} else {
+					throw new IllegalArgumentException(
+							"Argument not allowed: " + word);
+				}
+				if (!PID.matcher(value).matches())
+					throw new IllegalArgumentException("Invalid pid: " + value);
+				args.pid = value;
+			} else if (word.equals("-s")) {
+				args.silent = true;
+			} else if (word.startsWith("-")) {
+				throw new IllegalArgumentException("Argument not allowed: "
+						+ word);
+			} else if (FILTER_SPEC.matcher(word).matches()) {
+				args.filterSpecs.add(word);
+			} else {
+				throw new IllegalArgumentException("Invalid filter spec: "
+						+ word);
+			}
+
+		}
+
+		return args;
+
+	}
+
+	/**
+	 * @return the output format that Logcat will use
+	 */
+	public String getFormat() {
+		return (format == null) ? DEFAULT_FORMAT : format;
+	}
+
+	/**
+	 * @return the command to run Logcat with these arguments. The format is
+	 *         always given, even if the user gave none, since the default
+	 *         format differs between versions of Logcat and the lines must be
+	 *         printed in the format that getFormat() reports.
+	 */
+	public String[] toCommand() {
+		return toCommand(getFormat());
+	}
+
+	/**
+	 * Makes the command to run Logcat with these arguments but a given output
+	 * format, for readers that can only read one format
+	 *
+	 * @param outputFormat
+	 *            -- the format to use, or null to leave it to Logcat
+	 * @return the command to run
+	 */
+	public String[] toCommand(String outputFormat) {
+		final List<String> command = new ArrayList<String>();
+		command.add("logcat");
+		if (outputFormat != null) {
+			command.add("-v");
+			command.add(outputFormat);
+		}
+		return toCommand(command);
+	}
+
+	/**
+	 * Makes the command to run Logcat with these arguments but print binary
+	 * logger_entry records instead of text, for a LogcatBinaryParser. The
+	 * format is left out, since the parser formats the entries itself.
+	 *
+	 * @return the command to run
+	 */
+	public String[] toBinaryCommand() {
+		final List<String> command = new ArrayList<String>();
+		command.add("logcat");
+		command.add("-B");
+		return toCommand(command);
+	}
+
+	/**
+	 * Adds the arguments other than the format to a command
+	 */
+	private String[] toCommand(List<String> command) {
+		for (String buffer : buffers) {
+			command.add("-b");
+			command.add(buffer);
+		}
+		if (pid != null)
+			command.add(PID_OPTION + "=" + pid);
+		if (silent)
+			command.add("-s");
+		command.addAll(filterSpecs);
+		return command.toArray(new String[command.size()]);
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if (other == this)
+			return true;
+		if (!(other instanceof LogcatArguments))
+			return false;
+		return Arrays.equals(toCommand(),
+				((LogcatArguments) other).toCommand());
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(toCommand());
+	}
+
+	/**
+	 * Finds the character giving the priority of a line printed in a format
+	 *
+	 * @param line
+	 *            -- a line printed by Logcat
+	 * @param outputFormat
+	 *            -- the format it was printed in
+	 * @return the priority character, such as 'I', or 0 if it has none
+	 */
+	public static char findPriority(String line, String outputFormat) {
+		final int word;
+		if (outputFormat.equals("time")) {
+			// 05-01 14:32:05.123 I/Tag(  123): message
+			word = 2;
+		} else if (outputFormat.equals("threadtime")) {
+			// 05-01 14:32:05.123  123  456 I Tag: message
+			word = 4;
+		} else if (outputFormat.equals("raw") || outputFormat.equals("long")) {
+			// The priority is not on the lines of the message
+			return 0;
+		} else {
+			// I/Tag(  123): message, or I(  123) message, and so on
+			word = 0;
+		}
+		final int start = startOfWord(line, word);
+		return (start < 0) ? 0 : line.charAt(start);
+	}
+
+	/**
+	 * @return the index of the first character of a word of a line, counting
+	 *         from 0, or -1 if the line does not have that many words
+	 */
+	private static int startOfWord(String line, int word) {
+		int pos = 0;
+		final int length = line.length();
+		for (int i = 0; i <= word; i++) {
+			while (pos < length && Character.isWhitespace(line.charAt(pos))) {
+				pos++;
+			}
+			if (pos == length)
+				return -1;
+			if (i == word)
+				return pos;
+			while (pos < length && !Character.isWhitespace(line.charAt(pos))) {
+				pos++;
+			}
+		}
+		return -1;
+	}
+
+	private static String valueAfter(List<String> words, int i, String option) {
+		if (i + 1 >= words.size())
+			throw new IllegalArgumentException("Missing value for " + option);
+		return words.get(i + 1);
+	}
+
+	/**
+	 * Splits text into words at whitespace, keeping quoted text together and
+	 * removing the quotes and escaping backslashes
+	 */
+	static List<String> split(String text) {
+
+		final List<String> words = new ArrayList<String>();
+		final StringBuilder word = new StringBuilder();
+		boolean inWord = false;
+		char quote = 0;
+
+		for (int i = 0; i < text.length(); i++) {
+			final char c = text.charAt(i);
+			if (quote != 0) {
+				if (c == quote) {
+					quote = 0;
+				} else if (c == '\\' && quote == '"' && i + 1 < text.length()) {
+					word.append(text.charAt(++i));
+				} else {
+					word.append(c);
+				}
+			} else if (c == '\'' || c == '"') {
+				quote = c;
+				inWord = true;
+			} else if (c == '\\' && i + 1 < text.length()) {
+				word.append(text.charAt(++i));
+				inWord = true;
+			} else if (Character.isWhitespace(c)) {
+				if (inWord) {
+					words.add(word.toString());
+					word.setLength(0);
+					inWord = false;
+				}
+			} else {
+				word.append(c);
+				inWord = true;
+			}
+		}
+
+		if (quote != 0)
+			throw new IllegalArgumentException("Unclosed quote in: " + text);
+		if (inWord)
+			words.add(word.toString());
+		return words;
+
+	}
+
+}
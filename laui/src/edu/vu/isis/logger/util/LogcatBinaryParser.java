@@ -0,0 +1,191 @@
+/*Copyright (C) 2010-2012 Institute for Software Integrated Systems (ISIS)
+This software was developed by the Institute for Software Integrated
+Systems (ISIS) at Vanderbilt University, Tennessee, USA for the
+Transformative Apps program under DARPA, Contract # HR011-10-C-0175.
+The United States Government has unlimited rights to this software.
+The US government has the right to use, modify, reproduce, release,
+perform, display, or disclose computer software or computer software
+documentation in whole or in part, in any manner and for any
+purpose whatsoever, and to have or authorize others to do so.
+ */
+package edu.vu.isis.logger.util;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Parses the binary logger_entry records printed by <code>logcat -B</code>.
+ * Each record is a little-endian header followed by a payload:
+ *
+ * <pre>
+ * uint16 len       the length of the payload
+ * uint16 hdr_size  0 in the first version, else the length of this header
+ * int32  pid
+ * int32  tid
+ * int32  sec
+ * int32  nsec
+ * ...              more fields in later versions, which are skipped
+ * uint8  priority  the first byte of the payload
+ * char[] tag       ended by a 0
+ * char[] message   ended by a 0
+ * </pre>
+ *
+ * The tag and message are decoded straight from the bytes read, without going
+ * through a Reader, by a LineDecoder. A message with several lines is split
+ * into one LogcatEntry for each line, as Logcat would print it.
+ * <p/>
+ * A LogcatBinaryParser is not thread safe, and is meant to be used only by the
+ * thread reading from Logcat.
+ *
+ * @author Nick King
+ *
+ */
+public class LogcatBinaryParser implements Closeable {
+
+	/** the length of the header of the first version of logger_entry */
+	private static final int V1_HEADER_SIZE = 20;
+
+	/** the longest header we expect from any version of logger_entry */
+	private static final int MAX_HEADER_SIZE = 64;
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private final InputStream mStream;
+	private final String mFormat;
+	private final LineDecoder mDecoder = new LineDecoder();
+
+	private final byte[] header = new byte[MAX_HEADER_SIZE];
+	private byte[] payload = new byte[BUFFER_SIZE];
+	private ByteBuffer mPayloadBuffer = ByteBuffer.wrap(payload);
+
+	/**
+	 * @param stream
+	 *            -- the output stream of <code>logcat -B</code>
+	 * @param format
+	 *            -- the Logcat output format to show entries in
+	 */
+	public LogcatBinaryParser(InputStream stream, String format) {
+		mStream = new BufferedInputStream(stream, BUFFER_SIZE);
+		mFormat = format;
+	}
+
+	/**
+	 * Reads the next record, blocking until it is available, and adds a
+	 * LogcatEntry for each line of its message
+	 *
+	 * @param entries
+	 *            -- where to add the entries
+	 * @return the number of entries added, or -1 if the stream has ended
+	 * @throws IOException
+	 *             if the stream could not be read or does not hold
+	 *             logger_entry records
+	 */
+	public int readEntries(List<LogcatEntry> entries) throws IOException {
+
+		if (!readFully(header, 0, 4, true))
+			return -1;
+
+		final int length = readShort(header, 0);
+		int headerSize = readShort(header, 2);
+		if (headerSize == 0)
+			headerSize = V1_HEADER_SIZE;
+		if (headerSize < V1_HEADER_SIZE || headerSize > MAX_HEADER_SIZE)
+			throw new IOException("Not a logger_entry header, header size: "
+					+ headerSize);
+		readFully(header, 4, headerSize - 4, false);
+
+		final int pid = readInt(header, 4);
+		final int tid = readInt(header, 8);
+		final int sec = readInt(header, 12);
+		final int nsec = readInt(header, 16);
+
+		if (payload.length < length) {
+			payload = new byte[length];
+			mPayloadBuffer = ByteBuffer.wrap(payload);
+		}
+		readFully(payload, 0, length, false);
+		if (length == 0)
+			return 0;
+
+		final int priority = payload[0];
+		final int tagEnd = indexOfZero(1, length);
+		final String tag = mDecoder.decode(mPayloadBuffer, 1, tagEnd);
+		int messageEnd = indexOfZero(Math.min(tagEnd + 1, length), length);
+
+		// Logcat does not print the line breaks that end a message
+		int start = Math.min(tagEnd + 1, messageEnd);
+		while (messageEnd > start && payload[messageEnd - 1] == '\n') {
+			messageEnd--;
+		}
+
+		int added = 0;
+		for (int i = start; i <= messageEnd; i++) {
+			if (i == messageEnd || payload[i] == '\n') {
+				final String line = mDecoder.decode(mPayloadBuffer, start, i);
+				entries.add(new LogcatEntry(pid, tid, sec, nsec, priority, tag,
+						line, mFormat));
+				added++;
+				start = i + 1;
+			}
+		}
+		return added;
+
+	}
+
+	@Override
+	public void close() throws IOException {
+		mStream.close();
+	}
+
+	/**
+	 * @return the index of the first 0 in the payload from start, or end if
+	 *         there is none
+	 */
+	private int indexOfZero(int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (payload[i] == 0)
+				return i;
+		}
+		return end;
+	}
+
+	/**
+	 * Reads bytes until the array range is filled
+	 *
+	 * @param atRecord
+	 *            -- whether this is the start of a record, where the stream
+	 *            may end
+	 * @return false if the stream ended at the start of a record
+	 * @throws EOFException
+	 *             if the stream ended within a record
+	 */
+	private boolean readFully(byte[] bytes, int offset, int length,
+			boolean atRecord) throws IOException {
+		int read = 0;
+		while (read < length) {
+			final int count = mStream.read(bytes, offset + read, length - read);
+			if (count < 0) {
+				if (atRecord && read == 0)
+					return false;
+				throw new EOFException("Logcat ended within a record");
+			}
+			read += count;
+		}
+		return true;
+	}
+
+	private static int readShort(byte[] bytes, int offset) {
+		return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8;
+	}
+
+	private static int readInt(byte[] bytes, int offset) {
+		return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8
+				| (bytes[offset + 2] & 0xff) << 16 | bytes[offset + 3] << 24;
+	}
+
+}
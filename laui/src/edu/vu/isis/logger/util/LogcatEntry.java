@@ -0,0 +1,228 @@
+/*Copyright (C) 2010-2012 Institute for Software Integrated Systems (ISIS)
+This software was developed by the Institute for Software Integrated
+Systems (ISIS) at Vanderbilt University, Tennessee, USA for the
+Transformative Apps program under DARPA, Contract # HR011-10-C-0175.
+The United States Government has unlimited rights to this software.
+The US government has the right to use, modify, reproduce, release,
+perform, display, or disclose computer software or computer software
+documentation in whole or in part, in any manner and for any
+purpose whatsoever, and to have or authorize others to do so.
+ */
+package edu.vu.isis.logger.util;
+
+import java.util.Calendar;
+
+/**
+ * A LogElement for one line of a message read from Logcat in binary by a
+ * LogcatBinaryParser. It holds the fields of the entry the line came from, and
+ * is only formatted into text the first time its message is asked for, in the
+ * same way that Logcat would have printed it in the given output format. Lines
+ * that are never drawn are therefore never formatted.
+ * <p/>
+ * The level is exact, since it comes from the priority of the entry rather
+ * than from the text. Lines printed in the long format have their header on the
+ * same line as the message, since every line is shown on a row of its own.
+ *
+ * @author Nick King
+ *
+ */
+public class LogcatEntry extends LogElement {
+
+	/* The priority chars of the Android log priorities, indexed by priority */
+	private static final String PRIORITY_CHARS = "??VDIWEFS";
+
+	/* Only used while holding its lock */
+	private static final Calendar CALENDAR = Calendar.getInstance();
+
+	private final int pid;
+	private final int tid;
+	private final int sec;
+	private final int nsec;
+	private final char priority;
+	private final String tag;
+	private final String line;
+	private final String format;
+
+	private String mMessage;
+
+	/**
+	 * @param pid
+	 *            -- the id of the process that logged the entry
+	 * @param tid
+	 *            -- the id of the thread that logged the entry
+	 * @param sec
+	 *            -- the seconds since the epoch at which it was logged
+	 * @param nsec
+	 *            -- the nanoseconds past that second
+	 * @param priority
+	 *            -- the Android log priority, such as 4 for Info
+	 * @param tag
+	 *            -- the tag it was logged with
+	 * @param line
+	 *            -- the line of its message that this element shows
+	 * @param format
+	 *            -- the Logcat output format to show it in
+	 */
+	LogcatEntry(int pid, int tid, int sec, int nsec, int priority, String tag,
+			String line, String format) {
+		super(LogLevel.None);
+		this.pid = pid;
+		this.tid = tid;
+		this.sec = sec;
+		this.nsec = nsec;
+		this.priority = (priority >= 0 && priority < PRIORITY_CHARS.length()) ?
+				PRIORITY_CHARS.charAt(priority) : '?';
+		this.tag = tag;
+		this.line = line;
+		this.format = format;
+		setLogLevel(getPriorityLevel());
+	}
+
+	public int getPid() {
+		return pid;
+	}
+
+	public int getTid() {
+		return tid;
+	}
+
+	/**
+	 * @return the time in ms since the epoch at which the entry was logged
+	 */
+	public long getTime() {
+		return sec * 1000L + nsec / 1000000;
+	}
+
+	/**
+	 * @return the priority char, such as 'I', or '?' if it is unknown
+	 */
+	public char getPriority() {
+		return priority;
+	}
+
+	/**
+	 * @return the LogLevel of the entry's priority, whether or not this
+	 *         element is being colored
+	 */
+	public LogLevel getPriorityLevel() {
+		return LogReader.getCorrespondingLevel(priority);
+	}
+
+	public String getTag() {
+		return tag;
+	}
+
+	@Override
+	public synchronized String getMessage() {
+
+		if (mMessage != null)
+			return mMessage;
+
+		final StringBuilder sb = new StringBuilder(line.length() + 48);
+		if (format.equals("time")) {
+			appendTime(sb);
+			sb.append(' ').append(priority).append('/');
+			appendPadded(sb, tag, 8);
+			sb.append('(');
+			appendPadded(sb, pid, 5);
+			sb.append("): ").append(line);
+		} else if (format.equals("threadtime")) {
+			appendTime(sb);
+			sb.append(' ');
+			appendPadded(sb, pid, 5);
+			sb.append(' ');
+			appendPadded(sb, tid, 5);
+			sb.append(' ').append(priority).append(' ');
+			appendPadded(sb, tag, 8);
+			sb.append(": ").append(line);
+		} else if (format.equals("long")) {
+			sb.append("[ ");
+			appendTime(sb);
+			sb.append(' ');
+			appendPadded(sb, pid, 5);
+			sb.append(':');
+			appendPadded(sb, tid, 5);
+			sb.append(' ').append(priority).append('/');
+			appendPadded(sb, tag, 8);
+			sb.append(" ] ").append(line);
+		} else if (format.equals("process")) {
+			sb.append(priority).append('(');
+			appendPadded(sb, pid, 5);
+			sb.append(") ").append(line).append("  (").append(tag).append(')');
+		} else if (format.equals("tag")) {
+			sb.append(priority).append('/');
+			appendPadded(sb, tag, 8);
+			sb.append(": ").append(line);
+		} else if (format.equals("thread")) {
+			sb.append(priority).append('(');
+			appendPadded(sb, pid, 5);
+			sb.append(':');
+			appendPadded(sb, tid, 5);
+			sb.append(") ").append(line);
+		} else if (format.equals("raw")) {
+			sb.append(line);
+		} else {
+			// brief
+			sb.append(priority).append('/');
+			appendPadded(sb, tag, 8);
+			sb.append('(');
+			appendPadded(sb, pid, 5);
+			sb.append("): ").append(line);
+		}
+
+		mMessage = sb.toString();
+		return mMessage;
+
+	}
+
+	/**
+	 * Appends the time as Logcat prints it, such as 05-01 14:32:05.123
+	 */
+	private void appendTime(StringBuilder sb) {
+		synchronized (CALENDAR) {
+			CALENDAR.setTimeInMillis(getTime());
+			appendTwoDigits(sb, CALENDAR.get(Calendar.MONTH) + 1);
+			sb.append('-');
+			appendTwoDigits(sb, CALENDAR.get(Calendar.DAY_OF_MONTH));
+			sb.append(' ');
+			appendTwoDigits(sb, CALENDAR.get(Calendar.HOUR_OF_DAY));
+			sb.append(':');
+			appendTwoDigits(sb, CALENDAR.get(Calendar.MINUTE));
+			sb.append(':');
+			appendTwoDigits(sb, CALENDAR.get(Calendar.SECOND));
+		}
+		final int ms = nsec / 1000000;
+		sb.append('.');
+		if (ms < 100)
+			sb.append('0');
+		appendTwoDigits(sb, ms);
+	}
+
+	private static void appendTwoDigits(StringBuilder sb, int value) {
+		if (value < 10)
+			sb.append('0');
+		sb.append(value);
+	}
+
+	/**
+	 * Appends a number right-aligned in a field of a given width
+	 */
+	private static void appendPadded(StringBuilder sb, int value, int width) {
+		final String digits = Integer.toString(value);
+		for (int i = digits.length(); i < width; i++) {
+			sb.append(' ');
+		}
+		sb.append(digits);
+	}
+
+	/**
+	 * Appends text left-aligned in a field of a given width
+	 */
+	private static void appendPadded(StringBuilder sb, String text, int width) {
+		sb.append(text);
+		for (int i = text.length(); i < width; i++) {
+			sb.append(' ');
+		}
+	}
+
+}
@@ -11,10 +11,13 @@ purpose whatsoever, and to have or authorize others to do so.
 package edu.vu.isis.logger.util;
 
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -25,11 +28,31 @@ import java.util.regex.PatternSyntaxException;
 import android.content.Context;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 
 /**
  * A log reader that reads from the Logcat output stream. A LogcatLogReader
  * sends all new LogElements read to a Handler through Messages tagged with the
- * constant CONCAT_DATA_MSG. These messages will be sent with a fixed period.
+ * constant CONCAT_DATA_MSG, each holding a Batch. Only one Batch is sent at a
+ * time, and the next is not sent until the Handler calls consumed() on the
+ * last one, so Messages never pile up in the Looper of a busy UI thread.
+ * <p>
+ * Batches are sent a whole number of display frames apart. When Logcat is
+ * quiet, new lines are sent at the next frame, and as the rate of new lines
+ * grows, batches are sent less often and grow larger, so that the UI spends
+ * its time showing lines rather than handling Messages.
+ * <p>
+ * Lines can be filtered in two ways. The LogcatArguments given to the
+ * constructor are passed to Logcat, which drops the lines they do not select
+ * before they are sent to us, and the regular expression is then matched
+ * against each line that is left.
+ * <p>
+ * In binary mode, Logcat is run with <code>-B</code> and its logger_entry
+ * records are parsed straight from the bytes by a LogcatBinaryParser, rather
+ * than being printed as text by Logcat and decoded into lines by a Reader.
+ * The LogcatEntries read have exact levels, and are only formatted in the
+ * output format of the LogcatArguments when they are drawn or matched against
+ * the regular expression.
  * <p>
  * If an invalid regular expression is given to this log reader, then a Message
  * tagged with the constant NOTIFY_INVALID_REGEX_MSG will be sent to the
@@ -40,6 +63,16 @@ import android.os.Message;
  * terminate their threads and stop caching new messages. Failing to call
  * terminate will result in a nasty memory leak and reduced performance from the
  * threads not terminating after their references are lost.
+ * <p>
+ * The lines read are handed to the sending thread through a SpscRingBuffer, so
+ * neither thread locks for each line. If the ring fills up because the lines
+ * are not being sent fast enough, the newest lines are dropped, and a line
+ * telling how many were dropped is sent in their place.
+ * <p>
+ * While paused, the reading thread waits to be resumed rather than polling,
+ * so a paused reader costs no CPU. terminate() kills the Logcat process and
+ * waits a bounded time for the reading thread to finish, after which
+ * isShutDown() tells whether anything was left running.
  * 
  * @author Nick King
  * 
@@ -48,21 +81,65 @@ public class LogcatLogReader extends LogReader {
 
 	private static final int BUFFER_SIZE = 1024;
 
-	/** number of milliseconds to delay each message update */
-	private static final long SEND_DELAY = 30;
+	/** the length in ms of a display frame, the unit that batches are sent in */
+	private static final long FRAME_DELAY = 16;
+
+	/** the rate in lines per second at which each extra frame is waited */
+	private static final double LINES_PER_SECOND_PER_FRAME = 1500;
+
+	/** the most frames to wait between batches */
+	private static final int MAX_FRAMES = 8;
+
+	/* The fewest and most lines sent in one batch */
+	private static final int MIN_BATCH_SIZE = 256;
+	private static final int MAX_BATCH_SIZE = 4096;
+
+	/**
+	 * how long in ms a batch may go unconsumed before it is taken to have been
+	 * lost, such as when its Handler went away
+	 */
+	private static final long BATCH_TIMEOUT = 2000;
+
+	/** the most ms that terminate() waits for the reading thread to finish */
+	private static final long TERMINATE_TIMEOUT = 500;
+
+	/**
+	 * the number of lines that can be waiting to be sent, which is over a
+	 * second of Logcat at several thousand lines per second
+	 */
+	private static final int CACHE_CAPACITY = 8192;
 
 	public static final int CONCAT_DATA_MSG = 0;
 	public static final int NOTIFY_INVALID_REGEX_MSG = 1;
 
+	private final Process mProcess;
+	/* Only one of these is used, depending on whether we read in binary */
 	private final BufferedReader mReader;
-	private final ArrayList<LogElement> mLogCache = new ArrayList<LogElement>();
+	private final LogcatBinaryParser mParser;
+	/* Filled by the ReadThread and drained by the scheduler's thread only */
+	private final SpscRingBuffer<LogElement> mLogCache = new SpscRingBuffer<LogElement>(
+			CACHE_CAPACITY);
+	private long lastDropped = 0;
+
+	/* Whether a Batch has been sent and not consumed yet, and when it was sent */
+	private final AtomicBoolean isBatchOutstanding = new AtomicBoolean(false);
+	private volatile long batchSentTime;
+
+	/* Used only on the scheduler's thread to measure the rate of new lines */
+	private double inboundRate = 0;
+	private long lastUpdateTime;
+	private long lastOffered = 0;
 	private Pattern mPattern;
 	private String mRegex;
+	private final LogcatArguments mArguments;
+	private final String mFormat;
 
 	/**
-	 * Indicates whether the ReadThread should be reading
+	 * Indicates whether the ReadThread should be reading. The ReadThread waits
+	 * on readLock while this is false.
 	 */
 	private final AtomicBoolean isReading = new AtomicBoolean(false);
+	private final Object readLock = new Object();
 
 	/**
 	 * Indicates whether it is worth our time to match against a regex on each
@@ -80,9 +157,52 @@ public class LogcatLogReader extends LogReader {
 	public LogcatLogReader(Context context, Handler handler, String regex)
 			throws IOException {
 
+		this(context, handler, regex, LogcatArguments.parse(null));
+
+	}
+
+	/**
+	 * @param context
+	 *            -- the Context of the Activity using this LogcatLogReader
+	 * @param handler
+	 *            -- the Handler to which messages should be posted
+	 * @param regex
+	 *            -- the regular expression that lines must match to be sent
+	 * @param arguments
+	 *            -- the arguments to run Logcat with
+	 * @throws IOException
+	 *             if Logcat could not be run
+	 */
+	public LogcatLogReader(Context context, Handler handler, String regex,
+			LogcatArguments arguments) throws IOException {
+
+		this(context, handler, regex, arguments, false);
+
+	}
+
+	/**
+	 * @param context
+	 *            -- the Context of the Activity using this LogcatLogReader
+	 * @param handler
+	 *            -- the Handler to which messages should be posted
+	 * @param regex
+	 *            -- the regular expression that lines must match to be sent
+	 * @param arguments
+	 *            -- the arguments to run Logcat with
+	 * @param binary
+	 *            -- whether to read binary records from <code>logcat -B</code>
+	 *            rather than text
+	 * @throws IOException
+	 *             if Logcat could not be run
+	 */
+	public LogcatLogReader(Context context, Handler handler, String regex,
+			LogcatArguments arguments, boolean binary) throws IOException {
+
 		mContext = context;
 		mHandler = handler;
 		mRegex = regex;
+		mArguments = arguments;
+		mFormat = arguments.getFormat();
 
 		try {
 			mPattern = Pattern.compile(mRegex);
@@ -93,46 +213,113 @@ public class LogcatLogReader extends LogReader {
 			isRegexUseful.set(!mRegex.equals(""));
 		}
 
-		String command = "logcat";
-		final Process logcatProcess = Runtime.getRuntime().exec(command);
-		mReader = new BufferedReader(new InputStreamReader(
-				logcatProcess.getInputStream()), BUFFER_SIZE);
-
-	}
-
-	/**
-	 * Sends the current log cache and clears it if sending has not been paused
-	 * and the log cache is not empty
-	 */
-	private void sendCacheAndClear() {
-		// both methods check the state
-		if (!this.mLogCache.isEmpty()) {
-			sendCacheMsg();
-			clearCache();
+		if (binary) {
+			mProcess = Runtime.getRuntime().exec(arguments.toBinaryCommand());
+			mReader = null;
+			mParser = new LogcatBinaryParser(mProcess.getInputStream(),
+					mFormat);
+		} else {
+			mProcess = Runtime.getRuntime().exec(arguments.toCommand());
+			mReader = new BufferedReader(new InputStreamReader(
+					mProcess.getInputStream()), BUFFER_SIZE);
+			mParser = null;
 		}
+
 	}
 
 	/**
-	 * Sends the log cache to the attached Handler
+	 * Takes up to a batch of lines out of the log cache and sends them to the
+	 * attached Handler, unless sending has been paused, in which case they are
+	 * discarded. Nothing is taken if the last batch has not been consumed yet.
+	 * This may only be called on the scheduler's thread.
+	 * 
+	 * @param maxLines
+	 *            -- the most lines to send
 	 */
-	private void sendCacheMsg() {
+	private void sendCacheAndClear(int maxLines) {
 
 		checkValidState();
 
+		final long now = SystemClock.uptimeMillis();
+		if (this.isBatchOutstanding.get()
+				&& now - this.batchSentTime < BATCH_TIMEOUT)
+			return;
+
+		final long dropped = this.mLogCache.getDropped();
+		if (this.mLogCache.isEmpty() && dropped == this.lastDropped)
+			return;
+
+		final ArrayList<LogElement> elements = new ArrayList<LogElement>(
+				Math.min(this.mLogCache.size(), maxLines) + 1);
+		this.mLogCache.drainTo(elements, maxLines);
+		if (dropped != this.lastDropped) {
+			elements.add(new LogElement(LogLevel.None, "["
+					+ (dropped - this.lastDropped)
+					+ " lines dropped because they arrived too fast]"));
+			this.lastDropped = dropped;
+		}
+
 		if (!this.isPaused.get()) {
 			final Message msg = Message.obtain();
 			msg.what = CONCAT_DATA_MSG;
-
-			synchronized (this.mLogCache) {
-				msg.obj = this.mLogCache.clone();
-			}
-
+			msg.obj = new Batch(elements);
 			msg.setTarget(mHandler);
+			this.batchSentTime = now;
+			this.isBatchOutstanding.set(true);
 			msg.sendToTarget();
 		}
 
 	}
 
+	/**
+	 * Updates the rate at which new lines are arriving, from the lines added
+	 * to the log cache since the last time this method was called. This may
+	 * only be called on the scheduler's thread.
+	 */
+	private void measureInboundRate() {
+		final long now = SystemClock.uptimeMillis();
+		final long offered = this.mLogCache.getOffered();
+		final long elapsed = now - this.lastUpdateTime;
+		if (elapsed > 0) {
+			final double rate = 1000.0 * (offered - this.lastOffered) / elapsed;
+			this.inboundRate = (this.inboundRate + rate) / 2;
+		}
+		this.lastUpdateTime = now;
+		this.lastOffered = offered;
+	}
+
+	/**
+	 * @return how long in ms to wait before sending the next batch at the
+	 *         current rate of new lines
+	 */
+	private long getUpdateDelay() {
+		final int frames = 1 + (int) (this.inboundRate
+				/ LINES_PER_SECOND_PER_FRAME);
+		return FRAME_DELAY * Math.min(frames, MAX_FRAMES);
+	}
+
+	/**
+	 * @return how many lines to send in the next batch at the current rate of
+	 *         new lines, which is enough for twice that rate so that a backlog
+	 *         is caught up on
+	 */
+	private int getBatchSize(long delay) {
+		final double lines = 2 * this.inboundRate * delay / 1000;
+		return (int) Math.max(MIN_BATCH_SIZE, Math.min(MAX_BATCH_SIZE, lines));
+	}
+
+	/**
+	 * Schedules the next update, unless we have been terminated
+	 */
+	private void scheduleUpdate(long delay) {
+		try {
+			this.scheduler.schedule(this.updateRunnable, delay,
+					TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// We have been terminated, so there is nobody to send to
+		}
+	}
+
 	/**
 	 * Starts this LogcatLogReader's reading and sending threads. It is
 	 * extremely important that after this method is called, the terminate
@@ -147,24 +334,58 @@ public class LogcatLogReader extends LogReader {
 
 		this.myReadThread = new ReadThread();
 		this.myReadThread.start();
-		this.scheduler.scheduleWithFixedDelay(this.updateRunnable, SEND_DELAY,
-				SEND_DELAY, TimeUnit.MILLISECONDS);
+		this.lastUpdateTime = SystemClock.uptimeMillis();
+		scheduleUpdate(FRAME_DELAY);
 	}
 
 	/**
 	 * Allows this LogcatLogReader to terminate its thread. It is extremely
 	 * important to call this method when this object is no longer needed.
+	 * <p>
+	 * The Logcat process is killed, which ends the stream the reading thread
+	 * is blocked on, and this method then waits up to TERMINATE_TIMEOUT ms for
+	 * the thread to finish.
 	 */
 	@Override
 	public void terminate() {
 		super.terminate();
+		this.scheduler.shutdownNow();
 		this.myReadThread.cancel();
-		this.scheduler.shutdown();
-		this.mLogCache.clear();
+		this.mProcess.destroy();
+		try {
+			this.myReadThread.join(TERMINATE_TIMEOUT);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		// The reading thread holds the reader's lock while it is reading, so
+		// the reader is only closed once the thread has let go of it
+		if (!this.myReadThread.isAlive()) {
+			try {
+				final Closeable input = (this.mParser != null) ? this.mParser
+						: this.mReader;
+				input.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Tells whether this LogcatLogReader has let go of everything it started,
+	 * which is to say its reading thread has finished and its Logcat process
+	 * has exited
+	 * 
+	 * @return true if nothing is left running
+	 */
+	public boolean isShutDown() {
+		if (this.myReadThread != null && this.myReadThread.isAlive())
+			return false;
 		try {
-			this.mReader.close();
-		} catch (IOException e) {
-			e.printStackTrace();
+			this.mProcess.exitValue();
+			return true;
+		} catch (IllegalThreadStateException e) {
+			// The process has not exited yet
+			return false;
 		}
 	}
 
@@ -188,7 +409,8 @@ public class LogcatLogReader extends LogReader {
 
 	/**
 	 * Pauses reading from LogCat, but has no effect on whether cache messages
-	 * are sent.
+	 * are sent. A line that is being read when this is called is still added
+	 * to the cache.
 	 */
 	public void stopReading() {
 		this.isReading.set(false);
@@ -199,60 +421,178 @@ public class LogcatLogReader extends LogReader {
 	 * are sent.
 	 */
 	public void resumeReading() {
-		this.isReading.set(true);
+		synchronized (readLock) {
+			this.isReading.set(true);
+			readLock.notifyAll();
+		}
 	}
 	
+	/**
+	 * Sends the lines waiting in the log cache without waiting for the next
+	 * update. They are sent from the scheduler's thread, since that is the
+	 * only thread that may take them out of the cache.
+	 */
 	public void forceUpdate() {
-		sendCacheAndClear();
+		try {
+			this.scheduler.execute(this.updateNowRunnable);
+		} catch (RejectedExecutionException e) {
+			// We have been terminated, so there is nobody to send to
+		}
 	}
 
 	/**
-	 * Clears the log cache
+	 * @return the number of lines dropped because the log cache was full
 	 */
-	private void clearCache() {
-		checkValidState();
-		synchronized (mLogCache) {
-			mLogCache.clear();
-		}
+	public long getDroppedLines() {
+		return this.mLogCache.getDropped();
 	}
 
 	public String getRegex() {
 		return mRegex;
 	}
 
+	public LogcatArguments getArguments() {
+		return mArguments;
+	}
+
+	/**
+	 * @return whether Logcat is being read in binary
+	 */
+	public boolean isBinary() {
+		return mParser != null;
+	}
+
+	/**
+	 * Finds the level where the output format Logcat was run with puts it,
+	 * which is not always at the beginning of the line
+	 */
+	@Override
+	public LogLevel findLevel(String line) {
+		return getCorrespondingLevel(LogcatArguments.findPriority(line,
+				mFormat));
+	}
+
+	/**
+	 * Gets the exact level of an element read in binary mode, without
+	 * formatting it
+	 */
+	@Override
+	public LogLevel findLevel(LogElement element) {
+		if (element instanceof LogcatEntry)
+			return ((LogcatEntry) element).getPriorityLevel();
+		return super.findLevel(element);
+	}
+
 	private class ReadThread extends Thread {
 
+		ReadThread() {
+			super("LogcatLogReader");
+		}
+
+		/* The entries of the last binary record read, reused for each record */
+		private final List<LogcatEntry> entries = new ArrayList<LogcatEntry>();
+
 		@Override
 		public void run() {
 
-			while (!Thread.currentThread().isInterrupted()) {
-				if (isReading.get()) {
-					try {
-						String nextLine = mReader.readLine();
-						if (isRegexUseful.get()) {
-							Matcher matcher = mPattern.matcher(nextLine);
-							if (!matcher.find())
-								continue;
-						}
-						LogLevel level = getCorrespondingLevelIfIsColored(nextLine);
-						synchronized (mLogCache) {
-							mLogCache.add(new LogElement(level, nextLine));
+			try {
+				while (!isInterrupted()) {
+					synchronized (readLock) {
+						while (!isReading.get()) {
+							readLock.wait();
 						}
-
-					} catch (IOException e) {
-						e.printStackTrace();
+					}
+					final boolean ended = (mParser != null) ? !readEntries()
+							: !readLine();
+					if (ended) {
+						// Logcat has exited
+						break;
 					}
 				}
+			} catch (InterruptedException e) {
+				// We were cancelled while paused
+			} catch (IOException e) {
+				// The stream was closed because we were cancelled
+				if (!isInterrupted())
+					e.printStackTrace();
 			}
 
 		}
 
+		/**
+		 * Reads a line of text and adds it to the log cache if it matches
+		 * 
+		 * @return false if Logcat has exited
+		 */
+		private boolean readLine() throws IOException {
+			String nextLine = mReader.readLine();
+			if (nextLine == null)
+				return false;
+			if (isRegexUseful.get()) {
+				Matcher matcher = mPattern.matcher(nextLine);
+				if (!matcher.find())
+					return true;
+			}
+			LogLevel level = getCorrespondingLevelIfIsColored(nextLine);
+			mLogCache.offer(new LogElement(level, nextLine));
+			return true;
+		}
+
+		/**
+		 * Reads a binary record and adds the lines of its message that match
+		 * to the log cache
+		 * 
+		 * @return false if Logcat has exited
+		 */
+		private boolean readEntries() throws IOException {
+			entries.clear();
+			if (mParser.readEntries(entries) < 0)
+				return false;
+			for (LogcatEntry entry : entries) {
+				if (isRegexUseful.get()) {
+					// Matching needs the text, so the entry is formatted now
+					Matcher matcher = mPattern.matcher(entry.getMessage());
+					if (!matcher.find())
+						continue;
+				}
+				if (!isColored.get())
+					entry.setLogLevel(LogLevel.None);
+				mLogCache.offer(entry);
+			}
+			return true;
+		}
+
+		/**
+		 * Stops this thread, waking it if it is waiting to be resumed. If it
+		 * is blocked reading, it stops once the stream ends.
+		 */
 		public void cancel() {
-			Thread.currentThread().interrupt();
+			interrupt();
 		}
 
 	};
 
+	/**
+	 * A batch of lines sent to the Handler. The Handler must call consumed()
+	 * once it has added them, or no more batches are sent.
+	 */
+	public class Batch {
+
+		public final List<LogElement> elements;
+
+		Batch(List<LogElement> elements) {
+			this.elements = elements;
+		}
+
+		/**
+		 * Lets the log reader send the next batch
+		 */
+		public void consumed() {
+			isBatchOutstanding.set(false);
+		}
+
+	}
+
 	private Runnable updateRunnable = new Runnable() {
 
 		private LogcatLogReader parent = LogcatLogReader.this;
@@ -260,12 +600,27 @@ public class LogcatLogReader extends LogReader {
 		@Override
 		public void run() {
 
+			if (parent.hasBeenTerminated.get())
+				return;
+
+			parent.measureInboundRate();
+			final long delay = parent.getUpdateDelay();
 			if (!parent.isPaused.get()) {
-				parent.sendCacheAndClear();
+				parent.sendCacheAndClear(parent.getBatchSize(delay));
 			}
+			parent.scheduleUpdate(delay);
 
 		}
 
 	};
 
+	private Runnable updateNowRunnable = new Runnable() {
+
+		@Override
+		public void run() {
+			sendCacheAndClear(MAX_BATCH_SIZE);
+		}
+
+	};
+
 }
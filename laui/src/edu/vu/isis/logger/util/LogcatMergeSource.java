@@ -0,0 +1,261 @@
+/*Copyright (C) 2010-2012 Institute for Software Integrated Systems (ISIS)
+This software was developed by the Institute for Software Integrated
+Systems (ISIS) at Vanderbilt University, Tennessee, USA for the
+Transformative Apps program under DARPA, Contract # HR011-10-C-0175.
+The United States Government has unlimited rights to this software.
+The US government has the right to use, modify, reproduce, release,
+perform, display, or disclose computer software or computer software
+documentation in whole or in part, in any manner and for any
+purpose whatsoever, and to have or authorize others to do so.
+ */
+package edu.vu.isis.logger.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Calendar;
+
+/**
+ * A MergeSource that reads the Logcat output stream. Logcat is run with
+ * <code>-v time</code> so that every line has a timestamp, and the lines are
+ * kept in a ring of fixed capacity, so only the most recent lines can be
+ * merged. Any other LogcatArguments, such as filter specs, are passed on to
+ * Logcat too. Positions are the sequence numbers of the lines read since this
+ * source was created, and every line is an entry of its own.
+ * <p/>
+ * Logcat timestamps have no year, so the current year is assumed. The reading
+ * thread is started by the constructor and stopped by close(), which must be
+ * called when this source is no longer needed. close() kills the Logcat
+ * process and waits a bounded time for the reading thread to finish, after
+ * which isShutDown() tells whether anything was left running.
+ *
+ * @author Nick King
+ *
+ */
+public class LogcatMergeSource implements MergeSource {
+
+	/** the number of lines kept if no capacity is given */
+	public static final int DEFAULT_CAPACITY = 5000;
+
+	private static final int BUFFER_SIZE = 1024;
+
+	/** the most ms that close() waits for the reading thread to finish */
+	private static final long CLOSE_TIMEOUT = 500;
+
+	/** the length of a timestamp such as 05-01 14:32:05.123 */
+	private static final int TIME_LENGTH = 18;
+
+	private final String mName;
+	private final Process mProcess;
+	private final BufferedReader mReader;
+	private final ReadThread mReadThread = new ReadThread();
+
+	/* The ring of lines read, guarded by this */
+	private final String[] lines;
+	private final long[] times;
+	private long firstSeq = 0;
+	private long nextSeq = 0;
+
+	/** the sequence number after the last line as of the last refresh */
+	private long end = 0;
+
+	/**
+	 * Starts reading Logcat
+	 *
+	 * @param name
+	 *            -- the name with which to tag the rows from Logcat
+	 * @param capacity
+	 *            -- the number of lines to keep
+	 * @throws IOException
+	 *             if Logcat could not be run
+	 */
+	public LogcatMergeSource(String name, int capacity) throws IOException {
+		this(name, capacity, LogcatArguments.parse(null));
+	}
+
+	/**
+	 * Starts reading Logcat
+	 *
+	 * @param name
+	 *            -- the name with which to tag the rows from Logcat
+	 * @param capacity
+	 *            -- the number of lines to keep
+	 * @param arguments
+	 *            -- the arguments to run Logcat with, whose format is replaced
+	 *            by <code>time</code>
+	 * @throws IOException
+	 *             if Logcat could not be run
+	 */
+	public LogcatMergeSource(String name, int capacity,
+			LogcatArguments arguments) throws IOException {
+		mName = name;
+		lines = new String[capacity];
+		times = new long[capacity];
+		mProcess = Runtime.getRuntime().exec(arguments.toCommand("time"));
+		mReader = new BufferedReader(new InputStreamReader(
+				mProcess.getInputStream()), BUFFER_SIZE);
+		mReadThread.start();
+	}
+
+	@Override
+	public String getName() {
+		return mName;
+	}
+
+	@Override
+	public synchronized long getBeginning() {
+		return firstSeq;
+	}
+
+	@Override
+	public synchronized long getEnd() {
+		return end;
+	}
+
+	@Override
+	public synchronized long refresh() {
+		end = nextSeq;
+		return end;
+	}
+
+	@Override
+	public synchronized boolean readEntry(long pos, long[] entry) {
+		final long seq = Math.max(pos, firstSeq);
+		if (seq >= end)
+			return false;
+		entry[0] = times[indexOf(seq)];
+		entry[1] = seq;
+		entry[2] = seq + 1;
+		return true;
+	}
+
+	@Override
+	public synchronized long entryBefore(long pos) {
+		return (pos > firstSeq) ? pos - 1 : -1;
+	}
+
+	@Override
+	public synchronized String getText(long start, long end) {
+		if (start < firstSeq)
+			return "";
+		return lines[indexOf(start)];
+	}
+
+	@Override
+	public synchronized LogLevel getLevel(long start) {
+		if (start < firstSeq)
+			return LogLevel.None;
+		final String line = lines[indexOf(start)];
+		// The level follows the timestamp, as in "05-01 14:32:05.123 E/Tag"
+		if (line.length() <= TIME_LENGTH + 1)
+			return LogReader.getCorrespondingLevel(line);
+		return LogReader.getCorrespondingLevel(line.charAt(TIME_LENGTH + 1));
+	}
+
+	@Override
+	public void close() {
+		mReadThread.interrupt();
+		mProcess.destroy();
+		try {
+			mReadThread.join(CLOSE_TIMEOUT);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		// The reading thread holds the reader's lock while it is reading, so
+		// the reader is only closed once the thread has let go of it
+		if (!mReadThread.isAlive()) {
+			try {
+				mReader.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Tells whether this source has let go of everything it started, which is
+	 * to say its reading thread has finished and its Logcat process has exited
+	 *
+	 * @return true if nothing is left running
+	 */
+	public boolean isShutDown() {
+		if (mReadThread.isAlive())
+			return false;
+		try {
+			mProcess.exitValue();
+			return true;
+		} catch (IllegalThreadStateException e) {
+			// The process has not exited yet
+			return false;
+		}
+	}
+
+	private synchronized void addLine(String line, long time) {
+		if (nextSeq - firstSeq == lines.length)
+			firstSeq++;
+		lines[indexOf(nextSeq)] = line;
+		times[indexOf(nextSeq)] = time;
+		nextSeq++;
+	}
+
+	private int indexOf(long seq) {
+		return (int) (seq % lines.length);
+	}
+
+	/**
+	 * Parses the timestamp at the beginning of a Logcat line
+	 *
+	 * @return the time in ms, or NO_TIME if the line does not begin with one
+	 */
+	static long parseTime(String line, Calendar calendar) {
+		if (line.length() < TIME_LENGTH || line.charAt(2) != '-'
+				|| line.charAt(5) != ' ' || line.charAt(14) != '.')
+			return TimestampParser.NO_TIME;
+		try {
+			calendar.set(Calendar.MONTH, parse(line, 0, 2) - 1);
+			calendar.set(Calendar.DAY_OF_MONTH, parse(line, 3, 5));
+			calendar.set(Calendar.HOUR_OF_DAY, parse(line, 6, 8));
+			calendar.set(Calendar.MINUTE, parse(line, 9, 11));
+			calendar.set(Calendar.SECOND, parse(line, 12, 14));
+			calendar.set(Calendar.MILLISECOND, parse(line, 15, 18));
+		} catch (NumberFormatException e) {
+			return TimestampParser.NO_TIME;
+		}
+		return calendar.getTimeInMillis();
+	}
+
+	private static int parse(String line, int start, int end) {
+		return Integer.parseInt(line.substring(start, end));
+	}
+
+	private class ReadThread extends Thread {
+
+		ReadThread() {
+			super("LogcatMergeSource");
+		}
+
+		@Override
+		public void run() {
+
+			// Only used on this thread, and left holding the current year
+			final Calendar calendar = Calendar.getInstance();
+
+			try {
+				String line;
+				while (!isInterrupted()
+						&& (line = mReader.readLine()) != null) {
+					// Logcat prints a line like "--------- beginning of
+					// /dev/log/main" before each buffer, which is skipped
+					final long time = parseTime(line, calendar);
+					if (time != TimestampParser.NO_TIME)
+						addLine(line, time);
+				}
+			} catch (IOException e) {
+				// The stream was closed by close()
+			}
+
+		}
+
+	}
+
+}
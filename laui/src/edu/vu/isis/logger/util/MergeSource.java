@@ -0,0 +1,106 @@
+/*Copyright (C) 2010-2012 Institute for Software Integrated Systems (ISIS)
+This software was developed by the Institute for Software Integrated
+Systems (ISIS) at Vanderbilt University, Tennessee, USA for the
+Transformative Apps program under DARPA, Contract # HR011-10-C-0175.
+The United States Government has unlimited rights to this software.
+The US government has the right to use, modify, reproduce, release,
+perform, display, or disclose computer software or computer software
+documentation in whole or in part, in any manner and for any
+purpose whatsoever, and to have or authorize others to do so.
+ */
+package edu.vu.isis.logger.util;
+
+import java.io.IOException;
+
+/**
+ * One of the logs merged by a MergedLogReader. A MergeSource is read as a
+ * sequence of entries, each of which is a line with a timestamp along with
+ * any lines after it that have none, such as a stack trace. Entries are
+ * addressed by long positions that only ever increase from one entry to the
+ * next, such as byte offsets or line numbers.
+ * <p/>
+ * Only the data that was there the last time refresh() was called is read, so
+ * that a MergedLogReader sees every source as it was at the same moment.
+ * Implementations must allow their methods to be called from several threads.
+ *
+ * @author Nick King
+ *
+ */
+public interface MergeSource {
+
+	/**
+	 * @return the name by which the rows from this source are tagged
+	 */
+	String getName();
+
+	/**
+	 * @return the position of the first entry that can still be read, which
+	 *         only changes if the beginning of the source is dropped
+	 */
+	long getBeginning();
+
+	/**
+	 * @return the position after the last entry, as of the last time refresh()
+	 *         was called
+	 */
+	long getEnd();
+
+	/**
+	 * Picks up any data added to the source
+	 *
+	 * @return the new end of the source
+	 * @throws IOException
+	 *             if the source cannot be read
+	 */
+	long refresh() throws IOException;
+
+	/**
+	 * Reads where the entry at a position ends and when it was logged
+	 *
+	 * @param pos
+	 *            -- the position of an entry. If it has been dropped from the
+	 *            beginning of the source, the first entry that can still be
+	 *            read is read instead.
+	 * @param entry
+	 *            -- receives the time of the entry at index 0, or
+	 *            TimestampParser.NO_TIME if it has none, the position of the
+	 *            entry at index 1 and the position after it at index 2
+	 * @return true if an entry was read, or false if pos is at the end
+	 */
+	boolean readEntry(long pos, long[] entry);
+
+	/**
+	 * Finds the entry that ends at a position
+	 *
+	 * @param pos
+	 *            -- the position of an entry, or the end of the source
+	 * @return the position of the entry before it, or -1 if there is none
+	 */
+	long entryBefore(long pos);
+
+	/**
+	 * Gets the text of an entry
+	 *
+	 * @param start
+	 *            -- the position of the entry
+	 * @param end
+	 *            -- the position after it
+	 * @return the lines of the entry, separated by line breaks
+	 */
+	String getText(long start, long end);
+
+	/**
+	 * Gets the level of an entry without reading the whole entry
+	 *
+	 * @param start
+	 *            -- the position of the entry
+	 * @return the level of the first line of the entry
+	 */
+	LogLevel getLevel(long start);
+
+	/**
+	 * Releases the source. It may not be used after this method is called.
+	 */
+	void close();
+
+}
@@ -0,0 +1,78 @@
+/*Copyright (C) 2010-2012 Institute for Software Integrated Systems (ISIS)
+This software was developed by the Institute for Software Integrated
+Systems (ISIS) at Vanderbilt University, Tennessee, USA for the
+Transformative Apps program under DARPA, Contract # HR011-10-C-0175.
+The United States Government has unlimited rights to this software.
+The US government has the right to use, modify, reproduce, release,
+perform, display, or disclose computer software or computer software
+documentation in whole or in part, in any manner and for any
+purpose whatsoever, and to have or authorize others to do so.
+ */
+package edu.vu.isis.logger.util;
+
+/**
+ * A LogElement read by a MergedLogReader. Its message is the text of one
+ * entry of a MergeSource, which may span several lines, tagged with the name
+ * of the source it came from.
+ *
+ * @author Nick King
+ *
+ */
+public class MergedLogElement extends LogElement {
+
+	private final MergeSource mSource;
+	private final long start;
+	private final String mText;
+
+	/**
+	 * @param level
+	 *            -- the level of the entry
+	 * @param source
+	 *            -- the source of the entry
+	 * @param start
+	 *            -- the position of the entry in its source
+	 * @param text
+	 *            -- the text of the entry
+	 */
+	public MergedLogElement(LogLevel level, MergeSource source, long start,
+			String text) {
+		super(level);
+		mSource = source;
+		this.start = start;
+		mText = text;
+	}
+
+	/**
+	 * @return the name of the source of this element
+	 */
+	public String getSource() {
+		return mSource.getName();
+	}
+
+	/**
+	 * @return the source from which this element was read
+	 */
+	public MergeSource getMergeSource() {
+		return mSource;
+	}
+
+	/**
+	 * @return the position of the entry in its source
+	 */
+	public long getStart() {
+		return start;
+	}
+
+	/**
+	 * @return the text of the entry without the name of its source
+	 */
+	public String getText() {
+		return mText;
+	}
+
+	@Override
+	public String getMessage() {
+		return "[" + mSource.getName() + "] " + mText;
+	}
+
+}
@@ -0,0 +1,473 @@
+/*Copyright (C) 2010-2012 Institute for Software Integrated Systems (ISIS)
+This software was developed by the Institute for Software Integrated
+Systems (ISIS) at Vanderbilt University, Tennessee, USA for the
+Transformative Apps program under DARPA, Contract # HR011-10-C-0175.
+The United States Government has unlimited rights to this software.
+The US government has the right to use, modify, reproduce, release,
+perform, display, or disclose computer software or computer software
+documentation in whole or in part, in any manner and for any
+purpose whatsoever, and to have or authorize others to do so.
+ */
+package edu.vu.isis.logger.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Message;
+
+/**
+ * A log reader that merges several logs into one, ordered by the time of each
+ * entry, such as the files of several appenders along with Logcat. Each row
+ * is tagged with the name of the log it came from.
+ * <p/>
+ * Like a FileLogReader, this log reader scrolls in both directions between a
+ * top and a bottom marker that are at most a spread limit of rows apart, and
+ * only reads the entries it steps over, so the logs are never loaded into
+ * memory. Each log has a cursor holding the part of it between the markers,
+ * and a merge of the cursors picks the next row: a heap ordered by the time
+ * of the entry below each cursor picks the earliest one when scrolling down,
+ * and a heap ordered by the time of the entry above each cursor picks the
+ * latest one when scrolling up. Entries logged at the same time are ordered
+ * by the order of their logs. An entry without a time is kept next to the
+ * entry before it in its own log.
+ * <p/>
+ * The order of the entries within each log is always kept, so if a log is not
+ * in order by time, the rows may be interleaved differently depending on the
+ * direction they were scrolled into view from.
+ * <p/>
+ * Once started, the logs are checked for new entries periodically, and a
+ * Message with the what field set to NEW_DATA_MSG is sent to the Handler when
+ * there are some. A client class receiving one should call sourcesRefreshed()
+ * before scrolling further, and scroll down to read the new rows if it is
+ * showing the bottom of the merged log. New entries are merged below the
+ * bottom marker, so an entry that arrives late is shown after rows with a
+ * later time rather than above them.
+ * <p/>
+ * The scrolling methods must all be called from the same thread.
+ *
+ * @author Nick King
+ *
+ */
+public class MergedLogReader extends LogReader {
+
+	/*
+	 * Returned by scrollUp() and scrollDown() when there are no more rows, and
+	 * only ever compared by identity
+	 */
+	public static final LogElement BEG_OF_FILE = new LogElement(LogLevel.None,
+			"");
+	public static final LogElement END_OF_FILE = new LogElement(LogLevel.None,
+			"");
+
+	/**
+	 * The constant for the what field of a Message telling that new entries
+	 * have been found
+	 */
+	public static final int NEW_DATA_MSG = 0;
+
+	/** how often in ms to check the logs for new entries */
+	private static final long POLL_DELAY = 500;
+
+	private final List<Cursor> mCursors;
+	private final int spreadLimit;
+
+	/* The cursors with an entry below them and with an entry above them */
+	private final PriorityQueue<Cursor> below;
+	private final PriorityQueue<Cursor> above;
+
+	/** the rows between the markers, from top to bottom */
+	private final LinkedList<Row> mRows = new LinkedList<Row>();
+
+	/* Receives the entries read from the sources */
+	private final long[] mEntry = new long[3];
+
+	private final ScheduledExecutorService scheduler = Executors
+			.newSingleThreadScheduledExecutor();
+
+	private final Runnable pollRunnable = new Runnable() {
+		@Override
+		public void run() {
+			if (isPaused.get() || hasBeenTerminated.get())
+				return;
+			try {
+				if (refreshSources())
+					sendNewDataMsg();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	};
+
+	/**
+	 * @param context
+	 *            -- the Context of the Activity using this MergedLogReader
+	 * @param handler
+	 *            -- the Handler to which messages should be posted
+	 * @param sources
+	 *            -- the logs to merge, in the order in which entries logged at
+	 *            the same time are shown
+	 * @param spreadLimit
+	 *            -- the farthest apart the top and bottom markers can be, in
+	 *            rows, before they are moved simultaneously when a new row is
+	 *            read
+	 */
+	public MergedLogReader(Context context, Handler handler,
+			List<MergeSource> sources, int spreadLimit) {
+
+		mContext = context;
+		mHandler = handler;
+		this.spreadLimit = spreadLimit;
+
+		mCursors = new ArrayList<Cursor>(sources.size());
+		for (MergeSource source : sources) {
+			mCursors.add(new Cursor(source, mCursors.size()));
+		}
+
+		final int capacity = Math.max(1, sources.size());
+		below = new PriorityQueue<Cursor>(capacity, EARLIEST_BELOW);
+		above = new PriorityQueue<Cursor>(capacity, LATEST_ABOVE);
+
+		jumpToBeginningOfFile();
+
+	}
+
+	/**
+	 * Starts checking the logs for new entries. It is extremely important
+	 * that after this method is called, the terminate method is called when
+	 * this object is no longer needed.
+	 */
+	@Override
+	public void start() {
+		super.start();
+		resume();
+		scheduler.scheduleWithFixedDelay(pollRunnable, POLL_DELAY, POLL_DELAY,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops checking for new entries and closes every log
+	 */
+	/**
+	 * Gets the level of an entry from its source, since its message begins
+	 * with the name of the source rather than with the entry itself
+	 */
+	@Override
+	public LogLevel findLevel(LogElement element) {
+		if (element instanceof MergedLogElement) {
+			final MergedLogElement entry = (MergedLogElement) element;
+			return entry.getMergeSource().getLevel(entry.getStart());
+		}
+		return super.findLevel(element);
+	}
+
+	@Override
+	public void terminate() {
+		super.terminate();
+		scheduler.shutdownNow();
+		for (Cursor cursor : mCursors) {
+			cursor.source.close();
+		}
+	}
+
+	/**
+	 * Updates the merge to take in the entries found since the last time this
+	 * method was called. It should be called upon receiving NEW_DATA_MSG.
+	 */
+	public void sourcesRefreshed() {
+		for (Cursor cursor : mCursors) {
+			// A file may have been truncated
+			final long end = cursor.source.getEnd();
+			cursor.top = Math.min(cursor.top, end);
+			cursor.bot = Math.min(cursor.bot, end);
+			update(cursor);
+		}
+	}
+
+	/**
+	 * Scrolls down one row, moving the top marker down as well if the spread
+	 * limit has been reached
+	 *
+	 * @return the row below the bottom marker, or END_OF_FILE if there is none
+	 */
+	public LogElement scrollDown() {
+
+		final Cursor cursor = below.peek();
+		if (cursor == null)
+			return END_OF_FILE;
+
+		final Row row = new Row(cursor, cursor.nextStart, cursor.nextEnd,
+				cursor.nextKey);
+		cursor.bot = row.end;
+		cursor.lastKey = row.key;
+		mRows.addLast(row);
+		update(cursor);
+
+		if (mRows.size() > spreadLimit) {
+			final Row dropped = mRows.removeFirst();
+			dropped.cursor.top = dropped.end;
+			dropped.cursor.firstKey = dropped.key;
+			update(dropped.cursor);
+		}
+
+		return makeElement(row);
+
+	}
+
+	/**
+	 * Scrolls up one row, moving the bottom marker up as well if the spread
+	 * limit has been reached
+	 *
+	 * @return the row above the top marker, or BEG_OF_FILE if there is none
+	 */
+	public LogElement scrollUp() {
+
+		final Cursor cursor = above.peek();
+		if (cursor == null)
+			return BEG_OF_FILE;
+
+		final Row row = new Row(cursor, cursor.prevStart, cursor.top,
+				cursor.prevKey);
+		cursor.top = row.start;
+		cursor.firstKey = row.key;
+		mRows.addFirst(row);
+		update(cursor);
+
+		if (mRows.size() > spreadLimit) {
+			final Row dropped = mRows.removeLast();
+			dropped.cursor.bot = dropped.start;
+			dropped.cursor.lastKey = dropped.key;
+			update(dropped.cursor);
+		}
+
+		return makeElement(row);
+
+	}
+
+	public boolean atEndOfFile() {
+		return below.isEmpty();
+	}
+
+	public boolean atBegOfFile() {
+		return above.isEmpty();
+	}
+
+	public int getSpreadLimit() {
+		return spreadLimit;
+	}
+
+	/**
+	 * Scroll down through the logs as far as possible until the spread limit
+	 * is reached
+	 *
+	 * @return the rows read, from top to bottom
+	 */
+	public List<LogElement> fillDown() {
+		final List<LogElement> logList = new ArrayList<LogElement>();
+		while (mRows.size() < spreadLimit && !atEndOfFile()) {
+			logList.add(scrollDown());
+		}
+		return logList;
+	}
+
+	/**
+	 * Scroll up through the logs as far as possible until the spread limit is
+	 * reached
+	 *
+	 * @return the rows read, from top to bottom
+	 */
+	public List<LogElement> fillUp() {
+		final List<LogElement> logList = new ArrayList<LogElement>();
+		while (mRows.size() < spreadLimit && !atBegOfFile()) {
+			logList.add(scrollUp());
+		}
+		Collections.reverse(logList);
+		return logList;
+	}
+
+	/**
+	 * Jumps to the beginning of the logs. Both markers are moved to the same
+	 * position, so it is probably desirable to call fillDown() after calling
+	 * this method.
+	 */
+	public void jumpToBeginningOfFile() {
+		mRows.clear();
+		for (Cursor cursor : mCursors) {
+			cursor.top = cursor.bot = cursor.source.getBeginning();
+			cursor.firstKey = cursor.lastKey = Long.MIN_VALUE;
+			update(cursor);
+		}
+	}
+
+	/**
+	 * Jumps to the end of the logs. Both markers are moved to the same
+	 * position, so it is probably desirable to call fillUp() after calling
+	 * this method.
+	 */
+	public void jumpToEndOfFile() {
+		mRows.clear();
+		for (Cursor cursor : mCursors) {
+			cursor.top = cursor.bot = cursor.source.getEnd();
+			cursor.firstKey = cursor.lastKey = Long.MAX_VALUE;
+			update(cursor);
+		}
+	}
+
+	/**
+	 * @return the names of the logs being merged, in order
+	 */
+	public List<String> getSourceNames() {
+		final List<String> names = new ArrayList<String>(mCursors.size());
+		for (Cursor cursor : mCursors) {
+			names.add(cursor.source.getName());
+		}
+		return names;
+	}
+
+	/**
+	 * Picks up the entries added to every log
+	 *
+	 * @return whether any log has new entries
+	 */
+	private boolean refreshSources() throws IOException {
+		boolean changed = false;
+		for (Cursor cursor : mCursors) {
+			final long end = cursor.source.getEnd();
+			if (cursor.source.refresh() != end)
+				changed = true;
+		}
+		return changed;
+	}
+
+	private void sendNewDataMsg() {
+		final Message msg = Message.obtain();
+		msg.what = NEW_DATA_MSG;
+		msg.setTarget(mHandler);
+		msg.sendToTarget();
+	}
+
+	/**
+	 * Reads the entries on either side of a cursor and puts it back into the
+	 * heaps in its new place
+	 */
+	private void update(Cursor cursor) {
+
+		below.remove(cursor);
+		above.remove(cursor);
+		final MergeSource source = cursor.source;
+
+		if (source.readEntry(cursor.bot, mEntry)) {
+			cursor.nextStart = mEntry[1];
+			cursor.nextEnd = mEntry[2];
+			cursor.nextKey = keyOf(mEntry[0], cursor.lastKey);
+			below.add(cursor);
+		}
+
+		final long prevStart = source.entryBefore(cursor.top);
+		if (prevStart >= 0 && source.readEntry(prevStart, mEntry)) {
+			cursor.prevStart = mEntry[1];
+			cursor.prevKey = keyOf(mEntry[0], cursor.firstKey);
+			above.add(cursor);
+		}
+
+	}
+
+	/**
+	 * @return the time of an entry, or the given key of the entry beside it if
+	 *         it has none
+	 */
+	private static long keyOf(long time, long neighborKey) {
+		return (time == TimestampParser.NO_TIME) ? neighborKey : time;
+	}
+
+	private LogElement makeElement(Row row) {
+		final MergeSource source = row.cursor.source;
+		final LogLevel level = isColored.get() ? source.getLevel(row.start)
+				: LogLevel.None;
+		return new MergedLogElement(level, source, row.start, source.getText(
+				row.start, row.end));
+	}
+
+	private static int compare(long a, long b) {
+		return (a < b) ? -1 : ((a == b) ? 0 : 1);
+	}
+
+	private static final Comparator<Cursor> EARLIEST_BELOW = new Comparator<Cursor>() {
+		@Override
+		public int compare(Cursor cursor1, Cursor cursor2) {
+			final int result = MergedLogReader.compare(cursor1.nextKey,
+					cursor2.nextKey);
+			return (result != 0) ? result : cursor1.index - cursor2.index;
+		}
+	};
+
+	private static final Comparator<Cursor> LATEST_ABOVE = new Comparator<Cursor>() {
+		@Override
+		public int compare(Cursor cursor1, Cursor cursor2) {
+			final int result = MergedLogReader.compare(cursor2.prevKey,
+					cursor1.prevKey);
+			return (result != 0) ? result : cursor2.index - cursor1.index;
+		}
+	};
+
+	/**
+	 * The part of one log between the markers, from the entry at top to the
+	 * entry before bot, along with the entries on either side of it
+	 */
+	private static class Cursor {
+
+		final MergeSource source;
+		final int index;
+
+		long top;
+		long bot;
+
+		/* The keys of the entries at top and before bot, for untimed entries */
+		long firstKey;
+		long lastKey;
+
+		/* The entry at bot, if the cursor is in below */
+		long nextStart;
+		long nextEnd;
+		long nextKey;
+
+		/* The entry before top, if the cursor is in above */
+		long prevStart;
+		long prevKey;
+
+		Cursor(MergeSource source, int index) {
+			this.source = source;
+			this.index = index;
+		}
+
+	}
+
+	/**
+	 * An entry between the markers and the key it was merged by
+	 */
+	private static class Row {
+
+		final Cursor cursor;
+		final long start;
+		final long end;
+		final long key;
+
+		Row(Cursor cursor, long start, long end, long key) {
+			this.cursor = cursor;
+			this.start = start;
+			this.end = end;
+			this.key = key;
+		}
+
+	}
+
+}
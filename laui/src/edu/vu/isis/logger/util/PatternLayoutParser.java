@@ -0,0 +1,513 @@
+/*Copyright (C) 2010-2012 Institute for Software Integrated Systems (ISIS)
+This software was developed by the Institute for Software Integrated
+Systems (ISIS) at Vanderbilt University, Tennessee, USA for the
+Transformative Apps program under DARPA, Contract # HR011-10-C-0175.
+The United States Government has unlimited rights to this software.
+The US government has the right to use, modify, reproduce, release,
+perform, display, or disclose computer software or computer software
+documentation in whole or in part, in any manner and for any
+purpose whatsoever, and to have or authorize others to do so.
+ */
+package edu.vu.isis.logger.util;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Finds the fields of log lines written by a logback PatternLayout, given the
+ * pattern of the appender's encoder, such as
+ * <code>%d %-5level [%thread] %logger{35} - %msg%n</code>.
+ * <p/>
+ * The pattern is compiled once into a list of literals and conversions. A
+ * line is then matched from left to right, and each conversion ends where
+ * its width says it must or where the next literal is first found after it.
+ * Nothing is ever tried twice, so matching a line takes one pass over at
+ * most the part of it before the field that is wanted, and it stops as soon
+ * as that field has been found. The padding added by a format modifier such
+ * as %-5level is trimmed from the field.
+ * <p/>
+ * Only the conversions before the first %n are matched, since anything after
+ * it, such as an exception, is written on the lines that follow. Conversions
+ * that are not time, level, thread, logger or message are stepped over in the
+ * same way without being kept. If two conversions are written with nothing
+ * between them, the first is taken to end at the first space after it unless
+ * it has a fixed width.
+ * <p/>
+ * Lines in a FileBuffer are matched one byte to a character without being
+ * decoded, so literals outside of ASCII will not match them. A
+ * PatternLayoutParser is immutable and may be shared by several threads.
+ *
+ * @author Nick King
+ *
+ */
+public class PatternLayoutParser {
+
+	/** the fields of a line that can be found */
+	public enum Field {
+		TIME, LEVEL, THREAD, LOGGER, MESSAGE
+	}
+
+	/** how many bytes at the beginning of a line are matched in a buffer */
+	public static final int PREFIX_BYTES = 256;
+
+	/* The pattern logback uses for %d when it is given none */
+	private static final String ISO8601 = "ISO8601";
+
+	private final String mPattern;
+	private final Element[] mElements;
+	private final String mDatePattern;
+
+	/**
+	 * @param pattern
+	 *            -- the pattern of a logback PatternLayout
+	 * @throws IllegalArgumentException
+	 *             if the pattern or its date pattern is not valid
+	 */
+	public PatternLayoutParser(String pattern) {
+
+		mPattern = pattern;
+
+		final List<Element> elements = new ArrayList<Element>();
+		final StringBuilder literal = new StringBuilder();
+		String datePattern = null;
+		final int length = pattern.length();
+		int i = 0;
+
+		while (i < length) {
+
+			final char c = pattern.charAt(i);
+
+			if (c == '\\' && i + 1 < length) {
+				literal.append(pattern.charAt(i + 1));
+				i += 2;
+				continue;
+			} else if (c != '%') {
+				literal.append(c);
+				i++;
+				continue;
+			}
+
+			if (literal.length() > 0) {
+				elements.add(new Element(literal.toString()));
+				literal.setLength(0);
+			}
+
+			// The format modifier, such as -5 or .-1
+			i++;
+			int minWidth = 0;
+			int maxWidth = 0;
+			if (i < length && pattern.charAt(i) == '-')
+				i++;
+			while (i < length && Character.isDigit(pattern.charAt(i))) {
+				minWidth = minWidth * 10 + (pattern.charAt(i++) - '0');
+			}
+			if (i < length && pattern.charAt(i) == '.') {
+				i++;
+				if (i < length && pattern.charAt(i) == '-')
+					i++;
+				while (i < length && Character.isDigit(pattern.charAt(i))) {
+					maxWidth = maxWidth * 10 + (pattern.charAt(i++) - '0');
+				}
+			}
+
+			// The conversion word, or a composite such as %(...) or %red(...)
+			final int wordStart = i;
+			while (i < length && Character.isLetter(pattern.charAt(i))) {
+				i++;
+			}
+			final String word = pattern.substring(wordStart, i);
+			if (i < length && pattern.charAt(i) == '(') {
+				i = skipGroup(pattern, i, '(', ')');
+			}
+
+			// The options, such as {35} or {HH:mm:ss.SSS}
+			String option = null;
+			while (i < length && pattern.charAt(i) == '{') {
+				final int end = skipGroup(pattern, i, '{', '}');
+				if (option == null)
+					option = pattern.substring(i + 1, end - 1);
+				i = end;
+			}
+
+			if (word.equals("n"))
+				break;
+			if (word.length() == 0 && wordStart == i) {
+				throw new IllegalArgumentException(
+						"A conversion word is missing after % in " + pattern);
+			}
+
+			final Field field = toField(word);
+			if (field == Field.TIME) {
+				if (datePattern == null)
+					datePattern = toDatePattern(option);
+				final int[] widths = measureDates(toDatePattern(option));
+				minWidth = Math.max(minWidth, widths[0]);
+				if (maxWidth == 0 && widths[0] == widths[1])
+					maxWidth = widths[1];
+			} else if (field == Field.LEVEL) {
+				// A level is never empty, so %.-1level is always one letter
+				minWidth = Math.max(minWidth, 1);
+			}
+			if (maxWidth > 0 && minWidth > maxWidth)
+				minWidth = maxWidth;
+
+			elements.add(new Element(field, minWidth, maxWidth));
+
+		}
+
+		if (literal.length() > 0)
+			elements.add(new Element(literal.toString()));
+
+		mElements = elements.toArray(new Element[elements.size()]);
+		mDatePattern = datePattern;
+
+	}
+
+	public String getPattern() {
+		return mPattern;
+	}
+
+	/**
+	 * @return the SimpleDateFormat pattern of the first %d conversion, or null
+	 *         if the pattern has no timestamp
+	 */
+	public String getDatePattern() {
+		return mDatePattern;
+	}
+
+	/**
+	 * @return true if lines written with the pattern have the given field
+	 */
+	public boolean hasField(Field field) {
+		for (Element element : mElements) {
+			if (element.field == field)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Finds where a field is in a line
+	 *
+	 * @param line
+	 *            -- a line without its line break
+	 * @param field
+	 *            -- the field to find
+	 * @param span
+	 *            -- receives the index of the first character of the field at
+	 *            index 0 and the index after its last character at index 1
+	 * @return true if the field was found, or false if the line does not fit
+	 *         the pattern up to the field
+	 */
+	public boolean findField(CharSequence line, Field field, int[] span) {
+
+		final int length = line.length();
+		int pos = 0;
+
+		for (int i = 0; i < mElements.length; i++) {
+
+			final Element element = mElements[i];
+
+			if (element.literal != null) {
+				if (!startsWith(line, element.literal, pos))
+					return false;
+				pos += element.literal.length();
+				continue;
+			}
+
+			final int end = findEnd(line, i, pos);
+			if (end < 0)
+				return false;
+
+			if (element.field == field) {
+				// Trim the padding added by the format modifier
+				int start = pos;
+				int last = end;
+				while (start < last && line.charAt(start) == ' ') {
+					start++;
+				}
+				while (last > start && line.charAt(last - 1) == ' ') {
+					last--;
+				}
+				span[0] = start;
+				span[1] = last;
+				return true;
+			}
+
+			pos = end;
+			if (pos > length)
+				return false;
+
+		}
+
+		return false;
+
+	}
+
+	/**
+	 * Gets a field of a line
+	 *
+	 * @param line
+	 *            -- a line without its line break
+	 * @param field
+	 *            -- the field to get
+	 * @return the field, or null if the line does not fit the pattern up to
+	 *         the field
+	 */
+	public String getField(CharSequence line, Field field) {
+		final int[] span = new int[2];
+		if (!findField(line, field, span))
+			return null;
+		return line.subSequence(span[0], span[1]).toString();
+	}
+
+	/**
+	 * Gets the level of a line from its level field, in the same way that
+	 * LogReader.getCorrespondingLevel() does from the first character of a
+	 * line
+	 *
+	 * @param line
+	 *            -- a line without its line break
+	 * @return the level, or LogLevel.None if the line has no level field
+	 */
+	public LogLevel parseLevel(CharSequence line) {
+		final int[] span = new int[2];
+		if (!findField(line, Field.LEVEL, span) || span[0] == span[1])
+			return LogLevel.None;
+		return LogReader.getCorrespondingLevel(line.charAt(span[0]));
+	}
+
+	/**
+	 * Gets the level of a line in a buffer without decoding it. Only the first
+	 * PREFIX_BYTES bytes of the line are looked at.
+	 *
+	 * @param buffer
+	 *            -- the buffer holding the line
+	 * @param lineStart
+	 *            -- the position of the first character of the line
+	 * @param limit
+	 *            -- the position past which the line cannot extend
+	 * @return the level, or LogLevel.None if the line has no level field
+	 */
+	public LogLevel parseLevel(FileBuffer buffer, long lineStart, long limit) {
+		final long end = Math.min(limit, lineStart + PREFIX_BYTES);
+		final long lineBreak = buffer.indexOfBreak(lineStart, end);
+		return parseLevel(new BufferLine(buffer, lineStart,
+				(int) (((lineBreak < 0) ? end : lineBreak) - lineStart)));
+	}
+
+	/**
+	 * Finds where the conversion at the given index ends, without looking
+	 * past the first place it could end
+	 *
+	 * @return the index after the last character of the conversion, or -1
+	 *         if the line ends too soon
+	 */
+	private int findEnd(CharSequence line, int index, int pos) {
+
+		final Element element = mElements[index];
+		final int length = line.length();
+
+		final int min = pos + element.minWidth;
+		if (min > length)
+			return -1;
+		if (element.maxWidth > 0 && element.maxWidth == element.minWidth)
+			return min;
+		final int max = (element.maxWidth > 0) ? Math.min(length, pos
+				+ element.maxWidth) : length;
+
+		if (index == mElements.length - 1)
+			return max;
+
+		final String next = mElements[index + 1].literal;
+		if (next != null)
+			return indexOf(line, next, min, max);
+
+		// Two conversions in a row, so only a space can tell them apart
+		for (int i = min; i < max; i++) {
+			if (line.charAt(i) == ' ')
+				return i;
+		}
+		return max;
+
+	}
+
+	private static Field toField(String word) {
+		if (word.equals("d") || word.equals("date"))
+			return Field.TIME;
+		if (word.equals("p") || word.equals("le") || word.equals("level"))
+			return Field.LEVEL;
+		if (word.equals("t") || word.equals("thread"))
+			return Field.THREAD;
+		if (word.equals("c") || word.equals("lo") || word.equals("logger"))
+			return Field.LOGGER;
+		if (word.equals("m") || word.equals("msg") || word.equals("message"))
+			return Field.MESSAGE;
+		return null;
+	}
+
+	/**
+	 * Gets the SimpleDateFormat pattern from the option of a %d conversion,
+	 * which may be followed by a time zone
+	 */
+	private static String toDatePattern(String option) {
+		if (option == null)
+			return TimestampParser.DEFAULT_PATTERN;
+		final int comma = option.lastIndexOf(',');
+		String datePattern = option;
+		// A comma may also be part of the pattern, as in HH:mm:ss,SSS
+		if (comma >= 0 && option.indexOf('\'', comma) < 0
+				&& !option.substring(comma + 1).trim().startsWith("S"))
+			datePattern = option.substring(0, comma);
+		datePattern = datePattern.trim();
+		if (datePattern.length() > 1 && datePattern.startsWith("\"")
+				&& datePattern.endsWith("\""))
+			datePattern = datePattern.substring(1, datePattern.length() - 1);
+		if (datePattern.length() == 0 || datePattern.equals(ISO8601))
+			return TimestampParser.DEFAULT_PATTERN;
+		return datePattern;
+	}
+
+	/**
+	 * Formats a few dates with a pattern to find how long the timestamps it
+	 * writes can be
+	 *
+	 * @return the least and the greatest length
+	 */
+	private static int[] measureDates(String datePattern) {
+		final SimpleDateFormat format = new SimpleDateFormat(datePattern);
+		final long[] samples = { 0L, 1336000000000L, 1349999999999L,
+				1356998399999L };
+		int min = Integer.MAX_VALUE;
+		int max = 0;
+		for (long sample : samples) {
+			final int width = format.format(new Date(sample)).length();
+			min = Math.min(min, width);
+			max = Math.max(max, width);
+		}
+		return new int[] { min, max };
+	}
+
+	/**
+	 * @return the index after the group that begins with the open character
+	 *         at pos
+	 */
+	private static int skipGroup(String pattern, int pos, char open, char close) {
+		int depth = 0;
+		for (int i = pos; i < pattern.length(); i++) {
+			final char c = pattern.charAt(i);
+			if (c == '\\') {
+				i++;
+			} else if (c == open) {
+				depth++;
+			} else if (c == close && --depth == 0) {
+				return i + 1;
+			}
+		}
+		throw new IllegalArgumentException("Unbalanced " + open + " in "
+				+ pattern);
+	}
+
+	private static boolean startsWith(CharSequence line, String prefix, int pos) {
+		if (pos + prefix.length() > line.length())
+			return false;
+		for (int i = 0; i < prefix.length(); i++) {
+			if (line.charAt(pos + i) != prefix.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the first index from min up to max at which the text is found,
+	 *         or -1 if it is not
+	 */
+	private static int indexOf(CharSequence line, String text, int min, int max) {
+		final int last = Math.min(max, line.length() - text.length());
+		for (int i = min; i <= last; i++) {
+			if (startsWith(line, text, i))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * A literal, or a conversion with the widths of its format modifier
+	 */
+	private static class Element {
+
+		final String literal;
+		final Field field;
+		final int minWidth;
+		final int maxWidth;
+
+		Element(String literal) {
+			this.literal = literal;
+			this.field = null;
+			this.minWidth = this.maxWidth = literal.length();
+		}
+
+		/**
+		 * @param field
+		 *            -- the field written by the conversion, or null if it is
+		 *            not one that is kept
+		 * @param minWidth
+		 *            -- the least number of characters it writes
+		 * @param maxWidth
+		 *            -- the most characters it writes, or 0 if there is no
+		 *            limit
+		 */
+		Element(Field field, int minWidth, int maxWidth) {
+			this.literal = null;
+			this.field = field;
+			this.minWidth = minWidth;
+			this.maxWidth = maxWidth;
+		}
+
+	}
+
+	/**
+	 * The bytes of the beginning of a line in a buffer, each taken as one
+	 * character
+	 */
+	private static class BufferLine implements CharSequence {
+
+		private final FileBuffer mBuffer;
+		private final long start;
+		private final int length;
+
+		BufferLine(FileBuffer buffer, long start, int length) {
+			mBuffer = buffer;
+			this.start = start;
+			this.length = length;
+		}
+
+		@Override
+		public int length() {
+			return length;
+		}
+
+		@Override
+		public char charAt(int index) {
+			return (char) (mBuffer.get(start + index) & 0xFF);
+		}
+
+		@Override
+		public CharSequence subSequence(int from, int to) {
+			final StringBuilder sb = new StringBuilder(to - from);
+			for (int i = from; i < to; i++) {
+				sb.append(charAt(i));
+			}
+			return sb;
+		}
+
+		@Override
+		public String toString() {
+			return subSequence(0, length).toString();
+		}
+
+	}
+
+}
@@ -0,0 +1,317 @@
+/*Copyright (C) 2010-2012 Institute for Software Integrated Systems (ISIS)
+This software was developed by the Institute for Software Integrated
+Systems (ISIS) at Vanderbilt University, Tennessee, USA for the
+Transformative Apps program under DARPA, Contract # HR011-10-C-0175.
+The United States Government has unlimited rights to this software.
+The US government has the right to use, modify, reproduce, release,
+perform, display, or disclose computer software or computer software
+documentation in whole or in part, in any manner and for any
+purpose whatsoever, and to have or authorize others to do so.
+ */
+package edu.vu.isis.logger.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * An index of the log records in a file that span more than one line, such as
+ * a logged exception followed by its stack trace. It is built along with a
+ * LineIndex in the same pass over the file.
+ * <p/>
+ * A record begins with a header line, and every continuation line after it
+ * belongs to the same record. A line is a continuation line if it looks like
+ * part of a stack trace, which is to say it begins with a tab, with spaces
+ * followed by "at ", or with "Caused by: ". A line is also a continuation line
+ * if it has no level of its own but the header does, so the line naming the
+ * exception and any other lines of a multi-line message are kept with the
+ * line that logged them. Every line of a record is given the level of its
+ * header.
+ * <p/>
+ * Only records of more than one line are stored, so the index stays small
+ * even for very large files.
+ *
+ * @author Nick King
+ *
+ */
+public class RecordIndex {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private static final byte[] CAUSED_BY = { 'C', 'a', 'u', 's', 'e', 'd',
+			' ', 'b', 'y', ':' };
+	private static final byte[] AT = { 'a', 't', ' ' };
+
+	/* The first line of each record and the line after its last line */
+	private long[] starts = new long[INITIAL_CAPACITY];
+	private long[] ends = new long[INITIAL_CAPACITY];
+	private int[] lineCounts = new int[INITIAL_CAPACITY];
+	private byte[] levels = new byte[INITIAL_CAPACITY];
+	private int numRecords = 0;
+
+	/* The last header line seen, which the next continuation lines join */
+	private long headerStart = -1;
+	private LogLevel headerLevel = LogLevel.None;
+
+	/** whether the last record is still being added to */
+	private boolean isOpen = false;
+
+	/**
+	 * Adds the next line of the file to the index
+	 *
+	 * @param buffer
+	 *            -- the file being indexed
+	 * @param lineStart
+	 *            -- the position of the first character of the line
+	 * @param level
+	 *            -- the level of the line from its first character
+	 * @return the level of the record the line belongs to
+	 */
+	LogLevel addLine(FileBuffer buffer, long lineStart, LogLevel level) {
+
+		if (headerStart < 0 || !isContinuation(buffer, lineStart, level)) {
+			if (isOpen) {
+				ends[numRecords - 1] = lineStart;
+				isOpen = false;
+			}
+			headerStart = lineStart;
+			headerLevel = level;
+			return level;
+		}
+
+		if (!isOpen) {
+			addRecord(headerStart, headerLevel);
+			isOpen = true;
+		}
+		lineCounts[numRecords - 1]++;
+		return headerLevel;
+
+	}
+
+	/**
+	 * Finds the record holding a line
+	 *
+	 * @param pos
+	 *            -- the position of the first character of a line
+	 * @param limit
+	 *            -- the end of the part of the file that has been indexed
+	 * @return the index of the record, or -1 if the line is a record of its
+	 *         own
+	 */
+	public int find(long pos, long limit) {
+		final int last = lastStartingAt(pos);
+		return (last >= 0 && pos < getEnd(last, limit)) ? last : -1;
+	}
+
+	/**
+	 * Finds the record holding a line or, if there is none, the first record
+	 * after it
+	 *
+	 * @param pos
+	 *            -- the position of the first character of a line
+	 * @param limit
+	 *            -- the end of the part of the file that has been indexed
+	 * @return the index of the record, or getNumRecords() if no record holds
+	 *         or follows the line
+	 */
+	public int findFrom(long pos, long limit) {
+		final int last = lastStartingAt(pos);
+		if (last >= 0 && pos < getEnd(last, limit))
+			return last;
+		return last + 1;
+	}
+
+	public int getNumRecords() {
+		return numRecords;
+	}
+
+	/**
+	 * @return the position of the header line of a record
+	 */
+	public long getStart(int record) {
+		return starts[record];
+	}
+
+	/**
+	 * @param record
+	 *            -- the index of a record
+	 * @param limit
+	 *            -- the end of the part of the file that has been indexed,
+	 *            which is where the last record ends if it is still open
+	 * @return the position after the last line of the record
+	 */
+	public long getEnd(int record, long limit) {
+		return (record == numRecords - 1 && isOpen) ? limit : ends[record];
+	}
+
+	/**
+	 * @return the number of lines in a record, including its header
+	 */
+	public int getNumLines(int record) {
+		return lineCounts[record];
+	}
+
+	/**
+	 * @return the level of the header line of a record
+	 */
+	public LogLevel getLevel(int record) {
+		return LogLevel.values()[levels[record]];
+	}
+
+	/**
+	 * Forgets every record that has been indexed
+	 */
+	void clear() {
+		numRecords = 0;
+		headerStart = -1;
+		headerLevel = LogLevel.None;
+		isOpen = false;
+	}
+
+	RecordIndex copy() {
+		final RecordIndex copy = new RecordIndex();
+		copy.starts = copyOf(starts, numRecords);
+		copy.ends = copyOf(ends, numRecords);
+		copy.lineCounts = new int[Math.max(numRecords, 1)];
+		System.arraycopy(lineCounts, 0, copy.lineCounts, 0, numRecords);
+		copy.levels = new byte[Math.max(numRecords, 1)];
+		System.arraycopy(levels, 0, copy.levels, 0, numRecords);
+		copy.numRecords = numRecords;
+		copy.headerStart = headerStart;
+		copy.headerLevel = headerLevel;
+		copy.isOpen = isOpen;
+		return copy;
+	}
+
+	void writeTo(DataOutput out) throws IOException {
+		out.writeInt(numRecords);
+		for (int i = 0; i < numRecords; i++) {
+			out.writeLong(starts[i]);
+			out.writeLong(ends[i]);
+			out.writeInt(lineCounts[i]);
+			out.writeByte(levels[i]);
+		}
+		out.writeLong(headerStart);
+		out.writeByte(headerLevel.ordinal());
+		out.writeBoolean(isOpen);
+	}
+
+	static RecordIndex readFrom(DataInput in) throws IOException {
+
+		final int numRecords = in.readInt();
+		if (numRecords < 0)
+			throw new IOException("The saved record index is corrupt");
+
+		final RecordIndex index = new RecordIndex();
+		final int capacity = Math.max(numRecords, 1);
+		index.starts = new long[capacity];
+		index.ends = new long[capacity];
+		index.lineCounts = new int[capacity];
+		index.levels = new byte[capacity];
+		for (int i = 0; i < numRecords; i++) {
+			index.starts[i] = in.readLong();
+			index.ends[i] = in.readLong();
+			index.lineCounts[i] = in.readInt();
+			index.levels[i] = readLevel(in);
+		}
+		index.numRecords = numRecords;
+		index.headerStart = in.readLong();
+		index.headerLevel = LogLevel.values()[readLevel(in)];
+		index.isOpen = in.readBoolean();
+
+		if (index.isOpen && numRecords == 0)
+			throw new IOException("The saved record index is corrupt");
+		return index;
+
+	}
+
+	/**
+	 * Decides whether a line continues the record before it, looking at no
+	 * more than its first few bytes
+	 */
+	private boolean isContinuation(FileBuffer buffer, long lineStart,
+			LogLevel level) {
+
+		final long length = buffer.length();
+		final byte first = buffer.get(lineStart);
+
+		if (first == '\t')
+			return true;
+
+		if (first == ' ') {
+			// Spaces followed by "at " are a stack frame
+			long pos = lineStart;
+			while (pos < length && buffer.get(pos) == ' ') {
+				pos++;
+			}
+			if (startsWith(buffer, pos, AT))
+				return true;
+		} else if (first == 'C' && startsWith(buffer, lineStart, CAUSED_BY)) {
+			return true;
+		}
+
+		return level == LogLevel.None && headerLevel != LogLevel.None;
+
+	}
+
+	/**
+	 * @return the index of the last record that begins at or before pos, or
+	 *         -1 if there is none
+	 */
+	private int lastStartingAt(long pos) {
+		int low = 0;
+		int high = numRecords - 1;
+		while (low <= high) {
+			final int mid = (low + high) >>> 1;
+			if (starts[mid] <= pos) {
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return high;
+	}
+
+	private static boolean startsWith(FileBuffer buffer, long pos,
+			byte[] prefix) {
+		if (pos + prefix.length > buffer.length())
+			return false;
+		for (int i = 0; i < prefix.length; i++) {
+			if (buffer.get(pos + i) != prefix[i])
+				return false;
+		}
+		return true;
+	}
+
+	private void addRecord(long start, LogLevel level) {
+		if (numRecords == starts.length) {
+			starts = copyOf(starts, numRecords * 2);
+			ends = copyOf(ends, numRecords * 2);
+			final int[] largerCounts = new int[numRecords * 2];
+			System.arraycopy(lineCounts, 0, largerCounts, 0, numRecords);
+			lineCounts = largerCounts;
+			final byte[] largerLevels = new byte[numRecords * 2];
+			System.arraycopy(levels, 0, largerLevels, 0, numRecords);
+			levels = largerLevels;
+		}
+		starts[numRecords] = start;
+		ends[numRecords] = start;
+		lineCounts[numRecords] = 1;
+		levels[numRecords] = (byte) level.ordinal();
+		numRecords++;
+	}
+
+	private static byte readLevel(DataInput in) throws IOException {
+		final byte level = in.readByte();
+		if (level < 0 || level >= LogLevel.values().length)
+			throw new IOException("The saved record index is corrupt");
+		return level;
+	}
+
+	private static long[] copyOf(long[] array, int newLength) {
+		final long[] copy = new long[Math.max(newLength, 1)];
+		System.arraycopy(array, 0, copy, 0, Math.min(array.length, newLength));
+		return copy;
+	}
+
+}
@@ -0,0 +1,161 @@
+/*Copyright (C) 2010-2012 Institute for Software Integrated Systems (ISIS)
+This software was developed by the Institute for Software Integrated
+Systems (ISIS) at Vanderbilt University, Tennessee, USA for the
+Transformative Apps program under DARPA, Contract # HR011-10-C-0175.
+The United States Government has unlimited rights to this software.
+The US government has the right to use, modify, reproduce, release,
+perform, display, or disclose computer software or computer software
+documentation in whole or in part, in any manner and for any
+purpose whatsoever, and to have or authorize others to do so.
+ */
+package edu.vu.isis.logger.util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the files archived by a rolling file appender, using the file name
+ * pattern of its rolling policy. Both the %i index of a fixed window policy and
+ * the %d date of a time based policy are understood.
+ * <p/>
+ * Archives that the rolling policy compresses with gzip are included, but zip
+ * archives are not, since a zip archive may hold more than one file.
+ *
+ * @author Nick King
+ *
+ */
+public final class RolledFiles {
+
+	private static final String[] COMPRESSION_SUFFIXES = { ".gz", ".zip" };
+	private static final String ZIP_SUFFIX = ".zip";
+
+	private RolledFiles() {
+		throw new AssertionError("This class should never be instantiated.");
+	}
+
+	/**
+	 * Lists the archived files along with the active file, from oldest to
+	 * newest. The files are ordered by the time that they were last modified,
+	 * which is when each one was rolled over.
+	 *
+	 * @param activeFile
+	 *            -- the file currently being written by the appender
+	 * @param fileNamePattern
+	 *            -- the file name pattern of the appender's rolling policy, or
+	 *            null if it does not have one
+	 * @return the archived files followed by the active file. If the pattern is
+	 *         null or cannot be understood, only the active file is returned.
+	 */
+	public static List<File> find(File activeFile, String fileNamePattern) {
+
+		final List<File> files = new ArrayList<File>();
+
+		if (fileNamePattern != null) {
+			// Match the archives whether or not they have been compressed yet
+			final File patternFile = new File(
+					stripCompressionSuffix(fileNamePattern));
+			final File dir = patternFile.getAbsoluteFile().getParentFile();
+			final File[] candidates = (dir == null || dir.getPath()
+					.indexOf('%') >= 0) ? null : dir.listFiles();
+
+			if (candidates != null) {
+				final Pattern regex = toRegex(patternFile.getName());
+				for (File file : candidates) {
+					if (file.isFile() && !file.getName().endsWith(ZIP_SUFFIX)
+							&& !file.equals(activeFile.getAbsoluteFile())
+							&& regex.matcher(stripCompressionSuffix(file
+									.getName())).matches()) {
+						files.add(file);
+					}
+				}
+			}
+
+			Collections.sort(files, OLDEST_FIRST);
+		}
+
+		files.add(activeFile);
+		return files;
+
+	}
+
+	/**
+	 * Converts the file name part of a logback file name pattern into a
+	 * regular expression. Each conversion word matches any text.
+	 */
+	static Pattern toRegex(String namePattern) {
+
+		final StringBuilder regex = new StringBuilder();
+		final StringBuilder literal = new StringBuilder();
+		int i = 0;
+
+		while (i < namePattern.length()) {
+			final char c = namePattern.charAt(i);
+			if (c == '\\' && i + 1 < namePattern.length()) {
+				literal.append(namePattern.charAt(i + 1));
+				i += 2;
+			} else if (c == '%') {
+				appendLiteral(regex, literal);
+				i = skipConversion(namePattern, i + 1);
+				regex.append(".+?");
+			} else {
+				literal.append(c);
+				i++;
+			}
+		}
+
+		appendLiteral(regex, literal);
+		return Pattern.compile(regex.toString());
+
+	}
+
+	/**
+	 * @return the index after a conversion word such as "i" or "d{yyyy-MM-dd}"
+	 */
+	private static int skipConversion(String namePattern, int i) {
+		while (i < namePattern.length()
+				&& Character.isLetter(namePattern.charAt(i))) {
+			i++;
+		}
+		if (i < namePattern.length() && namePattern.charAt(i) == '{') {
+			final int close = namePattern.indexOf('}', i);
+			i = (close < 0) ? namePattern.length() : close + 1;
+		}
+		return i;
+	}
+
+	private static void appendLiteral(StringBuilder regex,
+			StringBuilder literal) {
+		if (literal.length() > 0) {
+			regex.append(Pattern.quote(literal.toString()));
+			literal.setLength(0);
+		}
+	}
+
+	private static String stripCompressionSuffix(String pattern) {
+		for (String suffix : COMPRESSION_SUFFIXES) {
+			if (pattern.endsWith(suffix)) {
+				return pattern.substring(0, pattern.length() - suffix.length());
+			}
+		}
+		return pattern;
+	}
+
+	private static final Comparator<File> OLDEST_FIRST = new Comparator<File>() {
+
+		@Override
+		public int compare(File file1, File file2) {
+			final long time1 = file1.lastModified();
+			final long time2 = file2.lastModified();
+			if (time1 != time2)
+				return (time1 < time2) ? -1 : 1;
+			// Fall back on the name if they were rolled at the same time
+			return file1.getName().compareTo(file2.getName());
+		}
+
+	};
+
+}
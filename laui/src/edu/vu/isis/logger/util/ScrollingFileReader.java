@@ -1,21 +1,18 @@
 /*Copyright (C) 2010-2012 Institute for Software Integrated Systems (ISIS)
 This software was developed by the Institute for Software Integrated
-Systems (ISIS) at Vanderbilt University, Tennessee, USA for the 
+Systems (ISIS) at Vanderbilt University, Tennessee, USA for the
 Transformative Apps program under DARPA, Contract # HR011-10-C-0175.
-The United States Government has unlimited rights to this software. 
-The US government has the right to use, modify, reproduce, release, 
-perform, display, or disclose computer software or computer software 
-documentation in whole or in part, in any manner and for any 
+The United States Government has unlimited rights to this software.
+The US government has the right to use, modify, reproduce, release,
+perform, display, or disclose computer software or computer software
+documentation in whole or in part, in any manner and for any
 purpose whatsoever, and to have or authorize others to do so.
  */
 package edu.vu.isis.logger.util;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel.MapMode;
 
 /**
  * A file reader capable of reading forward and backward through a file as
@@ -28,46 +25,240 @@ import java.nio.channels.FileChannel.MapMode;
  * storing all of the previously read lines in memory. This allows for a very
  * low memory footprint when reading very large files.
  * <p/>
+ * The file is read through a FileBuffer and the markers are long offsets, so
+ * files larger than 2 GB can be read, as can several files joined together.
+ * <p/>
+ * A LineSelection may be given to a ScrollingFileReader so that only the
+ * selected lines are read, such as the lines found by a LineGrep. The lines
+ * that are not selected are skipped over as though they were not in the file.
+ * <p/>
+ * A ScrollingFileReader may also collapse the records of more than one line
+ * found by its LineIndex, such as stack traces, in which case only the first
+ * line of each record is read and the rest of the record is stepped over with
+ * it. Records are only collapsed when every line is being read.
+ * <p/>
+ * A ScrollingFileReader may be notified of modifications to its file from a
+ * different thread than the one reading it, so its methods are synchronized.
+ * <p/>
  * Note that a ScrollingFileReader is not a subclass of Reader from the Java IO
  * libraries.
- * 
+ *
  * @author Nick King
- * 
+ *
  */
 public class ScrollingFileReader {
 
-	private static final int NUM_LINES_NOT_COUNTED = -1;
+	private final FileBuffer mBuffer;
+	private LineIndex mLineIndex = new LineIndex();
+	private final LineDecoder mDecoder = new LineDecoder();
 
-	private ByteBuffer mBuffer;
-	private final File mFile;
+	/* Receives the ends of the line stepped over by stepForward() and such */
+	private final long[] mLine = new long[2];
 
 	private final int spreadLimit;
-	private int topLinePos;
-	private int botLinePos;
+
+	/*
+	 * The position of the first character of the topmost line in the spread,
+	 * and the position after the line break of the bottommost line. When only
+	 * selected lines are read, either one may also be in the unselected lines
+	 * just outside of the spread.
+	 */
+	private long topLinePos;
+	private long botLinePos;
+
 	private int effectiveSpread;
-	private int numLinesInBuffer = NUM_LINES_NOT_COUNTED;
+
+	/** the only lines to read, or null to read every line */
+	private LineSelection mSelection = null;
+
+	/** whether only the first line of each record is read */
+	private boolean collapsed = false;
 
 	public ScrollingFileReader(File file, int spreadLimit)
 			throws FileNotFoundException, IOException {
-		mFile = file;
-		mBuffer = openBuffer(mFile);
+		this(new SegmentedFileBuffer(file), spreadLimit);
+	}
+
+	/**
+	 * @param buffer
+	 *            -- the bytes to read. This reader closes the buffer when it is
+	 *            closed.
+	 * @param spreadLimit
+	 *            -- the farthest apart the top and bottom line markers can be
+	 */
+	public ScrollingFileReader(FileBuffer buffer, int spreadLimit) {
+		mBuffer = buffer;
 		this.spreadLimit = spreadLimit;
 		topLinePos = botLinePos = 0;
 		effectiveSpread = 0;
 	}
 
-	public String stepForward() {
+	/**
+	 * Steps forward over the next line and decodes it
+	 *
+	 * @return the line, or null if the end of the file had already been
+	 *         reached
+	 */
+	public synchronized String stepForward() {
+		return stepOverLine(true, mLine) ? readLine(mLine) : null;
+	}
+
+	/**
+	 * Steps backward over the previous line and decodes it
+	 *
+	 * @return the line, or null if the beginning of the file had already been
+	 *         reached
+	 */
+	public synchronized String stepBackward() {
+		return stepOverLine(false, mLine) ? readLine(mLine) : null;
+	}
+
+	/**
+	 * Moves the markers over the next line in one direction without decoding
+	 * it. Both ends of the line are found with the same scan that moves the
+	 * markers, so the line can then be decoded without looking for them
+	 * again.
+	 *
+	 * @param forward
+	 *            -- true to step below the bottom marker, false to step above
+	 *            the top marker
+	 * @param line
+	 *            -- receives the position of the first character of the line
+	 *            at index 0 and the position of its line break, or the end of
+	 *            the file if it has none, at index 1
+	 * @return true if a line was stepped over, or false if the end or
+	 *         beginning of the file had already been reached
+	 */
+	public synchronized boolean stepOverLine(boolean forward, long[] line) {
+		return forward ? stepForwardOverLine(line) : stepBackwardOverLine(line);
+	}
+
+	/**
+	 * @return true if there are no more lines to read below the bottom marker
+	 */
+	public synchronized boolean isAtEnd() {
+		return selectedLineFrom(botLinePos) < 0;
+	}
+
+	/**
+	 * @return true if there are no more lines to read above the top marker
+	 */
+	public synchronized boolean isAtBeginning() {
+		if (mSelection != null)
+			return mSelection.lower(topLinePos) < 0;
+		return topLinePos == 0;
+	}
+
+	/**
+	 * Steps forward through the file as far as possible until the spread limit
+	 * is reached.
+	 *
+	 * @return -- the lines read, which stop early if the end of the file is
+	 *         reached, or null if no leap was made
+	 */
+	public synchronized String[] leapForward() {
+		return leap(true);
+	}
+
+	/**
+	 * Steps backward through the file as far as possible until the spread limit
+	 * is reached.
+	 *
+	 * @return -- the lines read from the bottom up, which stop early if the
+	 *         beginning of the file is reached, or null if no leap was made
+	 */
+	public synchronized String[] leapBackward() {
+		return leap(false);
+	}
+
+	/**
+	 * Steps over lines in one direction as far as possible until the spread
+	 * limit is reached, without decoding them
+	 *
+	 * @param forward
+	 *            -- true to step forward, false to step backward
+	 * @param starts
+	 *            -- receives the positions of the first characters of the
+	 *            lines, in the order they were stepped over
+	 * @param ends
+	 *            -- receives the positions of the ends of the lines
+	 * @return the number of lines stepped over, which is at most the length of
+	 *         the arrays
+	 */
+	public synchronized int leapOverLines(boolean forward, long[] starts,
+			long[] ends) {
+
+		final int maxLines = Math.min(spreadLimit - effectiveSpread,
+				starts.length);
+
+		int numLines = 0;
+		while (numLines < maxLines && stepOverLine(forward, mLine)) {
+			starts[numLines] = mLine[0];
+			ends[numLines] = mLine[1];
+			numLines++;
+		}
+
+		return numLines;
+
+	}
+
+	/**
+	 * Finds the lines that would be read next in one direction, without moving
+	 * the markers. The lines are found while this reader is locked, so that
+	 * the markers, the record index and the length of the file cannot change
+	 * in the middle of the search. Only line breaks are looked for here, so
+	 * this holds up reading for much less time than decoding the lines would;
+	 * the caller may decode them afterwards from a background thread. The
+	 * lines found may be out of date by then if the markers move or the file
+	 * is truncated meanwhile.
+	 * 
+	 * @param forward
+	 *            -- true to look below the bottom marker, false to look above
+	 *            the top marker
+	 * @param maxLines
+	 *            -- the most lines to find
+	 * @return the positions of the first characters of the lines, in the
+	 *         order in which they would be read
+	 */
+	public synchronized long[] peekLineStarts(boolean forward, int maxLines) {
+
+		long pos = forward ? botLinePos : topLinePos;
+		final long[] lineStarts = new long[maxLines];
+		int numLines = 0;
+		while (numLines < maxLines) {
+			final long lineStart = forward ? selectedLineFrom(pos)
+					: selectedLineBefore(pos);
+			if (lineStart < 0)
+				break;
+			lineStarts[numLines++] = lineStart;
+			pos = forward ? nextEntryStart(mSelection, lineStart) : lineStart;
+		}
 
-		ByteBuffers.setBufferPosition(mBuffer, botLinePos);
-		final String result = ByteBuffers.readForwardToNewline(mBuffer);
+		final long[] trimmed = new long[numLines];
+		System.arraycopy(lineStarts, 0, trimmed, 0, numLines);
+		return trimmed;
+
+	}
+
+	private boolean stepForwardOverLine(long[] line) {
 
 		// We don't need to adjust the positions if we were already at the
 		// end of the buffer
-		if (result == ByteBuffers.END_OF_TEXT_STR) {
-			return result;
+		final long lineStart = selectedLineFrom(botLinePos);
+		if (lineStart < 0) {
+			return false;
 		}
 
-		botLinePos = ByteBuffers.getBufferPosition(mBuffer);
+		final long length = mBuffer.length();
+		final long lineBreak = mBuffer.indexOfBreak(lineStart, length);
+		line[0] = lineStart;
+		line[1] = (lineBreak < 0) ? length : lineBreak;
+
+		if (effectiveSpread == 0)
+			topLinePos = lineStart;
+		botLinePos = (lineBreak < 0) ? length : lineBreak + 1;
+		if (isCollapsing(mSelection))
+			botLinePos = recordEnd(lineStart, botLinePos);
 
 		effectiveSpread++;
 
@@ -76,43 +267,42 @@ public class ScrollingFileReader {
 			effectiveSpread--;
 		}
 
-		return result;
+		return true;
 
 	}
 
-	public String stepBackward() {
+	private boolean stepBackwardOverLine(long[] line) {
 
-		/*
-		 * The topLinePos marks the first character in the topmost line that is
-		 * within our spread. If we readBackwardToNewline() from topLinePos, we
-		 * get only that first character back. If we try to subtract 1 and then
-		 * read backward, we get a blank line because we were starting at the
-		 * newline character. We have to subtract 2 so that we begin at the last
-		 * character of the next line we will read.
-		 */
-
-		if (topLinePos == 0)
-			return ByteBuffers.BEG_OF_TEXT_STR;
-
-		if (topLinePos == 1) {
-			ByteBuffers.setBufferPosition(mBuffer, 0);
+		long lineStart;
+		long lineEnd;
+		if (mSelection != null) {
+			lineStart = mSelection.lower(topLinePos);
+			if (lineStart < 0)
+				return false;
+			lineEnd = lineEndBefore(nextLineStart(lineStart));
 		} else {
-			ByteBuffers.setBufferPosition(mBuffer, topLinePos - 2);
+			if (topLinePos == 0)
+				return false;
+			// The line above ends just before the top marker, so only its
+			// beginning has to be looked for
+			lineEnd = lineEndBefore(topLinePos);
+			lineStart = mBuffer.lastIndexOfBreak(0, lineEnd) + 1;
+			if (collapsed) {
+				// Step over the whole record, but read only its first line
+				final long recordStart = recordStart(lineStart);
+				if (recordStart != lineStart) {
+					lineStart = recordStart;
+					lineEnd = lineEndBefore(nextLineStart(recordStart));
+				}
+			}
 		}
 
-		final String result = ByteBuffers.readBackwardToNewline(mBuffer);
+		line[0] = lineStart;
+		line[1] = lineEnd;
 
-		/*
-		 * Here we add 2 back to topLinePos if we did not reach the beginning of
-		 * the buffer. This is to preserve the assertion that topLinePos always
-		 * points to the first character in the topmost line that is within our
-		 * spread.
-		 */
-		if (ByteBuffers.getBufferPosition(mBuffer) != 0) {
-			topLinePos = ByteBuffers.getBufferPosition(mBuffer) + 2;
-		} else {
-			topLinePos = 0;
-		}
+		// topLinePos always points to the first character in the topmost line
+		// that is within our spread
+		topLinePos = lineStart;
 
 		effectiveSpread++;
 
@@ -121,80 +311,108 @@ public class ScrollingFileReader {
 			effectiveSpread--;
 		}
 
-		return result;
+		return true;
 
 	}
 
-	public String peekForward() {
-		ByteBuffers.setBufferPosition(mBuffer, botLinePos);
-		return ByteBuffers.readForwardToNewline(mBuffer);
-	}
-
-	public String peekBackward() {
+	private String[] leap(boolean forward) {
 
-		// See stepBackward for an explanation of this logic
+		final int maxLines = spreadLimit - effectiveSpread;
+		if (maxLines == 0)
+			return null;
 
-		if (topLinePos == 0)
-			return ByteBuffers.BEG_OF_TEXT_STR;
+		final long[] starts = new long[maxLines];
+		final long[] ends = new long[maxLines];
+		final int numLines = leapOverLines(forward, starts, ends);
 
-		if (topLinePos == 1) {
-			ByteBuffers.setBufferPosition(mBuffer, 0);
-		} else {
-			ByteBuffers.setBufferPosition(mBuffer, topLinePos - 2);
+		final String[] lines = new String[numLines];
+		for (int i = 0; i < numLines; i++) {
+			lines[i] = mBuffer.decode(starts[i], ends[i], mDecoder);
 		}
+		return lines;
 
-		return ByteBuffers.readBackwardToNewline(mBuffer);
+	}
 
+	public synchronized int getEffectiveSpread() {
+		return effectiveSpread;
+	}
+
+	public int getSpreadLimit() {
+		return spreadLimit;
 	}
 
 	/**
-	 * Steps forward through the file as far as possible until the spread limit
-	 * is reached.
-	 * 
-	 * @return -- the resulting array of lines, or null if no leap was made
+	 * Sets the only lines to read and moves both markers to the beginning of
+	 * the file. It is recommended to call leapForward() afterward.
+	 *
+	 * @param selection
+	 *            -- the lines to read, or null to read every line
 	 */
-	public String[] leapForward() {
-
-		final int numElements = spreadLimit - effectiveSpread;
-		if (numElements == 0)
-			return null;
-		String[] str = new String[numElements];
-
-		for (int i = 0; i < numElements; i++) {
-			str[i] = stepForward();
-		}
-
-		return str;
+	public synchronized void setSelection(LineSelection selection) {
+		mSelection = selection;
+		jumpToBeginningOfFile();
+	}
 
+	/**
+	 * @return the only lines being read, or null if every line is read
+	 */
+	public synchronized LineSelection getSelection() {
+		return mSelection;
 	}
 
 	/**
-	 * Steps backward through the file as far as possible until the spread limit
-	 * is reached.
+	 * Sets whether only the first line of each record of more than one line is
+	 * read. Both markers are moved to the beginning of the record holding the
+	 * top line, so it is recommended to call leapForward() afterward. Only the
+	 * records in the part of the file that has been indexed are collapsed, and
+	 * none are while a selection of lines is being read.
 	 * 
-	 * @return -- the resulting array of lines, or null if no leap was made
+	 * @param collapsed
+	 *            -- true to read only the first line of each record, false to
+	 *            read every line
 	 */
-	public String[] leapBackward() {
-
-		final int numElements = spreadLimit - effectiveSpread;
-		if (numElements == 0)
-			return null;
-		String[] str = new String[numElements];
-
-		for (int i = 0; i < numElements; i++) {
-			str[i] = stepBackward();
-		}
-
-		return str;
+	public synchronized void setCollapsed(boolean collapsed) {
+		this.collapsed = collapsed;
+		if (isCollapsing(mSelection))
+			topLinePos = recordStart(topLinePos);
+		botLinePos = topLinePos;
+		effectiveSpread = 0;
+	}
 
+	public synchronized boolean isCollapsed() {
+		return collapsed;
 	}
 
-	public int getEffectiveSpread() {
-		return effectiveSpread;
+	/**
+	 * Gets the level of a line, which is the level of the first line of its
+	 * record if the line is part of a record of more than one line
+	 * 
+	 * @param lineStart
+	 *            -- the position of the first character of the line
+	 * @return the level of the line
+	 */
+	public synchronized LogLevel getLevelOf(long lineStart) {
+		return mLineIndex.getLevelOf(mBuffer, lineStart);
 	}
 
-	public int getSpreadLimit() {
-		return spreadLimit;
+	/**
+	 * Counts the lines of a record that are stepped over along with its first
+	 * line while records are collapsed
+	 * 
+	 * @param lineStart
+	 *            -- the position of the first character of a line
+	 * @return the number of lines after the line in its record, or 0 if the
+	 *         line is not the first line of a collapsed record
+	 */
+	public synchronized int countHiddenLines(long lineStart) {
+		if (!isCollapsing(mSelection))
+			return 0;
+		final RecordIndex records = mLineIndex.getRecordIndex();
+		final int record = records.find(lineStart,
+				mLineIndex.getScannedLimit());
+		if (record < 0 || records.getStart(record) != lineStart)
+			return 0;
+		return records.getNumLines(record) - 1;
 	}
 
 	/**
@@ -207,43 +425,142 @@ public class ScrollingFileReader {
 	 * the file. If only the bottom marker is out of range, then it is moved to
 	 * the end of the file.
 	 * <p/>
-	 * This reader will no longer know how many lines are in the file, so it
-	 * will have to recount them the next time the number of lines is needed
-	 * after this method has been called.
+	 * Only the region of the file that was appended is newly mapped, and if
+	 * the lines have already been counted, only the appended lines are
+	 * counted. If the file became smaller, it is assumed to have been
+	 * rewritten and its lines are recounted from the beginning, and any
+	 * selection of lines is dropped since it no longer fits the file. The
+	 * same is done if data that was already read has moved, and the markers
+	 * are then treated as out of range if they are past where it moved from.
 	 * 
+	 * @return the new length of the file
 	 * @throws IOException
 	 *             thrown if the file cannot be read after modification
-	 * @throws FileNotFoundException
-	 *             thrown if the file cannot be found after modification
 	 */
-	public void notifyFileModified() throws FileNotFoundException, IOException {
-
-		mBuffer = openBuffer(mFile);
+	public synchronized long notifyFileModified() throws IOException {
+
+		// If the file is still being indexed in pieces, leave the new data for
+		// the indexer rather than scanning the rest of the file right now
+		final boolean wasIndexed = mLineIndex.getIndexedLimit() > 0
+				&& isIndexed();
+		final long oldLength = mBuffer.length();
+		final long length = mBuffer.refresh();
+		final long unchanged = mBuffer.getUnchangedLength();
+
+		if (unchanged < mLineIndex.getIndexedLimit()) {
+			mLineIndex.clear();
+		} else if (wasIndexed) {
+			mLineIndex.update(mBuffer);
+		}
 
-		numLinesInBuffer = NUM_LINES_NOT_COUNTED;
+		final boolean rewritten = unchanged < oldLength;
+		if (rewritten)
+			mSelection = null;
 
-		if (topLinePos >= mBuffer.limit()) {
+		final long limit = rewritten ? unchanged : length;
+		if (topLinePos >= limit) {
 			topLinePos = botLinePos = 0;
-		} else if (botLinePos >= mBuffer.limit()) {
-			botLinePos = mBuffer.limit() - 1;
+			effectiveSpread = 0;
+		} else if (botLinePos > limit) {
+			botLinePos = limit;
 		}
 
+		return length;
+
 	}
 
 	/**
-	 * Get the lines in between the top position and the bottom position.
+	 * Moves the bottom marker over lines that were read from the file by
+	 * someone else, such as a thread following the end of the file. The lines
+	 * are only accepted if they begin exactly at the bottom marker and every
+	 * line is being read, since the lines were not checked against any
+	 * selection, and only if records are not collapsed, since each line is
+	 * counted as a row of its own. The top marker is moved forward as needed
+	 * to enforce the spread limit.
 	 * 
+	 * @param startPos
+	 *            -- the position of the first character of the first line
+	 * @param endPos
+	 *            -- the position after the line break of the last line
+	 * @param numLines
+	 *            -- the number of lines between startPos and endPos
+	 * @return the number of lines that the top marker was moved forward, or -1
+	 *         if the lines were not accepted
+	 */
+	public synchronized int advanceOver(long startPos, long endPos,
+			int numLines) {
+
+		if (mSelection != null || collapsed || botLinePos != startPos)
+			return -1;
+
+		botLinePos = endPos;
+		effectiveSpread += numLines;
+
+		int numDropped = 0;
+		while (isEffectiveSpreadInvalid()) {
+			moveTopLinePosForward();
+			effectiveSpread--;
+			numDropped++;
+		}
+
+		return numDropped;
+
+	}
+
+	/**
+	 * @return the position of the first character of the topmost line in the
+	 *         spread
+	 */
+	public synchronized long getTopLinePos() {
+		return topLinePos;
+	}
+
+	/**
+	 * @return the position after the line break of the bottommost line in the
+	 *         spread
+	 */
+	public synchronized long getBotLinePos() {
+		return botLinePos;
+	}
+
+	/**
+	 * @return the number of bytes in the file as of the last time it was
+	 *         mapped or notifyFileModified() was called
+	 */
+	public long length() {
+		return mBuffer.length();
+	}
+
+	/**
+	 * @return the bytes read by this reader
+	 */
+	public FileBuffer getBuffer() {
+		return mBuffer;
+	}
+
+	/**
+	 * Releases the file. This reader may not be used after this method is
+	 * called.
+	 */
+	public synchronized void close() {
+		mBuffer.close();
+	}
+
+	/**
+	 * Get the lines in between the top position and the bottom position.
+	 *
 	 * @return the lines in between the top position and the bottom position
 	 */
-	public String[] getInnerLines() {
+	public synchronized String[] getInnerLines() {
 
-		final int numLines = ByteBuffers.countLinesBetween(mBuffer, topLinePos,
-				botLinePos) + 1;
-		String[] lineArray = new String[numLines];
-		ByteBuffers.setBufferPosition(mBuffer, topLinePos);
+		String[] lineArray = new String[effectiveSpread];
+		long pos = topLinePos;
 
-		for (int i = 0; i < numLines; i++) {
-			lineArray[i] = ByteBuffers.readForwardToNewline(mBuffer);
+		for (int i = 0; i < effectiveSpread; i++) {
+			final long lineStart = selectedLineFrom(pos);
+			pos = nextEntryStart(mSelection, lineStart);
+			lineArray[i] = mBuffer.decode(lineStart,
+					lineEndBefore(nextLineStart(lineStart)), mDecoder);
 		}
 
 		return lineArray;
@@ -254,46 +571,116 @@ public class ScrollingFileReader {
 	 * Sets the line of the file for the top position. The spread limit will be
 	 * enforced upon calling this, so the bottom position will also be moved
 	 * appropriately.
-	 * 
+	 *
 	 * @param line
 	 *            -- the line of the file for the top position
 	 */
-	public void setTopLinePos(int line) {
+	public synchronized void setTopLinePos(int line) {
+
+		jumpToLine(line);
+
+		while (effectiveSpread < spreadLimit) {
+			final long lineStart = selectedLineFrom(botLinePos);
+			if (lineStart < 0)
+				break;
+			if (effectiveSpread == 0)
+				topLinePos = lineStart;
+			botLinePos = nextEntryStart(mSelection, lineStart);
+			effectiveSpread++;
+		}
 
-		final int numLines = countLinesInBuffer();
+	}
 
-		if (line <= 0) {
+	/**
+	 * Sets the top and bottom markers to both be at the beginning of the given
+	 * line. The effective spread is therefore 0 after this method is called.
+	 * It is recommended to call leapForward() or stepForward() after calling
+	 * this method to read the lines starting at the given line.
+	 *
+	 * @param line
+	 *            -- the line of the file to jump to, starting from 1
+	 */
+	public synchronized void jumpToLine(int line) {
+		checkLineNumber(line);
+		// A last line that has not ended is not indexed, but begins where the
+		// indexed lines end
+		botLinePos = topLinePos = (line > mLineIndex.getNumLines()) ? mLineIndex
+				.getScannedLimit() : mLineIndex.getLineOffset(mBuffer, line - 1);
+		if (isCollapsing(mSelection))
+			botLinePos = topLinePos = recordStart(topLinePos);
+		effectiveSpread = 0;
+	}
+
+	/**
+	 * Jumps to the line that is the given fraction of the way through the file.
+	 * The markers are placed the same way as in jumpToLine().
+	 *
+	 * @param fraction
+	 *            -- a value from 0 to 1, where 0 is the first line of the file
+	 *            and 1 is the last line
+	 */
+	public synchronized void jumpToFraction(float fraction) {
+
+		if (fraction < 0 || fraction > 1) {
 			throw new IllegalArgumentException(
-					"The line number must be positive");
-		} else if (line > numLines) {
-			throw new IllegalArgumentException("Given line number " + line
-					+ " but there are only " + numLines + " lines in the file!");
+					"The fraction must be between 0 and 1");
 		}
 
-		if (line < numLines / 2) {
-			ByteBuffers.setBufferPosition(mBuffer, 0);
-			ByteBuffers.skipForward(mBuffer, line - 1);
-		} else {
-			ByteBuffers.setBufferPosition(mBuffer,
-					ByteBuffers.getBufferLimit(mBuffer) - 1);
+		final int numLines = countLinesInBuffer();
+		if (numLines == 0) {
+			jumpToBeginningOfFile();
+			return;
+		}
+
+		jumpToLine(1 + (int) (fraction * (numLines - 1)));
+
+	}
 
-			// Not sure why numlines-line+2 works... needs review
-			ByteBuffers.skipBackward(mBuffer, numLines - line + 2);
+	/**
+	 * Moves both markers to the beginning of the line holding the given
+	 * position, or up to a few lines before it so that the line can be shown
+	 * with some of the lines that lead up to it. The effective spread is 0
+	 * after this method is called, so it is probably desirable to call
+	 * leapForward() afterward.
+	 * 
+	 * @param pos
+	 *            -- a position within the line to jump to
+	 * @param linesBefore
+	 *            -- how many lines before the line to put the markers at, if
+	 *            there are that many
+	 * @return the number of lines that the markers were actually put before
+	 *         the line
+	 */
+	public synchronized int jumpToOffset(long pos, int linesBefore) {
+
+		if (pos < 0 || pos > mBuffer.length()) {
+			throw new IllegalArgumentException("Position " + pos
+					+ " is not within the file");
 		}
 
-		topLinePos = ByteBuffers.getBufferPosition(mBuffer) + 2;
-		ByteBuffers.setBufferPosition(mBuffer, topLinePos);
-		final boolean skipSuccessful = ByteBuffers.skipForward(mBuffer,
-				spreadLimit);
-		botLinePos = ByteBuffers.getBufferPosition(mBuffer);
+		// The line holding pos begins after the last line break before it
+		long lineStart = mBuffer.lastIndexOfBreak(0, pos) + 1;
+		if (mSelection != null) {
+			// Start from the next selected line if this one was not selected
+			final long selected = mSelection.ceiling(lineStart);
+			lineStart = (selected < 0) ? mBuffer.length() : selected;
+		} else if (collapsed) {
+			lineStart = recordStart(lineStart);
+		}
 
-		if (skipSuccessful) {
-			effectiveSpread = spreadLimit;
-		} else {
-			effectiveSpread = ByteBuffers.countLinesBetween(mBuffer,
-					topLinePos, botLinePos);
+		int numBefore = 0;
+		while (numBefore < linesBefore) {
+			final long previous = selectedLineBefore(lineStart);
+			if (previous < 0)
+				break;
+			lineStart = previous;
+			numBefore++;
 		}
 
+		topLinePos = botLinePos = lineStart;
+		effectiveSpread = 0;
+		return numBefore;
+
 	}
 
 	/**
@@ -302,7 +689,7 @@ public class ScrollingFileReader {
 	 * recommended to call leapForward() or stepForward() after calling this
 	 * method to read the beginning lines of the file.
 	 */
-	public void jumpToBeginningOfFile() {
+	public synchronized void jumpToBeginningOfFile() {
 		botLinePos = topLinePos = 0;
 		effectiveSpread = 0;
 	}
@@ -313,29 +700,201 @@ public class ScrollingFileReader {
 	 * recommended to call leapBackward() or stepBackward() after calling this
 	 * method to read the last lines of the file.
 	 */
-	public void jumpToEndOfFile() {
-		botLinePos = topLinePos = (int) mFile.length();
+	public synchronized void jumpToEndOfFile() {
+		botLinePos = topLinePos = mBuffer.length();
 		effectiveSpread = 0;
 	}
 
-	public int getNumLinesInBuffer() {
+	public synchronized int getNumLinesInBuffer() {
 		return countLinesInBuffer();
 	}
 
-	private int countLinesInBuffer() {
+	/**
+	 * Indexes a limited number of bytes of the file that have not been indexed
+	 * yet. Calling this repeatedly from a background thread indexes a large
+	 * file without holding the lock on this reader for long at a time, so the
+	 * file can be scrolled while it is being indexed.
+	 * 
+	 * @param maxBytes
+	 *            -- the most bytes to scan
+	 * @return true if the whole file has now been indexed
+	 */
+	public synchronized boolean indexMore(long maxBytes) {
+		mLineIndex.update(mBuffer, mLineIndex.getIndexedLimit() + maxBytes);
+		return isIndexed();
+	}
+
+	/**
+	 * Replaces the index of the lines in the file with one that was saved
+	 * earlier, so that the file does not have to be scanned again. Only the
+	 * part of the file after what the index covers is scanned from now on.
+	 * 
+	 * @param index
+	 *            -- an index of this file, or of the beginning of it
+	 * @return true if the index was used, or false if it covers more than
+	 *         the whole file and so cannot be an index of it
+	 */
+	public synchronized boolean setLineIndex(LineIndex index) {
+		if (index.getScannedLimit() > mBuffer.length())
+			return false;
+		mLineIndex = index;
+		return true;
+	}
 
-		if (numLinesInBuffer == NUM_LINES_NOT_COUNTED) {
+	/**
+	 * @return a copy of the index of the lines in the file, which may be saved
+	 *         while this reader goes on extending its own index
+	 */
+	public synchronized LineIndex copyLineIndex() {
+		return mLineIndex.copy();
+	}
 
-			numLinesInBuffer = 0;
-			ByteBuffers.setBufferPosition(mBuffer, 0);
+	/**
+	 * Starts indexing the times of the lines, which are found with the given
+	 * date pattern. The times of the lines that have already been indexed are
+	 * found by the next few calls to indexMore(), so the file is not indexed
+	 * until they have been. If the index already has times found with the
+	 * same pattern, they are kept.
+	 * 
+	 * @param datePattern
+	 *            -- the SimpleDateFormat pattern of the timestamps, or null to
+	 *            stop indexing times
+	 * @throws IllegalArgumentException
+	 *             if the pattern is not valid
+	 */
+	public synchronized void setTimestampPattern(String datePattern) {
 
-			while (ByteBuffers.skipForward(mBuffer, 1)) {
-				numLinesInBuffer++;
-			}
+		final TimeIndex times = mLineIndex.getTimeIndex();
 
+		if (datePattern == null) {
+			mLineIndex.setTimeIndex(null);
+		} else if (times == null
+				|| !times.getParser().getDatePattern().equals(datePattern)) {
+			mLineIndex.setTimeIndex(new TimeIndex(new TimestampParser(
+					datePattern)));
 		}
 
-		return numLinesInBuffer;
+	}
+
+	/**
+	 * Sets the pattern of the layout that wrote the file, which is used to
+	 * find the levels of the lines. If the index was built with a different
+	 * pattern, it is cleared and the file is indexed again by indexMore().
+	 * 
+	 * @param pattern
+	 *            -- the pattern of a logback PatternLayout, or null to find
+	 *            levels from the first byte of each line
+	 * @throws IllegalArgumentException
+	 *             if the pattern is not valid
+	 */
+	public synchronized void setLayoutPattern(String pattern) {
+		final PatternLayoutParser layout = mLineIndex.getLayout();
+		if (pattern == null) {
+			mLineIndex.setLayout(null);
+		} else if (layout == null || !layout.getPattern().equals(pattern)) {
+			mLineIndex.setLayout(new PatternLayoutParser(pattern));
+		}
+	}
+
+	/**
+	 * @return the layout of the lines, or null if none was given
+	 */
+	public synchronized PatternLayoutParser getLayout() {
+		return mLineIndex.getLayout();
+	}
+
+	/**
+	 * Moves both markers to the first line whose timestamp is at or after a
+	 * time typed by the user, as jumpToOffset() does. The line is found by a
+	 * binary search of the times of the indexed blocks of lines, so only a few
+	 * hundred lines are parsed. A time of day without a date is taken to be
+	 * on the day of the line at the top marker.
+	 * 
+	 * @param input
+	 *            -- a date and time such as 2012-05-01 14:32, or a time of day
+	 *            such as 14:32:05
+	 * @param linesBefore
+	 *            -- how many lines before the line to put the markers at, if
+	 *            there are that many
+	 * @return the number of lines that the markers were actually put before
+	 *         the line
+	 * @throws IllegalArgumentException
+	 *             if the input is not a time
+	 * @throws IllegalStateException
+	 *             if the times of the lines are not indexed or none of the
+	 *             lines has a timestamp
+	 */
+	public synchronized int jumpToTime(String input, int linesBefore) {
+
+		final TimeIndex times = mLineIndex.getTimeIndex();
+		if (times == null) {
+			throw new IllegalStateException("No date pattern has been set");
+		}
+
+		final long reference = times.getTimeAt(mLineIndex, topLinePos);
+		if (reference == TimestampParser.NO_TIME) {
+			throw new IllegalStateException("No timestamps were found");
+		}
+
+		final long target = times.getParser().parseInput(input.trim(),
+				reference);
+		if (target == TimestampParser.NO_TIME) {
+			throw new IllegalArgumentException(input + " is not a time");
+		}
+
+		return jumpToOffset(times.findLine(mBuffer, mLineIndex, target),
+				linesBefore);
+
+	}
+
+	/**
+	 * @return true if every line in the file has been indexed, so that
+	 *         counting or jumping to lines will not have to scan the file. A
+	 *         last line that has not ended yet is not indexed until it does.
+	 */
+	public synchronized boolean isIndexed() {
+		return mLineIndex.isUpToDate(mBuffer);
+	}
+
+	/**
+	 * @return the number of bytes of the file that have been indexed
+	 */
+	public synchronized long getIndexedLength() {
+		return mLineIndex.getIndexedLimit();
+	}
+
+	/**
+	 * @return the number of lines found in the part of the file that has been
+	 *         indexed
+	 */
+	public synchronized int getNumIndexedLines() {
+		return mLineIndex.getNumLines();
+	}
+
+	/**
+	 * Counts the lines in the file. The lines are only scanned the first time
+	 * this is called, after which only data appended to the file is scanned.
+	 */
+	private int countLinesInBuffer() {
+		mLineIndex.update(mBuffer);
+		// A last line that has not ended is shown even though it is not
+		// indexed yet
+		final boolean hasPartialLine = mLineIndex.getScannedLimit() < mBuffer
+				.length();
+		return mLineIndex.getNumLines() + (hasPartialLine ? 1 : 0);
+	}
+
+	private void checkLineNumber(int line) {
+
+		final int numLines = countLinesInBuffer();
+
+		if (line <= 0) {
+			throw new IllegalArgumentException(
+					"The line number must be positive");
+		} else if (line > numLines) {
+			throw new IllegalArgumentException("Given line number " + line
+					+ " but there are only " + numLines + " lines in the file!");
+		}
 
 	}
 
@@ -344,27 +903,137 @@ public class ScrollingFileReader {
 	}
 
 	private void moveTopLinePosForward() {
+		topLinePos = nextEntryStart(mSelection, selectedLineFrom(topLinePos));
+	}
 
-		ByteBuffers.setBufferPosition(mBuffer, topLinePos);
-		ByteBuffers.skipForward(mBuffer, 1);
-		topLinePos = ByteBuffers.getBufferPosition(mBuffer);
+	private void moveBotLinePosBackward() {
+		botLinePos = selectedLineBefore(botLinePos);
+	}
 
+	/**
+	 * Finds the first line to read that begins at or after the given position
+	 *
+	 * @param pos
+	 *            -- the position of the first character of a line, or the
+	 *            length of the file
+	 * @return the position of the first character of the line, or -1 if there
+	 *         are no more lines to read
+	 */
+	private long selectedLineFrom(long pos) {
+		if (mSelection != null) {
+			final long lineStart = mSelection.ceiling(pos);
+			return (lineStart < mBuffer.length()) ? lineStart : -1;
+		}
+		return (pos < mBuffer.length()) ? pos : -1;
 	}
 
-	private void moveBotLinePosBackward() {
+	/**
+	 * Finds the last line to read that begins before the given position
+	 *
+	 * @param pos
+	 *            -- the position of the first character of a line, or the
+	 *            length of the file
+	 * @return the position of the first character of the line, or -1 if there
+	 *         are no lines to read before pos
+	 */
+	private long selectedLineBefore(long pos) {
+		if (mSelection != null)
+			return mSelection.lower(pos);
+		if (pos == 0)
+			return -1;
+		final long lineStart = previousLineStart(pos);
+		return collapsed ? recordStart(lineStart) : lineStart;
+	}
+
+	/**
+	 * @return true if records are being collapsed while the given lines are
+	 *         read
+	 */
+	private boolean isCollapsing(LineSelection selection) {
+		return collapsed && selection == null;
+	}
 
-		ByteBuffers.setBufferPosition(mBuffer, botLinePos - 2);
-		ByteBuffers.skipBackward(mBuffer, 1);
-		botLinePos = ByteBuffers.getBufferPosition(mBuffer) + 2;
+	/**
+	 * Finds the next line to read after the line beginning at pos, which is
+	 * after the end of its record if records are being collapsed
+	 * 
+	 * @param selection
+	 *            -- the lines being read, or null if every line is read
+	 * @param pos
+	 *            -- the position of the first character of a line
+	 * @return the position of the first character of the next line, or the
+	 *         length of the file if there is no next line
+	 */
+	private long nextEntryStart(LineSelection selection, long pos) {
+		final long next = nextLineStart(pos);
+		return isCollapsing(selection) ? recordEnd(pos, next) : next;
+	}
 
+	/**
+	 * @return the position of the first line of the record holding the line
+	 *         that begins at pos, or pos if the line is a record of its own
+	 */
+	private long recordStart(long pos) {
+		final RecordIndex records = mLineIndex.getRecordIndex();
+		final int record = records.find(pos, mLineIndex.getScannedLimit());
+		return (record < 0) ? pos : records.getStart(record);
 	}
 
-	private static ByteBuffer openBuffer(File file) throws IOException {
-		final FileInputStream fis = new FileInputStream(file);
-		ByteBuffer buffer = fis.getChannel().map(MapMode.READ_ONLY, 0,
-				file.length());
-		fis.close();
-		return buffer;
+	/**
+	 * @return the position after the last line of the record holding the line
+	 *         that begins at pos, or lineEnd if the line is a record of its own
+	 */
+	private long recordEnd(long pos, long lineEnd) {
+		final long limit = mLineIndex.getScannedLimit();
+		final RecordIndex records = mLineIndex.getRecordIndex();
+		final int record = records.find(pos, limit);
+		return (record < 0) ? lineEnd : Math.max(lineEnd, records.getEnd(
+				record, limit));
+	}
+
+	/**
+	 * Finds the beginning of the line after the one beginning at pos
+	 *
+	 * @param pos
+	 *            -- the position of the first character of a line
+	 * @return the position of the first character of the next line, or the
+	 *         length of the file if there is no next line
+	 */
+	private long nextLineStart(long pos) {
+		final long length = mBuffer.length();
+		final long lineBreak = mBuffer.indexOfBreak(pos, length);
+		return (lineBreak < 0) ? length : lineBreak + 1;
+	}
+
+	/**
+	 * Finds the beginning of the line before the given position
+	 *
+	 * @param pos
+	 *            -- the position of the first character of a line, or the
+	 *            length of the file
+	 * @return the position of the first character of the line before pos
+	 */
+	private long previousLineStart(long pos) {
+		return mBuffer.lastIndexOfBreak(0, lineEndBefore(pos)) + 1;
+	}
+
+	/**
+	 * Finds the end of the line before the given position. This is the line
+	 * break just before pos unless pos is the end of a file whose last line
+	 * has no line break.
+	 */
+	private long lineEndBefore(long pos) {
+		if (ByteBuffers.isNotBreak((char) mBuffer.get(pos - 1))) {
+			return pos;
+		}
+		return pos - 1;
+	}
+
+	/**
+	 * Decodes a line whose start and end were found by stepOverLine()
+	 */
+	private String readLine(long[] line) {
+		return mBuffer.decode(line[0], line[1], mDecoder);
 	}
 
 }
@@ -0,0 +1,115 @@
+/*Copyright (C) 2010-2012 Institute for Software Integrated Systems (ISIS)
+This software was developed by the Institute for Software Integrated
+Systems (ISIS) at Vanderbilt University, Tennessee, USA for the
+Transformative Apps program under DARPA, Contract # HR011-10-C-0175.
+The United States Government has unlimited rights to this software.
+The US government has the right to use, modify, reproduce, release,
+perform, display, or disclose computer software or computer software
+documentation in whole or in part, in any manner and for any
+purpose whatsoever, and to have or authorize others to do so.
+ */
+package edu.vu.isis.logger.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * A read-only view of a file that is memory mapped in fixed-size segments. A
+ * single ByteBuffer can only address 2 GB, so files larger than that cannot be
+ * mapped all at once. A SegmentedFileBuffer addresses the file with long
+ * offsets and maps each segment only when it is first needed. Only a few
+ * segments are kept at once. A MappedByteBuffer cannot be unmapped directly,
+ * so the mapping of a segment that is dropped is released when the garbage
+ * collector reclaims it.
+ * <p/>
+ * The searching methods of this class work across segment boundaries, so a
+ * line may begin in one segment and end in another.
+ * <p/>
+ * All of the reading methods use absolute positions, so a SegmentedFileBuffer
+ * may be read by several threads at once.
+ *
+ * @author Nick King
+ *
+ */
+public class SegmentedFileBuffer extends AbstractSegmentedBuffer {
+
+	public static final int DEFAULT_SEGMENT_SIZE = 32 * 1024 * 1024;
+	public static final int DEFAULT_MAX_MAPPED_SEGMENTS = 4;
+
+	private final File mFile;
+	private final RandomAccessFile mRandomAccessFile;
+	private final FileChannel mChannel;
+
+	public SegmentedFileBuffer(File file) throws IOException {
+		this(file, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_MAPPED_SEGMENTS);
+	}
+
+	/**
+	 * @param file
+	 *            -- the file to map
+	 * @param segmentSize
+	 *            -- the number of bytes in each mapped segment
+	 * @param maxMappedSegments
+	 *            -- the most segments that will be kept at once
+	 * @throws IOException
+	 *             if the file cannot be opened
+	 */
+	public SegmentedFileBuffer(File file, int segmentSize,
+			int maxMappedSegments) throws IOException {
+		super(segmentSize, maxMappedSegments, file.length());
+		mFile = file;
+		mRandomAccessFile = new RandomAccessFile(file, "r");
+		mChannel = mRandomAccessFile.getChannel();
+	}
+
+	public File getFile() {
+		return mFile;
+	}
+
+	/**
+	 * Picks up any change in the length of the file. If the file grew, only
+	 * the partially filled last segment is dropped so that it will be mapped
+	 * again with the new data, and the segments after it are mapped as they
+	 * are needed. Segments holding data that was already mapped are kept. If
+	 * the file shrank, every segment is dropped.
+	 *
+	 * @return the new length of the file
+	 * @throws IOException
+	 *             if the length of the file cannot be read
+	 */
+	@Override
+	public synchronized long refresh() throws IOException {
+		setLength(mChannel.size());
+		return length();
+	}
+
+	/**
+	 * Releases the file. This buffer may not be used after this method is
+	 * called.
+	 */
+	@Override
+	public synchronized void close() {
+		clearSegments();
+		try {
+			mRandomAccessFile.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	protected ByteBuffer loadSegment(int index, long start, int size)
+			throws IOException {
+		return mChannel.map(MapMode.READ_ONLY, start, size);
+	}
+
+	@Override
+	protected String getName() {
+		return mFile.getName();
+	}
+
+}
@@ -0,0 +1,151 @@
+/*Copyright (C) 2010-2012 Institute for Software Integrated Systems (ISIS)
+This software was developed by the Institute for Software Integrated
+Systems (ISIS) at Vanderbilt University, Tennessee, USA for the
+Transformative Apps program under DARPA, Contract # HR011-10-C-0175.
+The United States Government has unlimited rights to this software.
+The US government has the right to use, modify, reproduce, release,
+perform, display, or disclose computer software or computer software
+documentation in whole or in part, in any manner and for any
+purpose whatsoever, and to have or authorize others to do so.
+ */
+package edu.vu.isis.logger.util;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded queue for handing elements from exactly one producer thread to
+ * exactly one consumer thread without locking. offer() may only be called
+ * from the producer thread, and drainTo() and isEmpty() only from the
+ * consumer thread.
+ * <p/>
+ * The elements are kept in an array used as a ring. The producer owns the
+ * tail index and the consumer owns the head index, and each publishes its
+ * index with a lazySet() after it has written or cleared the slots it is done
+ * with, so neither thread ever waits for the other.
+ * <p/>
+ * When the ring is full, offer() drops the element it was given rather than
+ * blocking or overwriting the oldest element, since the producer may not move
+ * the consumer's head. The number of elements dropped is counted so that the
+ * consumer can report it.
+ *
+ * @author Nick King
+ *
+ * @param <E>
+ *            -- the type of the elements
+ */
+public class SpscRingBuffer<E> {
+
+	private final Object[] elements;
+	private final int mask;
+
+	/** the sequence number of the next element to take, owned by the consumer */
+	private final AtomicLong head = new AtomicLong(0);
+
+	/** the sequence number of the next element to put, owned by the producer */
+	private final AtomicLong tail = new AtomicLong(0);
+
+	private final AtomicLong dropped = new AtomicLong(0);
+
+	/** the producer's last look at the head, so it is rarely read */
+	private long headCache = 0;
+
+	/**
+	 * @param capacity
+	 *            -- the least number of elements the ring must hold, which is
+	 *            rounded up to a power of two
+	 */
+	public SpscRingBuffer(int capacity) {
+		if (capacity < 1 || capacity > (1 << 30))
+			throw new IllegalArgumentException("Invalid capacity: " + capacity);
+		int size = 1;
+		while (size < capacity) {
+			size <<= 1;
+		}
+		elements = new Object[size];
+		mask = size - 1;
+	}
+
+	/**
+	 * Adds an element at the tail of the ring. Only called by the producer.
+	 *
+	 * @param element
+	 *            -- the element to add, which may not be null
+	 * @return true if the element was added, or false if the ring was full and
+	 *         the element was dropped
+	 */
+	public boolean offer(E element) {
+		final long t = tail.get();
+		if (t - headCache >= elements.length) {
+			headCache = head.get();
+			if (t - headCache >= elements.length) {
+				dropped.incrementAndGet();
+				return false;
+			}
+		}
+		elements[(int) t & mask] = element;
+		tail.lazySet(t + 1);
+		return true;
+	}
+
+	/**
+	 * Moves the elements at the head of the ring into a collection, oldest
+	 * first. Only called by the consumer.
+	 *
+	 * @param collection
+	 *            -- where to put the elements
+	 * @param maxElements
+	 *            -- the most elements to move
+	 * @return the number of elements moved
+	 */
+	public int drainTo(Collection<? super E> collection, int maxElements) {
+		final long h = head.get();
+		final int count = (int) Math.min(tail.get() - h, maxElements);
+		for (int i = 0; i < count; i++) {
+			final int index = (int) (h + i) & mask;
+			@SuppressWarnings("unchecked")
+			final E element = (E) elements[index];
+			collection.add(element);
+			elements[index] = null;
+		}
+		head.lazySet(h + count);
+		return count;
+	}
+
+	/**
+	 * @return whether there are no elements to take. Only called by the
+	 *         consumer.
+	 */
+	public boolean isEmpty() {
+		return tail.get() == head.get();
+	}
+
+	/**
+	 * @return about how many elements are in the ring. It may be called from
+	 *         any thread, but is only exact on the consumer thread.
+	 */
+	public int size() {
+		return (int) Math.max(0, tail.get() - head.get());
+	}
+
+	public int getCapacity() {
+		return elements.length;
+	}
+
+	/**
+	 * @return the number of elements offered since the ring was created,
+	 *         whether they were added or dropped
+	 */
+	public long getOffered() {
+		return tail.get() + dropped.get();
+	}
+
+	/**
+	 * @return the number of elements dropped because the ring was full, since
+	 *         it was created
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+}
@@ -0,0 +1,287 @@
+/*Copyright (C) 2010-2012 Institute for Software Integrated Systems (ISIS)
+This software was developed by the Institute for Software Integrated
+Systems (ISIS) at Vanderbilt University, Tennessee, USA for the
+Transformative Apps program under DARPA, Contract # HR011-10-C-0175.
+The United States Government has unlimited rights to this software.
+The US government has the right to use, modify, reproduce, release,
+perform, display, or disclose computer software or computer software
+documentation in whole or in part, in any manner and for any
+purpose whatsoever, and to have or authorize others to do so.
+ */
+package edu.vu.isis.logger.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A sparse index of the times of the lines in a file, kept alongside a
+ * LineIndex. Only one time is stored for each block of lines between two
+ * checkpoints of the LineIndex: the time of the first line in the block that
+ * has a timestamp. Building the index therefore decodes the beginning of about
+ * one line in every few hundred.
+ * <p/>
+ * The times are made monotonic as they are added, so that they can be binary
+ * searched even if a few lines were written out of order. A block with no
+ * timestamp takes the time of the block before it. If the timestamps have no
+ * date, a day is added whenever the time of day jumps backward by more than
+ * half a day, so a log that passes midnight is still in order.
+ * <p/>
+ * Only blocks that are complete are given a time, so that the time of a
+ * block never changes once it is stored.
+ *
+ * @author Nick King
+ *
+ */
+public class TimeIndex {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private final TimestampParser mParser;
+	private final LineDecoder mDecoder = new LineDecoder();
+
+	private long[] times = new long[INITIAL_CAPACITY];
+	private int numTimes = 0;
+
+	/**
+	 * @param parser
+	 *            -- finds the timestamps of lines
+	 */
+	public TimeIndex(TimestampParser parser) {
+		mParser = parser;
+	}
+
+	public TimestampParser getParser() {
+		return mParser;
+	}
+
+	/**
+	 * @return the number of blocks of lines that have been given a time
+	 */
+	public int getNumTimes() {
+		return numTimes;
+	}
+
+	/**
+	 * @return the time of the given block of lines, or NO_TIME if neither it
+	 *         nor any block before it has a timestamp
+	 */
+	public long getTime(int block) {
+		return times[block];
+	}
+
+	/**
+	 * Gives a time to each complete block of lines that ends before the
+	 * limit and does not have one yet
+	 *
+	 * @param buffer
+	 *            -- the file that was indexed
+	 * @param lines
+	 *            -- the index of the lines in the file
+	 * @param limit
+	 *            -- the position at which to stop
+	 */
+	void update(FileBuffer buffer, LineIndex lines, long limit) {
+
+		final int numBlocks = lines.getNumCheckpoints() - 1;
+
+		while (numTimes < numBlocks
+				&& lines.getCheckpoint(numTimes + 1) <= limit) {
+
+			final long blockEnd = lines.getCheckpoint(numTimes + 1);
+			final long last = (numTimes == 0) ? TimestampParser.NO_TIME
+					: times[numTimes - 1];
+
+			long time = TimestampParser.NO_TIME;
+			long pos = lines.getCheckpoint(numTimes);
+			while (pos < blockEnd && time == TimestampParser.NO_TIME) {
+				time = mParser.parseLine(buffer, pos, blockEnd, mDecoder);
+				pos = buffer.indexOfBreak(pos, blockEnd) + 1;
+			}
+
+			addTime(toMonotonic(time, last));
+
+		}
+
+	}
+
+	/**
+	 * Finds the first line whose time is at or after the given time. The
+	 * block holding it is found by binary search, and then only the lines of
+	 * that block and the one after it are parsed.
+	 *
+	 * @param buffer
+	 *            -- the file that was indexed
+	 * @param lines
+	 *            -- the index of the lines in the file
+	 * @param target
+	 *            -- the time to find
+	 * @return the position of the first character of the line, or the end of
+	 *         the indexed lines if every line is earlier
+	 */
+	long findLine(FileBuffer buffer, LineIndex lines, long target) {
+
+		// Find the last block that begins before the target
+		int low = 0;
+		int high = numTimes - 1;
+		int block = -1;
+		while (low <= high) {
+			final int mid = (low + high) >>> 1;
+			if (times[mid] < target) {
+				block = mid;
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+
+		if (block < 0)
+			return lines.getNumLines() == 0 ? 0 : lines.getCheckpoint(0);
+
+		// A block with no timestamp has the time of the block before it, and
+		// the earlier lines of that block may also be before the target
+		while (block > 0 && times[block - 1] == times[block]) {
+			block--;
+		}
+
+		final long limit = lines.getScannedLimit();
+		long last = times[block];
+		long pos = lines.getCheckpoint(block);
+
+		while (pos < limit) {
+			final long time = toMonotonic(mParser.parseLine(buffer, pos, limit,
+					mDecoder), last);
+			if (time >= target)
+				return pos;
+			last = time;
+			final long lineBreak = buffer.indexOfBreak(pos, limit);
+			if (lineBreak < 0)
+				break;
+			pos = lineBreak + 1;
+		}
+
+		return limit;
+
+	}
+
+	/**
+	 * Finds the time of the block holding a line
+	 *
+	 * @param lines
+	 *            -- the index of the lines in the file
+	 * @param pos
+	 *            -- the position of a line
+	 * @return the time of the last block beginning at or before pos, the time
+	 *         of the first block if pos is before it, or NO_TIME if no block
+	 *         has a time
+	 */
+	long getTimeAt(LineIndex lines, long pos) {
+
+		int low = 0;
+		int high = numTimes - 1;
+		int block = 0;
+		while (low <= high) {
+			final int mid = (low + high) >>> 1;
+			if (lines.getCheckpoint(mid) <= pos) {
+				block = mid;
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+
+		// Blocks before the first timestamp have no time, so use the first
+		// block that does
+		while (block < numTimes && times[block] == TimestampParser.NO_TIME) {
+			block++;
+		}
+
+		return (block < numTimes) ? times[block] : TimestampParser.NO_TIME;
+
+	}
+
+	/**
+	 * Forgets every time that has been stored
+	 */
+	void clear() {
+		numTimes = 0;
+	}
+
+	TimeIndex copy() {
+		final TimeIndex copy = new TimeIndex(new TimestampParser(
+				mParser.getDatePattern()));
+		copy.times = new long[Math.max(numTimes, 1)];
+		System.arraycopy(times, 0, copy.times, 0, numTimes);
+		copy.numTimes = numTimes;
+		return copy;
+	}
+
+	void writeTo(DataOutput out) throws IOException {
+		out.writeUTF(mParser.getDatePattern());
+		out.writeInt(numTimes);
+		for (int i = 0; i < numTimes; i++) {
+			out.writeLong(times[i]);
+		}
+	}
+
+	static TimeIndex readFrom(DataInput in) throws IOException {
+
+		final String datePattern = in.readUTF();
+		final int numTimes = in.readInt();
+		if (numTimes < 0)
+			throw new IOException("The saved time index is corrupt");
+
+		final TimeIndex index;
+		try {
+			index = new TimeIndex(new TimestampParser(datePattern));
+		} catch (IllegalArgumentException e) {
+			throw new IOException("The saved date pattern is not valid");
+		}
+
+		index.times = new long[Math.max(numTimes, 1)];
+		for (int i = 0; i < numTimes; i++) {
+			index.times[i] = in.readLong();
+		}
+		index.numTimes = numTimes;
+		return index;
+
+	}
+
+	/**
+	 * Adjusts a parsed time so that it is not before the time of the line or
+	 * block before it
+	 *
+	 * @param time
+	 *            -- the parsed time, or NO_TIME
+	 * @param last
+	 *            -- the adjusted time before it, or NO_TIME
+	 * @return the adjusted time, which is last if time is NO_TIME
+	 */
+	private long toMonotonic(long time, long last) {
+
+		if (time == TimestampParser.NO_TIME || last == TimestampParser.NO_TIME)
+			return (time == TimestampParser.NO_TIME) ? last : time;
+
+		if (!mParser.hasDate()) {
+			// Times of day are within the first day after the epoch, so put
+			// this one on the same day as the last one, or the next day if
+			// the clock has gone past midnight
+			time += last - last % TimestampParser.DAY;
+			if (time < last - TimestampParser.DAY / 2)
+				time += TimestampParser.DAY;
+		}
+
+		return Math.max(time, last);
+
+	}
+
+	private void addTime(long time) {
+		if (numTimes == times.length) {
+			final long[] larger = new long[times.length * 2];
+			System.arraycopy(times, 0, larger, 0, numTimes);
+			times = larger;
+		}
+		times[numTimes++] = time;
+	}
+
+}
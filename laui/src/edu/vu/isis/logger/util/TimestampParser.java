@@ -0,0 +1,291 @@
+/*Copyright (C) 2010-2012 Institute for Software Integrated Systems (ISIS)
+This software was developed by the Institute for Software Integrated
+Systems (ISIS) at Vanderbilt University, Tennessee, USA for the
+Transformative Apps program under DARPA, Contract # HR011-10-C-0175.
+The United States Government has unlimited rights to this software.
+The US government has the right to use, modify, reproduce, release,
+perform, display, or disclose computer software or computer software
+documentation in whole or in part, in any manner and for any
+purpose whatsoever, and to have or authorize others to do so.
+ */
+package edu.vu.isis.logger.util;
+
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds and parses the timestamp near the beginning of a log line. The
+ * timestamp is described by a SimpleDateFormat pattern, which is the same
+ * pattern given to the %d conversion word of a logback PatternLayout.
+ * <p/>
+ * The pattern is also turned into a regular expression so that the timestamp
+ * can be found anywhere in the first PREFIX_BYTES bytes of a line, since most
+ * layouts put something such as the level before it. Only that much of a line
+ * is ever decoded.
+ * <p/>
+ * If the pattern has no date in it, such as HH:mm:ss.SSS, times are parsed
+ * in UTC, so every time falls within the first day after the epoch. The
+ * caller can then add whole days to account for logs that pass midnight.
+ * <p/>
+ * A TimestampParser is not thread safe, since SimpleDateFormat is not.
+ *
+ * @author Nick King
+ *
+ */
+public class TimestampParser {
+
+	/** the pattern logback uses when %d is given no pattern */
+	public static final String DEFAULT_PATTERN = "yyyy-MM-dd HH:mm:ss,SSS";
+
+	/** the value returned when a line has no timestamp */
+	public static final long NO_TIME = Long.MIN_VALUE;
+
+	public static final long DAY = 24L * 60 * 60 * 1000;
+
+	/** how many bytes at the beginning of a line may hold the timestamp */
+	public static final int PREFIX_BYTES = 128;
+
+	/* The formats the user may type a time to jump to in */
+	private static final String[] DATE_TIME_INPUTS = { "yyyy-MM-dd HH:mm:ss",
+			"yyyy-MM-dd HH:mm" };
+	private static final String[] TIME_INPUTS = { "HH:mm:ss", "HH:mm" };
+
+	private final String mDatePattern;
+	private final SimpleDateFormat mFormat;
+	private final Matcher mMatcher;
+	private final boolean hasDate;
+	private final ParsePosition mPosition = new ParsePosition(0);
+
+	/**
+	 * @param datePattern
+	 *            -- a SimpleDateFormat pattern
+	 * @throws IllegalArgumentException
+	 *             if the pattern is not valid
+	 */
+	public TimestampParser(String datePattern) {
+		mDatePattern = datePattern;
+		mFormat = new SimpleDateFormat(datePattern);
+		mFormat.setLenient(false);
+		hasDate = hasDateField(datePattern);
+		if (!hasDate)
+			mFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+		mMatcher = Pattern.compile(toRegex(datePattern)).matcher("");
+	}
+
+	public String getDatePattern() {
+		return mDatePattern;
+	}
+
+	/**
+	 * @return true if the pattern includes the date, or false if it only
+	 *         gives the time of day
+	 */
+	public boolean hasDate() {
+		return hasDate;
+	}
+
+	/**
+	 * Finds and parses the first timestamp in some text
+	 *
+	 * @param text
+	 *            -- the beginning of a line
+	 * @return the time in ms, or NO_TIME if no timestamp was found
+	 */
+	public long parse(CharSequence text) {
+
+		mMatcher.reset(text);
+
+		while (mMatcher.find()) {
+			mPosition.setIndex(0);
+			mPosition.setErrorIndex(-1);
+			final Date date = mFormat.parse(mMatcher.group(), mPosition);
+			if (date != null)
+				return date.getTime();
+		}
+
+		return NO_TIME;
+
+	}
+
+	/**
+	 * Parses the timestamp of a line in a buffer, decoding only the beginning
+	 * of the line
+	 *
+	 * @param buffer
+	 *            -- the buffer holding the line
+	 * @param lineStart
+	 *            -- the position of the first character of the line
+	 * @param limit
+	 *            -- the position past which the line cannot extend
+	 * @param decoder
+	 *            -- the decoder to use
+	 * @return the time in ms, or NO_TIME if the line has no timestamp
+	 */
+	public long parseLine(FileBuffer buffer, long lineStart, long limit,
+			LineDecoder decoder) {
+		final long end = Math.min(limit, lineStart + PREFIX_BYTES);
+		final long lineBreak = buffer.indexOfBreak(lineStart, end);
+		return parse(buffer.decode(lineStart, (lineBreak < 0) ? end
+				: lineBreak, decoder));
+	}
+
+	/**
+	 * Parses a time typed by the user, either as a date and time such as
+	 * 2012-05-01 14:32 or as only a time of day such as 14:32. A time of day
+	 * is taken to be on the same day as the reference time.
+	 *
+	 * @param input
+	 *            -- what the user typed
+	 * @param reference
+	 *            -- a time on the day meant by a time of day, in the same
+	 *            time zone as the times parsed from lines
+	 * @return the time in ms, or NO_TIME if the input could not be parsed
+	 */
+	public long parseInput(String input, long reference) {
+
+		for (String inputPattern : DATE_TIME_INPUTS) {
+			final Date date = parseExactly(input, inputPattern,
+					mFormat.getTimeZone());
+			if (date != null)
+				return date.getTime();
+		}
+
+		for (String inputPattern : TIME_INPUTS) {
+			final Date time = parseExactly(input, inputPattern,
+					TimeZone.getTimeZone("UTC"));
+			if (time != null) {
+				return startOfDay(reference) + time.getTime();
+			}
+		}
+
+		return NO_TIME;
+
+	}
+
+	/**
+	 * @return the first ms of the day holding the given time, in the time
+	 *         zone that times are parsed in
+	 */
+	private long startOfDay(long time) {
+		final Calendar calendar = Calendar.getInstance(mFormat.getTimeZone());
+		calendar.setTimeInMillis(time);
+		calendar.set(Calendar.HOUR_OF_DAY, 0);
+		calendar.set(Calendar.MINUTE, 0);
+		calendar.set(Calendar.SECOND, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+		return calendar.getTimeInMillis();
+	}
+
+	private static Date parseExactly(String input, String pattern,
+			TimeZone timeZone) {
+		final SimpleDateFormat format = new SimpleDateFormat(pattern);
+		format.setLenient(false);
+		format.setTimeZone(timeZone);
+		final ParsePosition position = new ParsePosition(0);
+		final Date date = format.parse(input, position);
+		return (position.getIndex() == input.length()) ? date : null;
+	}
+
+	private static boolean hasDateField(String datePattern) {
+		boolean quoted = false;
+		for (int i = 0; i < datePattern.length(); i++) {
+			final char c = datePattern.charAt(i);
+			if (c == '\'') {
+				quoted = !quoted;
+			} else if (!quoted && "GyYMLwWDdFEu".indexOf(c) >= 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Turns a SimpleDateFormat pattern into a regular expression matching the
+	 * text it formats. Each field only matches a fixed set of characters, so
+	 * the expression never has to backtrack far.
+	 */
+	static String toRegex(String datePattern) {
+
+		final StringBuilder regex = new StringBuilder();
+		final int length = datePattern.length();
+		int i = 0;
+
+		while (i < length) {
+
+			final char c = datePattern.charAt(i);
+
+			if (c == '\'') {
+				// Quoted text, where two quotes in a row stand for one
+				final StringBuilder literal = new StringBuilder();
+				i++;
+				while (i < length) {
+					if (datePattern.charAt(i) == '\'') {
+						if (i + 1 < length && datePattern.charAt(i + 1) == '\'') {
+							literal.append('\'');
+							i += 2;
+							continue;
+						}
+						i++;
+						break;
+					}
+					literal.append(datePattern.charAt(i++));
+				}
+				if (literal.length() == 0)
+					literal.append('\'');
+				regex.append(Pattern.quote(literal.toString()));
+				continue;
+			}
+
+			if (!Character.isLetter(c)) {
+				regex.append(Pattern.quote(String.valueOf(c)));
+				i++;
+				continue;
+			}
+
+			int count = 1;
+			while (i + count < length && datePattern.charAt(i + count) == c) {
+				count++;
+			}
+			i += count;
+
+			switch (c) {
+			case 'y':
+			case 'Y':
+				regex.append((count == 2) ? "\\d{2}" : "\\d{4}");
+				break;
+			case 'M':
+			case 'L':
+				regex.append((count >= 3) ? "\\p{L}+" : (count == 1) ? "\\d{1,2}"
+						: "\\d{2}");
+				break;
+			case 'E':
+			case 'a':
+			case 'G':
+				regex.append("\\p{L}+");
+				break;
+			case 'z':
+				regex.append("[\\w+:-]+");
+				break;
+			case 'Z':
+				regex.append("[+-]\\d{4}");
+				break;
+			case 'X':
+				regex.append("(?:Z|[+-]\\d{2}(?::?\\d{2})?)");
+				break;
+			default:
+				// Every other field is a number
+				regex.append((count == 1) ? "\\d{1,3}" : "\\d{" + count + "}");
+			}
+
+		}
+
+		return regex.toString();
+
+	}
+
+}
@@ -27,9 +27,16 @@ import android.provider.BaseColumns;
 import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.Logger;
 import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.android.LogcatAppender;
 import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.core.Appender;
 import ch.qos.logback.core.FileAppender;
+import ch.qos.logback.core.OutputStreamAppender;
+import ch.qos.logback.core.encoder.Encoder;
+import ch.qos.logback.core.pattern.PatternLayoutEncoderBase;
+import ch.qos.logback.core.rolling.RollingFileAppender;
+import ch.qos.logback.core.rolling.RollingPolicy;
+import ch.qos.logback.core.rolling.RollingPolicyBase;
 
 /**
  * This ContentProvider allows LAUI to receive a list of all Appenders and
@@ -88,8 +95,11 @@ public class LauiContentProvider extends ContentProvider {
 		// Columns
 		public static final String NAME = "name";
 		public static final String FILE_PATH_STRING = "file_path_string";
+		public static final String FILE_NAME_PATTERN_STRING = "file_name_pattern_string";
+		public static final String ENCODER_PATTERN_STRING = "encoder_pattern_string";
 
-		public static final String[] COLUMN_NAMES = { NAME, FILE_PATH_STRING };
+		public static final String[] COLUMN_NAMES = { NAME, FILE_PATH_STRING,
+				FILE_NAME_PATTERN_STRING, ENCODER_PATTERN_STRING };
 
 	}
 
@@ -226,13 +236,46 @@ public class LauiContentProvider extends ContentProvider {
 	private Object[] makeAppenderRow(Appender<?> appender) {
 		String name = appender.getName();
 		String filePathString = null;
+		String fileNamePatternString = null;
 		if (appender instanceof FileAppender) {
 			filePathString = ((FileAppender<?>) appender).getFile();
 		}
-		Object[] fields = { name, filePathString };
+		if (appender instanceof RollingFileAppender) {
+			// Let the viewer find the archived files as well
+			final RollingPolicy policy = ((RollingFileAppender<?>) appender)
+					.getRollingPolicy();
+			if (policy instanceof RollingPolicyBase) {
+				fileNamePatternString = ((RollingPolicyBase) policy)
+						.getFileNamePattern();
+			}
+		}
+		Object[] fields = { name, filePathString, fileNamePatternString,
+				getEncoderPattern(appender) };
 		return fields;
 	}
 
+	/**
+	 * Gets the pattern of an appender's encoder, so that LAUI can find the
+	 * fields of the lines the appender writes
+	 * 
+	 * @param appender
+	 *            the appender
+	 * @return the pattern, or null if the appender does not write its events
+	 *         with a pattern
+	 */
+	private static String getEncoderPattern(Appender<?> appender) {
+		Encoder<?> encoder = null;
+		if (appender instanceof OutputStreamAppender) {
+			encoder = ((OutputStreamAppender<?>) appender).getEncoder();
+		} else if (appender instanceof LogcatAppender) {
+			encoder = ((LogcatAppender) appender).getEncoder();
+		}
+		if (encoder instanceof PatternLayoutEncoderBase) {
+			return ((PatternLayoutEncoderBase<?>) encoder).getPattern();
+		}
+		return null;
+	}
+
 	private Object[] makeLoggerRow(Logger logger) {
 		String name = logger.getName();
 		personalLogger.trace("Adding row for logger {}", name);